@@ -0,0 +1,128 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.benchmarks;
+
+import com.udacity.image.service.AwsImageService;
+import com.udacity.image.service.JpegEncoder;
+import com.udacity.image.service.RekognitionDispatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import software.amazon.awssdk.services.rekognition.RekognitionClient;
+import software.amazon.awssdk.services.rekognition.model.DetectLabelsRequest;
+import software.amazon.awssdk.services.rekognition.model.DetectLabelsResponse;
+import software.amazon.awssdk.services.rekognition.model.Label;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Preparing camera frames for Rekognition. The client is stubbed to answer immediately, so the
+ * numbers cover encoding and request handling but not the network.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ImageBenchmark {
+
+    @Param({"640x480", "1920x1080"})
+    public String resolution;
+
+    private BufferedImage frame;
+    private JpegEncoder jpegEncoder;
+    private AwsImageService awsImageService;
+
+    @Setup
+    public void setUp() {
+        String[] size = resolution.split("x");
+        frame = cameraFrame(Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+        jpegEncoder = new JpegEncoder();
+        DetectLabelsResponse response = DetectLabelsResponse.builder()
+                .labels(Label.builder().name("Cat").confidence(97f).build())
+                .build();
+        RekognitionClient client = new RekognitionClient() {
+            @Override
+            public DetectLabelsResponse detectLabels(DetectLabelsRequest detectLabelsRequest) {
+                return response;
+            }
+
+            //declared by SdkClient, which the generated client interface extends
+            public String serviceName() {
+                return "rekognition";
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        awsImageService = new AwsImageService(new RekognitionDispatcher(client), jpegEncoder);
+    }
+
+    @Benchmark
+    public byte[] encodeJpeg() throws IOException {
+        return jpegEncoder.encode(frame);
+    }
+
+    @Benchmark
+    public boolean awsImageContainsCat() {
+        return awsImageService.imageContainsCat(frame, 50f);
+    }
+
+    @TearDown
+    public void tearDown() {
+        awsImageService.getDispatcher().close();
+    }
+
+    /**
+     * Smooth gradients with sensor noise on top, which compresses roughly like a real camera frame.
+     */
+    private static BufferedImage cameraFrame(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(42);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = Math.min(255, x * 255 / width + random.nextInt(16));
+                int g = Math.min(255, y * 255 / height + random.nextInt(16));
+                int b = Math.min(255, (x + y) * 255 / (width + height) + random.nextInt(16));
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        return image;
+    }
+}
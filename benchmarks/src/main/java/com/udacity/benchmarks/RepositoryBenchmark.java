@@ -0,0 +1,159 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.benchmarks;
+
+import com.udacity.security.data.Durability;
+import com.udacity.security.data.MappedSecurityRepositoryImpl;
+import com.udacity.security.data.PretendDatabaseSecurityRepositoryImpl;
+import com.udacity.security.data.SecurityRepository;
+import com.udacity.security.data.Sensor;
+import com.udacity.security.data.SensorType;
+import com.udacity.security.data.WriteAheadLogSecurityRepositoryImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.InvalidPreferencesFormatException;
+import java.util.prefs.Preferences;
+import java.util.stream.Stream;
+
+/**
+ * Write path of the repositories: updating one sensor of many.
+ * <p>
+ * The pretend database stores all sensors as one preferences value, which may not exceed
+ * {@link Preferences#MAX_VALUE_LENGTH} characters, so it only holds a few dozen sensors. Its
+ * preferences are saved before the benchmark and restored afterwards.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RepositoryBenchmark {
+
+    @Param({"pretend", "wal", "mapped"})
+    public String repository;
+
+    @Param({"10", "50"})
+    public int sensorCount;
+
+    //ignored by the mapped repository, which leaves writing to the operating system
+    @Param({"SYNC", "ASYNC"})
+    public Durability durability;
+
+    private final Preferences prefs = Preferences.userNodeForPackage(PretendDatabaseSecurityRepositoryImpl.class);
+    private byte[] savedPrefs;
+    private Path directory;
+    private SecurityRepository securityRepository;
+    private Sensor[] sensors;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException, BackingStoreException {
+        switch (repository) {
+            case "pretend" -> {
+                ByteArrayOutputStream saved = new ByteArrayOutputStream();
+                prefs.exportSubtree(saved);
+                savedPrefs = saved.toByteArray();
+                prefs.clear();
+                securityRepository = new PretendDatabaseSecurityRepositoryImpl(durability,
+                        Duration.ofMillis(PretendDatabaseSecurityRepositoryImpl.DEFAULT_FLUSH_INTERVAL_MILLIS),
+                        PretendDatabaseSecurityRepositoryImpl.DEFAULT_MAX_PENDING_CHANGES);
+            }
+            case "wal" -> {
+                directory = Files.createTempDirectory("catpoint-bench");
+                securityRepository = new WriteAheadLogSecurityRepositoryImpl(directory,
+                        WriteAheadLogSecurityRepositoryImpl.DEFAULT_COMPACTION_THRESHOLD, durability,
+                        Duration.ofMillis(WriteAheadLogSecurityRepositoryImpl.DEFAULT_FLUSH_INTERVAL_MILLIS),
+                        WriteAheadLogSecurityRepositoryImpl.DEFAULT_MAX_PENDING_CHANGES);
+            }
+            case "mapped" -> {
+                directory = Files.createTempDirectory("catpoint-bench");
+                securityRepository = new MappedSecurityRepositoryImpl(directory);
+            }
+            default -> throw new IllegalArgumentException("Unknown repository " + repository);
+        }
+        sensors = new Sensor[sensorCount];
+        SensorType[] types = SensorType.values();
+        for (int i = 0; i < sensorCount; i++) {
+            sensors[i] = new Sensor("Sensor " + i, types[i % types.length]);
+            securityRepository.addSensor(sensors[i]);
+        }
+    }
+
+    @Benchmark
+    public void updateSensor() {
+        Sensor sensor = sensors[next];
+        next = (next + 1) % sensors.length;
+        sensor.setActive(!sensor.getActive());
+        securityRepository.updateSensor(sensor);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        if (securityRepository instanceof AutoCloseable closeable) {
+            closeable.close();
+        }
+        if (savedPrefs != null) {
+            prefs.clear();
+            restorePreferences();
+        }
+        if (directory != null) {
+            try (Stream<Path> files = Files.walk(directory)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    private void restorePreferences() throws IOException, BackingStoreException {
+        try {
+            Preferences.importPreferences(new ByteArrayInputStream(savedPrefs));
+        } catch (InvalidPreferencesFormatException e) {
+            throw new IOException(e);
+        }
+        prefs.flush();
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.benchmarks;
+
+import com.udacity.security.data.ArmingStatus;
+import com.udacity.security.data.SensorType;
+import com.udacity.security.server.CatpointProtocol;
+import com.udacity.security.server.ProtocolServer;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load generator for the headless server. Not a JMH benchmark, as it measures a separate process:
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar com.udacity.benchmarks.ServerLoad [host] [port] [connections] [seconds]
+ * </pre>
+ * Every connection drives its own site with {@value #SENSORS_PER_SITE} sensors and subscribes to
+ * its status. It sends sensor events in chunks of {@value #CHUNK}, each followed by a SYNC, and
+ * keeps at most {@value #WINDOW} chunks unanswered, so only events the server applied are counted.
+ */
+public class ServerLoad {
+
+    private static final int SENSORS_PER_SITE = 16;
+    private static final int CHUNK = 1_000;
+    private static final int WINDOW = 4;
+
+    private static final LongAdder applied = new LongAdder();
+    private static final LongAdder statuses = new LongAdder();
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : ProtocolServer.DEFAULT_PORT;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        Thread[] clients = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            String siteId = "load-" + i;
+            clients[i] = new Thread(() -> drive(host, port, siteId, deadline), siteId);
+            clients[i].start();
+        }
+        long start = System.nanoTime();
+        long last = 0;
+        while (System.nanoTime() < deadline) {
+            Thread.sleep(1_000);
+            long events = applied.sum();
+            System.out.printf("%d sensor events/s%n", events - last);
+            last = events;
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d connections: %d sensor events applied in %.1f s, %.0f/s, %d status updates received%n",
+                connections, applied.sum(), elapsed, applied.sum() / elapsed, statuses.sum());
+    }
+
+    private static void drive(String host, int port, String siteId, long deadline) {
+        try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            UUID[] sensors = new UUID[SENSORS_PER_SITE];
+            ByteBuffer setup = ByteBuffer.allocate(4096);
+            CatpointProtocol.putSite(setup, siteId);
+            CatpointProtocol.putSubscribe(setup);
+            for (int i = 0; i < sensors.length; i++) {
+                sensors[i] = UUID.randomUUID();
+                CatpointProtocol.putAddSensor(setup, sensors[i], SensorType.values()[i % SensorType.values().length], "Sensor " + i);
+            }
+            CatpointProtocol.putArm(setup, ArmingStatus.ARMED_AWAY);
+            out.write(setup.array(), 0, setup.position());
+
+            Semaphore window = new Semaphore(WINDOW);
+            Thread reader = new Thread(() -> read(in, window), siteId + "-reader");
+            reader.setDaemon(true);
+            reader.start();
+
+            ByteBuffer chunk = ByteBuffer.allocate(CHUNK * CatpointProtocol.SENSOR_FRAME_LENGTH + 16);
+            boolean[] active = new boolean[sensors.length];
+            int token = 0;
+            while (System.nanoTime() < deadline) {
+                window.acquire();
+                chunk.clear();
+                for (int i = 0; i < CHUNK; i++) {
+                    int sensor = (token * CHUNK + i) % sensors.length;
+                    active[sensor] = !active[sensor];
+                    CatpointProtocol.putSensor(chunk, sensors[sensor], active[sensor]);
+                }
+                CatpointProtocol.putSync(chunk, token++);
+                out.write(chunk.array(), 0, chunk.position());
+            }
+            //wait for the chunks still on their way
+            window.acquire(WINDOW);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void read(DataInputStream in, Semaphore window) {
+        try {
+            while (true) {
+                byte[] frame = new byte[in.readInt()];
+                in.readFully(frame);
+                if (frame[0] == CatpointProtocol.SYNCED) {
+                    applied.add(CHUNK);
+                    window.release();
+                } else if (frame[0] == CatpointProtocol.STATUS) {
+                    statuses.increment();
+                } else if (frame[0] == CatpointProtocol.ERROR) {
+                    System.err.println("Server error: " + CatpointProtocol.getString(ByteBuffer.wrap(frame, 1, frame.length - 1)));
+                    return;
+                }
+            }
+        } catch (IOException | CatpointProtocol.ProtocolException e) {
+            //the connection was closed
+        }
+    }
+}
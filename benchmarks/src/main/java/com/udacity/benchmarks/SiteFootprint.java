@@ -0,0 +1,95 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.benchmarks;
+
+import com.udacity.image.service.FakeImageService;
+import com.udacity.security.data.ArmingStatus;
+import com.udacity.security.data.Sensor;
+import com.udacity.security.data.SensorType;
+import com.udacity.security.engine.SiteEngine;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Measures how much heap a site of a {@link SiteEngine} takes while it is active but idle, and
+ * what is left once it was evicted. Not a JMH benchmark, as JMH measures time:
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar com.udacity.benchmarks.SiteFootprint [sites] [memory|wal]
+ * </pre>
+ * Every site gets three sensors and is armed. With {@code wal} the sites are kept in write-ahead
+ * logs in a temporary directory, otherwise in memory.
+ */
+public class SiteFootprint {
+
+    private static final int SENSORS_PER_SITE = 3;
+
+    public static void main(String[] args) throws IOException {
+        int siteCount = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        boolean wal = args.length > 1 && args[1].equals("wal");
+        Path directory = Files.createTempDirectory("site-footprint");
+        SiteEngine.RepositoryFactory repositories = wal
+                ? SiteEngine.writeAheadLogRepositories(directory)
+                : siteId -> new InMemorySecurityRepository();
+
+        try (SiteEngine engine = new SiteEngine(Runtime.getRuntime().availableProcessors(), repositories,
+                new FakeImageService(), Runnable::run, Duration.ofDays(1))) {
+            long empty = usedHeap();
+            CompletableFuture<?>[] done = new CompletableFuture<?>[siteCount];
+            for (int i = 0; i < siteCount; i++) {
+                done[i] = engine.call("site-" + i, service -> {
+                    SensorType[] types = SensorType.values();
+                    for (int s = 0; s < SENSORS_PER_SITE; s++) {
+                        service.addSensor(new Sensor("Sensor " + s, types[s % types.length]));
+                    }
+                    service.setArmingStatus(ArmingStatus.ARMED_AWAY);
+                    return null;
+                });
+            }
+            CompletableFuture.allOf(done).join();
+            long active = usedHeap();
+            System.out.printf("%d active %s sites: %d bytes per site%n", siteCount, wal ? "wal" : "memory",
+                    (active - empty) / siteCount);
+
+            //an idle timeout of a day keeps the sites until they are evicted by closing the engine
+            engine.close();
+            long evicted = usedHeap();
+            System.out.printf("after eviction: %d bytes per site%n", Math.max(0, evicted - empty) / siteCount);
+        }
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.image.scan;
+
+import com.udacity.image.service.AwsImageService;
+import com.udacity.image.service.FakeImageService;
+import com.udacity.image.service.ImageService;
+import com.udacity.image.service.LocalImageService;
+import com.udacity.metrics.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command line entry point of the {@link ArchiveScanner}:
+ * <pre>
+ * ArchiveScan &lt;archive directory&gt; &lt;results file&gt; [options]
+ *   --service=local|aws|fake  image service to use, defaults to local
+ *   --model=FILE              classifier model of the local service, defaults to the bundled one
+ *   --threads=N               images scanned at the same time, defaults to the number of cores
+ *   --max-dimension=PX        subsample images while decoding down to this size, 0 keeps them as is
+ *   --threshold=PERCENT       minimum confidence for a cat
+ *   --checkpoint=N            results after which the results file is written
+ * </pre>
+ * Running it again with the same results file resumes the scan. With the aws service most threads
+ * wait for responses, so more threads than cores pay off.
+ */
+public class ArchiveScan {
+
+    private static final long PROGRESS_INTERVAL_SECONDS = 10;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: ArchiveScan <archive directory> <results file> [--service=local|aws|fake]"
+                    + " [--model=FILE] [--threads=N] [--max-dimension=PX] [--threshold=PERCENT] [--checkpoint=N]");
+            System.exit(2);
+        }
+        Path archive = Paths.get(args[0]);
+        Path resultsFile = Paths.get(args[1]);
+        Map<String, String> options = new HashMap<>();
+        for (int i = 2; i < args.length; i++) {
+            String[] option = args[i].replaceFirst("^--", "").split("=", 2);
+            options.put(option[0], option.length > 1 ? option[1] : "");
+        }
+
+        ArchiveScanner scanner = new ArchiveScanner(imageService(options),
+                Float.parseFloat(options.getOrDefault("threshold", String.valueOf(ArchiveScanner.DEFAULT_CONFIDENCE_THRESHOLD))),
+                Integer.parseInt(options.getOrDefault("max-dimension", String.valueOf(ArchiveScanner.DEFAULT_MAX_DIMENSION))),
+                Integer.parseInt(options.getOrDefault("threads", String.valueOf(Runtime.getRuntime().availableProcessors()))),
+                Integer.parseInt(options.getOrDefault("checkpoint", String.valueOf(ArchiveScanner.DEFAULT_CHECKPOINT_INTERVAL))));
+
+        ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "archive-scan-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long start = System.nanoTime();
+        progress.scheduleAtFixedRate(() -> System.out.printf("%d scanned (%.1f/s), %d skipped, %d cats, %d unreadable, %d failed%n",
+                        scanner.getScannedCount(), scanner.getScannedCount() * 1e9 / (System.nanoTime() - start),
+                        scanner.getSkippedCount(), scanner.getCatCount(), scanner.getUnreadableCount(), scanner.getFailedCount()),
+                PROGRESS_INTERVAL_SECONDS, PROGRESS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+        ArchiveScanner.Summary summary;
+        try {
+            summary = scanner.scan(archive, resultsFile);
+        } finally {
+            progress.shutdownNow();
+        }
+
+        System.out.printf("Scanned %d images in %s (%.1f/s): %d cats, %d unreadable, %d failed, %d skipped from earlier scans%n",
+                summary.scanned(), summary.elapsed(), summary.imagesPerSecond(), summary.cats(), summary.unreadable(),
+                summary.failed(), summary.skipped());
+        for (String stage : new String[]{"scan.decode", "scan.detect", "scan.write"}) {
+            LatencyHistogram histogram = scanner.getMetrics().histogram(stage);
+            System.out.printf("%-12s count %d, mean %.2f ms, median %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                    stage, histogram.getCount(), histogram.getMeanNanos() / 1e6, histogram.getQuantileNanos(0.5) / 1e6,
+                    histogram.getQuantileNanos(0.99) / 1e6, histogram.getMaxNanos() / 1e6);
+        }
+        if (summary.failed() > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static ImageService imageService(Map<String, String> options) throws IOException {
+        String model = options.get("model");
+        return switch (options.getOrDefault("service", "local")) {
+            case "local" -> {
+                if (model == null) {
+                    yield new LocalImageService();
+                }
+                try (InputStream in = Files.newInputStream(Paths.get(model))) {
+                    yield new LocalImageService(in);
+                }
+            }
+            case "aws" -> new AwsImageService();
+            case "fake" -> new FakeImageService();
+            default -> throw new IllegalArgumentException("Unknown image service " + options.get("service"));
+        };
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.image.scan;
+
+import com.udacity.image.service.ImageService;
+import com.udacity.metrics.LatencyHistogram;
+import com.udacity.metrics.MetricsRegistry;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Scans a directory tree of stored snapshots for cats, without a GUI.
+ * <p>
+ * The tree is walked on a {@link ForkJoinPool}: every directory is a task that forks a task per
+ * subdirectory and per batch of {@value #BATCH_SIZE} images, so idle threads steal work from
+ * busy ones and all cores stay busy however the images are spread over directories. Images are
+ * decoded with {@link ImageReadParam#setSourceSubsampling source subsampling}, which skips rows
+ * and columns while decoding instead of scaling a full-size image down afterwards, until the
+ * longer side is no more than the configured maximum. The verdicts are written to a
+ * {@link ScanResults results file}; scanning again with the same file resumes where the previous
+ * scan stopped.
+ * <p>
+ * The time spent on each stage, decoding, detection and writing the result, is recorded in the
+ * histograms {@code scan.decode}, {@code scan.detect} and {@code scan.write} of
+ * {@link #getMetrics()}.
+ */
+public class ArchiveScanner {
+
+    public static final float DEFAULT_CONFIDENCE_THRESHOLD = 50.0f;
+    public static final int DEFAULT_MAX_DIMENSION = 640;
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 1_000;
+
+    private static final int BATCH_SIZE = 64;
+
+    private final ImageService imageService;
+    private final float confidenceThreshold;
+    private final int maxDimension;
+    private final int parallelism;
+    private final int checkpointInterval;
+    private final Set<String> suffixes = Arrays.stream(ImageIO.getReaderFileSuffixes())
+            .map(s -> s.toLowerCase(Locale.ROOT)).collect(Collectors.toUnmodifiableSet());
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final LatencyHistogram decodeLatency = metrics.histogram("scan.decode");
+    private final LatencyHistogram detectLatency = metrics.histogram("scan.detect");
+    private final LatencyHistogram writeLatency = metrics.histogram("scan.write");
+    //counts of the running or last scan
+    private volatile Counts counts = new Counts();
+
+    public ArchiveScanner(ImageService imageService) {
+        this(imageService, DEFAULT_CONFIDENCE_THRESHOLD, DEFAULT_MAX_DIMENSION,
+                Runtime.getRuntime().availableProcessors(), DEFAULT_CHECKPOINT_INTERVAL);
+    }
+
+    /**
+     * @param imageService        Service looking for cats
+     * @param confidenceThreshold Minimum confidence, in percent, to count an image as a cat
+     * @param maxDimension        Images are subsampled while decoding until neither side is larger
+     *                            than this many pixels, 0 decodes them at full size
+     * @param parallelism         Number of images scanned at the same time
+     * @param checkpointInterval  Number of results after which the results file is written
+     */
+    public ArchiveScanner(ImageService imageService, float confidenceThreshold, int maxDimension,
+                          int parallelism, int checkpointInterval) {
+        if (maxDimension < 0 || parallelism <= 0 || checkpointInterval <= 0) {
+            throw new IllegalArgumentException("parallelism and checkpointInterval must be positive, maxDimension must not be negative");
+        }
+        this.imageService = imageService;
+        this.confidenceThreshold = confidenceThreshold;
+        this.maxDimension = maxDimension;
+        this.parallelism = parallelism;
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+     * Scans every image below the archive directory that the results file does not list yet and
+     * appends their verdicts to it. Images whose detection failed are not listed, so they are
+     * scanned again next time.
+     *
+     * @return Counts of this scan
+     */
+    public Summary scan(Path archive, Path resultsFile) throws IOException {
+        long start = System.nanoTime();
+        Counts counts = new Counts();
+        this.counts = counts;
+        try (ScanResults results = new ScanResults(resultsFile, checkpointInterval)) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                pool.invoke(new DirectoryTask(archive, archive, results, counts));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                pool.shutdown();
+            }
+        }
+        return new Summary(counts.scanned.sum(), counts.skipped.sum(), counts.cats.sum(), counts.unreadable.sum(),
+                counts.failed.sum(), Duration.ofNanos(System.nanoTime() - start));
+    }
+
+    private boolean isImage(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 && suffixes.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Decodes an image, subsampled so neither side exceeds the maximum dimension.
+     *
+     * @return The image, or null if no reader understands the file
+     */
+    BufferedImage decode(Path file) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file.toFile())) {
+            Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+            if (readers == null || !readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                //the size comes from the header, nothing has been decoded yet
+                int factor = subsampling(reader.getWidth(0), reader.getHeight(0));
+                if (factor > 1) {
+                    param.setSourceSubsampling(factor, factor, 0, 0);
+                }
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private int subsampling(int width, int height) {
+        int longer = Math.max(width, height);
+        if (maxDimension == 0 || longer <= maxDimension) {
+            return 1;
+        }
+        return (longer + maxDimension - 1) / maxDimension;
+    }
+
+    private void scanImage(Path archive, Path file, ScanResults results, Counts counts) {
+        String path = archive.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+        if (results.contains(path)) {
+            counts.skipped.increment();
+            return;
+        }
+        long start = System.nanoTime();
+        BufferedImage image;
+        try {
+            image = decode(file);
+        } catch (IOException | RuntimeException e) {
+            //decoders report corrupt files with all kinds of runtime exceptions
+            image = null;
+        }
+        long decoded = System.nanoTime();
+        decodeLatency.recordNanos(decoded - start);
+        String verdict;
+        long detected = decoded;
+        if (image == null) {
+            counts.unreadable.increment();
+            verdict = ScanResults.UNREADABLE;
+        } else {
+            try {
+                verdict = imageService.imageContainsCat(image, confidenceThreshold) ? ScanResults.CAT : ScanResults.NO_CAT;
+            } catch (RuntimeException e) {
+                counts.failed.increment();
+                return;
+            }
+            detected = System.nanoTime();
+            detectLatency.recordNanos(detected - decoded);
+            if (verdict.equals(ScanResults.CAT)) {
+                counts.cats.increment();
+            }
+        }
+        try {
+            results.add(verdict, decoded - start, detected - decoded, path);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        writeLatency.recordSince(detected);
+        counts.scanned.increment();
+    }
+
+    /**
+     * Returns the number of images the running or last scan scanned so far, including unreadable ones.
+     */
+    public long getScannedCount() {
+        return counts.scanned.sum();
+    }
+
+    /**
+     * Returns the number of images the running or last scan skipped because the results file
+     * already listed them.
+     */
+    public long getSkippedCount() {
+        return counts.skipped.sum();
+    }
+
+    public long getCatCount() {
+        return counts.cats.sum();
+    }
+
+    public long getUnreadableCount() {
+        return counts.unreadable.sum();
+    }
+
+    /**
+     * Returns the number of images whose detection failed in the running or last scan.
+     */
+    public long getFailedCount() {
+        return counts.failed.sum();
+    }
+
+    /**
+     * Returns the registry holding the per-stage histograms.
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Counts of one scan.
+     */
+    public record Summary(long scanned, long skipped, long cats, long unreadable, long failed, Duration elapsed) {
+
+        public double imagesPerSecond() {
+            return elapsed.isZero() ? 0 : scanned * 1e9 / elapsed.toNanos();
+        }
+    }
+
+    private static final class Counts {
+        private final LongAdder scanned = new LongAdder();
+        private final LongAdder skipped = new LongAdder();
+        private final LongAdder cats = new LongAdder();
+        private final LongAdder unreadable = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+    }
+
+    private final class DirectoryTask extends RecursiveAction {
+        private final Path archive;
+        private final Path directory;
+        private final ScanResults results;
+        private final Counts counts;
+
+        DirectoryTask(Path archive, Path directory, ScanResults results, Counts counts) {
+            this.archive = archive;
+            this.directory = directory;
+            this.results = results;
+            this.counts = counts;
+        }
+
+        @Override
+        protected void compute() {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            List<Path> batch = new ArrayList<>(BATCH_SIZE);
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                        tasks.add(new DirectoryTask(archive, entry, results, counts).fork());
+                    } else if (isImage(entry)) {
+                        batch.add(entry);
+                        if (batch.size() == BATCH_SIZE) {
+                            tasks.add(new BatchTask(archive, batch, results, counts).fork());
+                            batch = new ArrayList<>(BATCH_SIZE);
+                        }
+                    }
+                }
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+            //the last batch runs on this thread
+            new BatchTask(archive, batch, results, counts).compute();
+            tasks.forEach(ForkJoinTask::join);
+        }
+    }
+
+    private final class BatchTask extends RecursiveAction {
+        private final Path archive;
+        private final List<Path> files;
+        private final ScanResults results;
+        private final Counts counts;
+
+        BatchTask(Path archive, List<Path> files, ScanResults results, Counts counts) {
+            this.archive = archive;
+            this.files = files;
+            this.results = results;
+            this.counts = counts;
+        }
+
+        @Override
+        protected void compute() {
+            files.forEach(file -> scanImage(archive, file, results, counts));
+        }
+    }
+}
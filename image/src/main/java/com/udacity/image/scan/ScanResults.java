@@ -0,0 +1,172 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.image.scan;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The results file of an archive scan, which doubles as its checkpoint. Every line holds the
+ * verdict for one image:
+ * <pre>
+ * verdict TAB decode micros TAB detect micros TAB path relative to the archive
+ * </pre>
+ * where the verdict is {@code cat}, {@code no_cat} or {@code unreadable}. When a scan is resumed
+ * the file is read first and images it already lists are skipped. A line cut off by a crash is
+ * removed before new lines are appended.
+ * <p>
+ * Listed images are remembered by a 64 bit hash of their path in a sorted array, eight bytes per
+ * image however long the paths are, so millions of them fit in memory. Lines are buffered and
+ * reach the file every {@code checkpointInterval} lines and when the file is closed; images whose
+ * lines were lost are scanned again.
+ */
+final class ScanResults implements AutoCloseable {
+
+    static final String CAT = "cat";
+    static final String NO_CAT = "no_cat";
+    static final String UNREADABLE = "unreadable";
+
+    private final long[] done;
+    private final FileChannel channel;
+    private final BufferedWriter writer;
+    private final int checkpointInterval;
+    //guarded by this
+    private int unflushed;
+
+    /**
+     * Opens the results file, creating it if needed, and reads the images it already lists.
+     */
+    ScanResults(Path file, int checkpointInterval) throws IOException {
+        this.checkpointInterval = checkpointInterval;
+        LongList hashes = new LongList();
+        long complete = 0;
+        if (Files.exists(file)) {
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+                ByteArrayOutputStream line = new ByteArrayOutputStream();
+                long position = 0;
+                for (int b = in.read(); b != -1; b = in.read()) {
+                    position++;
+                    if (b != '\n') {
+                        line.write(b);
+                        continue;
+                    }
+                    String text = line.toString(StandardCharsets.UTF_8);
+                    line.reset();
+                    //the path is everything after the third tab, it may contain tabs itself
+                    int tab = text.indexOf('\t');
+                    for (int field = 1; field < 3 && tab >= 0; field++) {
+                        tab = text.indexOf('\t', tab + 1);
+                    }
+                    if (tab >= 0) {
+                        hashes.add(hash(text.substring(tab + 1)));
+                    }
+                    complete = position;
+                }
+            }
+        }
+        done = hashes.sorted();
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(complete);
+        channel.position(complete);
+        writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns true if the image was listed when the file was opened.
+     */
+    boolean contains(String path) {
+        return Arrays.binarySearch(done, hash(path)) >= 0;
+    }
+
+    synchronized void add(String verdict, long decodeNanos, long detectNanos, String path) throws IOException {
+        writer.write(verdict);
+        writer.write('\t');
+        writer.write(Long.toString(decodeNanos / 1_000));
+        writer.write('\t');
+        writer.write(Long.toString(detectNanos / 1_000));
+        writer.write('\t');
+        writer.write(path);
+        writer.write('\n');
+        if (++unflushed >= checkpointInterval) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the buffered lines to the file.
+     */
+    synchronized void flush() throws IOException {
+        writer.flush();
+        unflushed = 0;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try (channel) {
+            writer.flush();
+            channel.force(false);
+        }
+    }
+
+    /**
+     * 64 bit FNV-1a over the path's characters.
+     */
+    static long hash(String path) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < path.length(); i++) {
+            hash ^= path.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static final class LongList {
+        private long[] values = new long[1024];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        long[] sorted() {
+            long[] result = Arrays.copyOf(values, size);
+            Arrays.sort(result);
+            return result;
+        }
+    }
+}
@@ -24,6 +24,8 @@
 
 package com.udacity.image.service;
 
+import com.udacity.metrics.LatencyHistogram;
+import com.udacity.metrics.MetricsRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
@@ -31,17 +33,22 @@ import software.amazon.awssdk.auth.credentials.AwsCredentials;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
 import software.amazon.awssdk.core.SdkBytes;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.rekognition.RekognitionAsyncClient;
 import software.amazon.awssdk.services.rekognition.RekognitionClient;
 import software.amazon.awssdk.services.rekognition.model.DetectLabelsRequest;
 import software.amazon.awssdk.services.rekognition.model.DetectLabelsResponse;
 import software.amazon.awssdk.services.rekognition.model.Image;
 
-import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
@@ -56,12 +63,26 @@ import java.util.stream.Collectors;
  * aws.id=[your access key id]
  * aws.secret=[your Secret access key]
  * aws.region=[an aws region of choice. For example: us-east-2]
+ * <p>
+ * Optionally, the same file can tune how images are encoded before they are uploaded:
+ * aws.jpegQuality=[JPEG quality between 0 and 1, defaults to 0.75]
+ * aws.maxImageDimension=[scale images down so neither side exceeds this many pixels, 0 (the default) keeps them as is]
+ * <p>
+ * and how requests are sent, see {@link RekognitionDispatcher}:
+ * aws.async=[true to use the non-blocking client, defaults to false]
+ * aws.maxConcurrency=[requests sent at the same time, defaults to 4]
+ * aws.maxQueuedRequests=[requests that may wait for their turn before new ones are rejected, defaults to 32]
+ * aws.maxAttempts=[attempts per request including retries, defaults to 3]
+ * aws.endpoint=[endpoint to use instead of the regional one, for example a local stub]
  */
 public class AwsImageService implements ImageService {
 
-    //aws recommendation is to maintain only a single instance of client objects
-    private static RekognitionClient rekognitionClient;
+    //aws recommendation is to maintain only a single instance of client objects,
+    //so share one AwsImageService and its dispatcher rather than creating several
+    private final RekognitionDispatcher dispatcher;
     private final Logger log = LoggerFactory.getLogger(AwsImageService.class);
+    private final JpegEncoder jpegEncoder;
+    private volatile LatencyHistogram encodeLatency;
 
     public AwsImageService() {
         Properties props = new Properties();
@@ -69,18 +90,54 @@ public class AwsImageService implements ImageService {
             props.load(is);
         } catch (IOException ioe) {
             log.error("Unable to initialize AWS Rekognition, no properties file found", ioe);
+            jpegEncoder = new JpegEncoder();
+            dispatcher = null;
             return;
         }
 
+        jpegEncoder = new JpegEncoder(
+                Float.parseFloat(props.getProperty("aws.jpegQuality", String.valueOf(JpegEncoder.DEFAULT_QUALITY))),
+                Integer.parseInt(props.getProperty("aws.maxImageDimension", "0")));
+
         String awsId = props.getProperty("aws.id");
         String awsSecret = props.getProperty("aws.secret");
         String awsRegion = props.getProperty("aws.region");
 
+        String endpoint = props.getProperty("aws.endpoint");
+        int maxConcurrency = Integer.parseInt(props.getProperty("aws.maxConcurrency",
+                String.valueOf(RekognitionDispatcher.DEFAULT_MAX_CONCURRENCY)));
+        int maxQueued = Integer.parseInt(props.getProperty("aws.maxQueuedRequests",
+                String.valueOf(RekognitionDispatcher.DEFAULT_MAX_QUEUED)));
+        int maxAttempts = Integer.parseInt(props.getProperty("aws.maxAttempts",
+                String.valueOf(RekognitionDispatcher.DEFAULT_MAX_ATTEMPTS)));
+
         AwsCredentials awsCredentials = AwsBasicCredentials.create(awsId, awsSecret);
-        rekognitionClient = RekognitionClient.builder()
-                .credentialsProvider(StaticCredentialsProvider.create(awsCredentials))
-                .region(Region.of(awsRegion))
-                .build();
+        if (Boolean.parseBoolean(props.getProperty("aws.async"))) {
+            var builder = RekognitionAsyncClient.builder()
+                    .credentialsProvider(StaticCredentialsProvider.create(awsCredentials))
+                    .region(Region.of(awsRegion));
+            if (endpoint != null) {
+                builder.endpointOverride(URI.create(endpoint));
+            }
+            dispatcher = new RekognitionDispatcher(builder.build(), maxConcurrency, maxQueued, maxAttempts);
+        } else {
+            var builder = RekognitionClient.builder()
+                    .credentialsProvider(StaticCredentialsProvider.create(awsCredentials))
+                    .region(Region.of(awsRegion));
+            if (endpoint != null) {
+                builder.endpointOverride(URI.create(endpoint));
+            }
+            dispatcher = new RekognitionDispatcher(builder.build(), maxConcurrency, maxQueued, maxAttempts);
+        }
+    }
+
+    /**
+     * Creates a service that sends its requests through the given dispatcher, for example one
+     * wrapping a client pointed at a local stub.
+     */
+    public AwsImageService(RekognitionDispatcher dispatcher, JpegEncoder jpegEncoder) {
+        this.dispatcher = dispatcher;
+        this.jpegEncoder = jpegEncoder;
     }
 
     /**
@@ -91,20 +148,71 @@ public class AwsImageService implements ImageService {
      * @return
      */
     public boolean imageContainsCat(BufferedImage image, float confidenceThreshhold) {
+        try {
+            return containsCat(dispatcher.detectLabels(image, confidenceThreshhold, () -> buildRequest(image, confidenceThreshhold)).join());
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException ioe) {
+                log.error("Error building image byte array", ioe.getCause());
+                return false;
+            }
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        }
+    }
+
+    /**
+     * Checks the image without blocking the caller. The image is encoded on the given executor.
+     * With the non-blocking client the request itself does not hold on to an executor thread
+     * while waiting for the answer.
+     */
+    @Override
+    public CompletableFuture<Boolean> imageContainsCatAsync(BufferedImage image, float confidenceThreshhold, Executor executor) {
+        return CompletableFuture.supplyAsync(
+                        () -> dispatcher.detectLabels(image, confidenceThreshhold, () -> buildRequest(image, confidenceThreshhold)), executor)
+                .thenCompose(Function.identity())
+                .thenApply(this::containsCat);
+    }
+
+    private DetectLabelsRequest buildRequest(BufferedImage image, float confidenceThreshhold) {
         Image awsImage;
-        try (ByteArrayOutputStream os = new ByteArrayOutputStream()) {
-            ImageIO.write(image, "jpg", os);
-            awsImage = Image.builder().bytes(SdkBytes.fromByteArray(os.toByteArray())).build();
+        LatencyHistogram latency = encodeLatency;
+        long start = latency == null ? 0 : System.nanoTime();
+        try {
+            //the encoder hands over a fresh array, so the SDK may use it without copying
+            awsImage = Image.builder().bytes(SdkBytes.fromByteArrayUnsafe(jpegEncoder.encode(image))).build();
+            if (latency != null) {
+                latency.recordSince(start);
+            }
         } catch (IOException ioe) {
-            log.error("Error building image byte array", ioe);
-            return false;
+            throw new UncheckedIOException(ioe);
         }
-        DetectLabelsRequest detectLabelsRequest = DetectLabelsRequest.builder().image(awsImage).minConfidence(confidenceThreshhold).build();
-        DetectLabelsResponse response = rekognitionClient.detectLabels(detectLabelsRequest);
+        return DetectLabelsRequest.builder().image(awsImage).minConfidence(confidenceThreshhold).build();
+    }
+
+    private boolean containsCat(DetectLabelsResponse response) {
         logLabelsForFun(response);
         return response.labels().stream().anyMatch(l -> l.name().toLowerCase().contains("cat"));
     }
 
+    /**
+     * Records how long images take to encode and publishes the dispatcher's counts in the registry.
+     */
+    public void registerMetrics(MetricsRegistry registry) {
+        if (!registry.isEnabled()) {
+            return;
+        }
+        encodeLatency = registry.histogram("image.encode");
+        if (dispatcher != null) {
+            dispatcher.registerMetrics(registry);
+        }
+    }
+
+    /**
+     * Returns the dispatcher sending this service's requests, for its statistics.
+     */
+    public RekognitionDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
     private void logLabelsForFun(DetectLabelsResponse response) {
         log.info(response.labels().stream()
                 .map(label -> String.format("%s(%.1f%%)", label.name(), label.confidence()))
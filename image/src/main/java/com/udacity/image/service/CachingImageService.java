@@ -0,0 +1,226 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.image.service;
+
+import com.udacity.metrics.MetricsRegistry;
+
+import java.awt.image.BufferedImage;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Image service decorator that remembers verdicts for images that look the same. Cameras send
+ * many nearly identical frames, so the delegate only needs to see the first of them.
+ * <p>
+ * Images are identified by a 64 bit difference hash (dHash): the image is averaged down to 9x8 gray
+ * pixels and every bit records whether a pixel is brighter than its right neighbour, which is
+ * stable under noise, compression and small changes in exposure. Verdicts are kept per hash and
+ * confidence threshold, the least recently used entry is evicted once the cache is full, and
+ * entries expire after a fixed time to live. Camera ids are passed on to the delegate on a miss.
+ */
+public class CachingImageService implements CameraImageService {
+
+    public static final int DEFAULT_MAXIMUM_SIZE = 1024;
+    public static final Duration DEFAULT_TIME_TO_LIVE = Duration.ofMinutes(5);
+
+    private static final int HASH_WIDTH = 9;
+    private static final int HASH_HEIGHT = 8;
+
+    private final ImageService delegate;
+    private final long timeToLiveNanos;
+    private final Map<CacheKey, CachedVerdict> cache;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public CachingImageService(ImageService delegate) {
+        this(delegate, DEFAULT_MAXIMUM_SIZE, DEFAULT_TIME_TO_LIVE);
+    }
+
+    /**
+     * @param delegate    Service asked for verdicts that are not cached
+     * @param maximumSize Maximum number of verdicts to keep
+     * @param timeToLive  How long a verdict may be reused
+     */
+    public CachingImageService(ImageService delegate, int maximumSize, Duration timeToLive) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("maximumSize must be positive");
+        }
+        this.delegate = delegate;
+        this.timeToLiveNanos = timeToLive.toNanos();
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CacheKey, CachedVerdict> eldest) {
+                if (size() > maximumSize) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    @Override
+    public boolean imageContainsCat(BufferedImage image, float confidenceThreshold) {
+        return imageContainsCat(null, image, confidenceThreshold);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> imageContainsCatAsync(BufferedImage image, float confidenceThreshold, Executor executor) {
+        return imageContainsCatAsync(null, image, confidenceThreshold, executor);
+    }
+
+    /**
+     * @param cameraId Passed on to the delegate, or null if the frame came without one
+     */
+    @Override
+    public boolean imageContainsCat(String cameraId, BufferedImage image, float confidenceThreshold) {
+        if (image != null) {
+            CacheKey key = new CacheKey(differenceHash(image), confidenceThreshold);
+            Boolean cached = lookup(key);
+            if (cached != null) {
+                return cached;
+            }
+            boolean verdict = cameraId == null ? delegate.imageContainsCat(image, confidenceThreshold)
+                    : CameraImageService.analyze(delegate, cameraId, image, confidenceThreshold);
+            store(key, verdict);
+            return verdict;
+        }
+        return cameraId == null ? delegate.imageContainsCat(null, confidenceThreshold)
+                : CameraImageService.analyze(delegate, cameraId, null, confidenceThreshold);
+    }
+
+    /**
+     * @param cameraId Passed on to the delegate, or null if the frame came without one
+     */
+    @Override
+    public CompletableFuture<Boolean> imageContainsCatAsync(String cameraId, BufferedImage image, float confidenceThreshold,
+                                                            Executor executor) {
+        CacheKey key = null;
+        if (image != null) {
+            key = new CacheKey(differenceHash(image), confidenceThreshold);
+            Boolean cached = lookup(key);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(cached);
+            }
+        }
+        CompletableFuture<Boolean> analysis = cameraId == null
+                ? delegate.imageContainsCatAsync(image, confidenceThreshold, executor)
+                : CameraImageService.analyzeAsync(delegate, cameraId, image, confidenceThreshold, executor);
+        if (key != null) {
+            CacheKey stored = key;
+            analysis.thenAccept(verdict -> store(stored, verdict));
+        }
+        return analysis;
+    }
+
+    private Boolean lookup(CacheKey key) {
+        synchronized (cache) {
+            CachedVerdict cached = cache.get(key);
+            if (cached != null) {
+                if (System.nanoTime() - cached.storedAt() < timeToLiveNanos) {
+                    hits.increment();
+                    return cached.verdict();
+                }
+                cache.remove(key);
+                evictions.increment();
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    private void store(CacheKey key, boolean verdict) {
+        synchronized (cache) {
+            cache.put(key, new CachedVerdict(verdict, System.nanoTime()));
+        }
+    }
+
+    /**
+     * Computes the 64 bit difference hash of an image.
+     */
+    static long differenceHash(BufferedImage image) {
+        int[] pixels = Luminance.downsample(image, HASH_WIDTH, HASH_HEIGHT);
+        long hash = 0;
+        for (int y = 0; y < HASH_HEIGHT; y++) {
+            for (int x = 0; x < HASH_WIDTH - 1; x++) {
+                int left = pixels[y * HASH_WIDTH + x];
+                int right = pixels[y * HASH_WIDTH + x + 1];
+                hash = (hash << 1) | (left > right ? 1 : 0);
+            }
+        }
+        return hash;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns the share of lookups answered from the cache, between 0 and 1.
+     */
+    public double getHitRate() {
+        long hitCount = getHitCount();
+        long total = hitCount + getMissCount();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * Publishes the cache's counts in the registry.
+     */
+    public void registerMetrics(MetricsRegistry registry) {
+        if (!registry.isEnabled()) {
+            return;
+        }
+        registry.gauge("image.cache.hits", this::getHitCount);
+        registry.gauge("image.cache.misses", this::getMissCount);
+        registry.gauge("image.cache.evictions", this::getEvictionCount);
+        registry.gauge("image.cache.size", this::size);
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    private record CacheKey(long hash, float confidenceThreshold) {
+    }
+
+    private record CachedVerdict(boolean verdict, long storedAt) {
+    }
+}
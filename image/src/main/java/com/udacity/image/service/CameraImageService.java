@@ -0,0 +1,70 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.image.service;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * An image service that keeps state per camera, for example to compare a frame with the frames the
+ * same camera sent before. Decorators in front of such a service implement it as well, so the
+ * camera id reaches it. Callers that know where a frame came from go through
+ * {@link #analyze(ImageService, String, BufferedImage, float)}, which works for any service.
+ */
+public interface CameraImageService extends ImageService {
+
+    /**
+     * Variant of {@link #imageContainsCat(BufferedImage, float)} for a frame from the given camera.
+     */
+    boolean imageContainsCat(String cameraId, BufferedImage image, float confidenceThreshold);
+
+    /**
+     * Variant of {@link #imageContainsCatAsync(BufferedImage, float, Executor)} for a frame from
+     * the given camera.
+     */
+    CompletableFuture<Boolean> imageContainsCatAsync(String cameraId, BufferedImage image, float confidenceThreshold,
+                                                     Executor executor);
+
+    /**
+     * Asks the service about a frame from the given camera, passing the camera id on if the
+     * service keeps state per camera.
+     */
+    static boolean analyze(ImageService service, String cameraId, BufferedImage image, float confidenceThreshold) {
+        return service instanceof CameraImageService cameras
+                ? cameras.imageContainsCat(cameraId, image, confidenceThreshold)
+                : service.imageContainsCat(image, confidenceThreshold);
+    }
+
+    /**
+     * Asynchronous variant of {@link #analyze(ImageService, String, BufferedImage, float)}.
+     */
+    static CompletableFuture<Boolean> analyzeAsync(ImageService service, String cameraId, BufferedImage image,
+                                                   float confidenceThreshold, Executor executor) {
+        return service instanceof CameraImageService cameras
+                ? cameras.imageContainsCatAsync(cameraId, image, confidenceThreshold, executor)
+                : service.imageContainsCatAsync(image, confidenceThreshold, executor);
+    }
+}
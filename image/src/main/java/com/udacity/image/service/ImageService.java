@@ -25,7 +25,22 @@
 package com.udacity.image.service;
 
 import java.awt.image.BufferedImage;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 public interface ImageService {
     boolean imageContainsCat(BufferedImage image, float confidenceThreshold);
+
+    /**
+     * Asynchronous variant of {@link #imageContainsCat(BufferedImage, float)} that runs the analysis
+     * on the given executor. Cancelling the returned future before the analysis started skips it.
+     *
+     * @param image               Image to scan
+     * @param confidenceThreshold Minimum confidence to consider for cat
+     * @param executor            Executor to run the analysis on
+     * @return Future completed with true if the image contains a cat
+     */
+    default CompletableFuture<Boolean> imageContainsCatAsync(BufferedImage image, float confidenceThreshold, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> imageContainsCat(image, confidenceThreshold), executor);
+    }
 }
@@ -0,0 +1,95 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.image.service;
+
+import com.udacity.metrics.LatencyHistogram;
+import com.udacity.metrics.MetricsRegistry;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Image service decorator that records how long detections take, from the call until the verdict
+ * is known. Asynchronous detections include the time spent waiting for an executor thread.
+ * Camera ids are passed on to the delegate.
+ */
+public class InstrumentedImageService implements CameraImageService {
+
+    private final ImageService delegate;
+    private final LatencyHistogram latency;
+
+    private InstrumentedImageService(ImageService delegate, LatencyHistogram latency) {
+        this.delegate = delegate;
+        this.latency = latency;
+    }
+
+    /**
+     * Returns the service itself if the registry is disabled, so there is no overhead at all,
+     * otherwise a decorator recording into the histogram with the given name.
+     */
+    public static ImageService wrap(ImageService delegate, MetricsRegistry registry, String name) {
+        if (!registry.isEnabled()) {
+            return delegate;
+        }
+        return new InstrumentedImageService(delegate, registry.histogram(name));
+    }
+
+    @Override
+    public boolean imageContainsCat(BufferedImage image, float confidenceThreshold) {
+        long start = System.nanoTime();
+        try {
+            return delegate.imageContainsCat(image, confidenceThreshold);
+        } finally {
+            latency.recordSince(start);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> imageContainsCatAsync(BufferedImage image, float confidenceThreshold, Executor executor) {
+        return record(System.nanoTime(), delegate.imageContainsCatAsync(image, confidenceThreshold, executor));
+    }
+
+    @Override
+    public boolean imageContainsCat(String cameraId, BufferedImage image, float confidenceThreshold) {
+        long start = System.nanoTime();
+        try {
+            return CameraImageService.analyze(delegate, cameraId, image, confidenceThreshold);
+        } finally {
+            latency.recordSince(start);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> imageContainsCatAsync(String cameraId, BufferedImage image, float confidenceThreshold,
+                                                            Executor executor) {
+        return record(System.nanoTime(), CameraImageService.analyzeAsync(delegate, cameraId, image, confidenceThreshold, executor));
+    }
+
+    private CompletableFuture<Boolean> record(long start, CompletableFuture<Boolean> analysis) {
+        analysis.whenComplete((verdict, t) -> latency.recordSince(start));
+        return analysis;
+    }
+}
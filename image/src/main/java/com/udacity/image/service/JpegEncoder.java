@@ -0,0 +1,209 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.image.service;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStreamImpl;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Encodes images as JPEG while reusing as much as possible between calls. Each thread keeps its own
+ * {@link ImageWriter}, write parameters, output buffer and scratch image, so the service registry
+ * lookup done by {@link ImageIO#write} and the growing and copying of a
+ * {@link java.io.ByteArrayOutputStream} only happen once per thread. The only allocation per
+ * image is the exactly sized result array.
+ * <p>
+ * Images can optionally be scaled down before encoding. Detectors gain nothing from more pixels
+ * than they analyze, and smaller images are cheaper to encode and upload.
+ */
+public class JpegEncoder {
+
+    public static final float DEFAULT_QUALITY = 0.75f;
+
+    private final float quality;
+    private final int maxDimension;
+    private final ThreadLocal<EncoderState> state = ThreadLocal.withInitial(EncoderState::new);
+
+    public JpegEncoder() {
+        this(DEFAULT_QUALITY, 0);
+    }
+
+    /**
+     * @param quality      JPEG compression quality between 0 and 1
+     * @param maxDimension Images wider or taller than this are scaled down to fit, 0 disables scaling
+     */
+    public JpegEncoder(float quality, int maxDimension) {
+        if (quality < 0 || quality > 1) {
+            throw new IllegalArgumentException("quality must be between 0 and 1");
+        }
+        if (maxDimension < 0) {
+            throw new IllegalArgumentException("maxDimension must not be negative");
+        }
+        this.quality = quality;
+        this.maxDimension = maxDimension;
+    }
+
+    /**
+     * Encodes the image as JPEG.
+     *
+     * @return A new array holding exactly the encoded bytes. The caller owns it and may hand it
+     * on without copying.
+     */
+    public byte[] encode(BufferedImage image) throws IOException {
+        EncoderState encoder = state.get();
+        BufferedImage source = encoder.prepare(image, maxDimension);
+        encoder.output.clear();
+        encoder.param.setCompressionQuality(quality);
+        encoder.writer.setOutput(encoder.output);
+        try {
+            encoder.writer.write(null, new IIOImage(source, null, null), encoder.param);
+        } finally {
+            encoder.writer.setOutput(null);
+        }
+        return encoder.output.toByteArray();
+    }
+
+    /**
+     * Everything a thread reuses between encodings.
+     */
+    private static class EncoderState {
+        private final ImageWriter writer;
+        private final ImageWriteParam param;
+        private final GrowableImageOutputStream output = new GrowableImageOutputStream();
+        private BufferedImage scratch;
+
+        EncoderState() {
+            Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpg");
+            if (!writers.hasNext()) {
+                throw new IllegalStateException("No JPEG writer available");
+            }
+            writer = writers.next();
+            param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        }
+
+        /**
+         * Returns the image itself if the JPEG writer can take it as is, otherwise draws it into a
+         * reused RGB scratch image, scaled down to fit maxDimension.
+         */
+        BufferedImage prepare(BufferedImage image, int maxDimension) {
+            int width = image.getWidth();
+            int height = image.getHeight();
+            int largest = Math.max(width, height);
+            if (maxDimension > 0 && largest > maxDimension) {
+                width = Math.max(1, Math.round((float) width * maxDimension / largest));
+                height = Math.max(1, Math.round((float) height * maxDimension / largest));
+            } else if (!image.getColorModel().hasAlpha()) {
+                return image;
+            }
+            if (scratch == null || scratch.getWidth() != width || scratch.getHeight() != height) {
+                scratch = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            }
+            Graphics2D g = scratch.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(image, 0, 0, width, height, null);
+            g.dispose();
+            return scratch;
+        }
+    }
+
+    /**
+     * In-memory image output stream over a byte array that is kept and grown between uses,
+     * unlike {@link javax.imageio.stream.MemoryCacheImageOutputStream} which allocates its cache
+     * for every image.
+     */
+    private static class GrowableImageOutputStream extends ImageOutputStreamImpl {
+        private byte[] buffer = new byte[64 * 1024];
+        private int length;
+
+        void clear() {
+            streamPos = 0;
+            flushedPos = 0;
+            bitOffset = 0;
+            length = 0;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, length);
+        }
+
+        private void ensureCapacity(long capacity) {
+            if (capacity > buffer.length) {
+                if (capacity > Integer.MAX_VALUE - 8) {
+                    throw new IllegalStateException("Encoded image too large");
+                }
+                buffer = Arrays.copyOf(buffer, (int) Math.max(capacity, Math.min(Integer.MAX_VALUE - 8, buffer.length * 2L)));
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            flushBits();
+            ensureCapacity(streamPos + 1);
+            buffer[(int) streamPos++] = (byte) b;
+            length = (int) Math.max(length, streamPos);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            flushBits();
+            ensureCapacity(streamPos + len);
+            System.arraycopy(b, off, buffer, (int) streamPos, len);
+            streamPos += len;
+            length = (int) Math.max(length, streamPos);
+        }
+
+        @Override
+        public int read() {
+            bitOffset = 0;
+            return streamPos < length ? buffer[(int) streamPos++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            bitOffset = 0;
+            if (streamPos >= length) {
+                return -1;
+            }
+            int count = (int) Math.min(len, length - streamPos);
+            System.arraycopy(buffer, (int) streamPos, b, off, count);
+            streamPos += count;
+            return count;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.image.service;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * Image service that recognizes cats on the local CPU, without any network round trip.
+ * <p>
+ * Images are shrunk to a 64x64 gray window and described by a histogram of oriented gradients
+ * (HOG): 8x8 pixel cells with 9 unsigned orientation bins, normalized over overlapping blocks of
+ * 2x2 cells (L2-Hys), giving 1764 features. A logistic regression model turns the features into
+ * the probability that the image shows a cat, and the image contains a cat if that probability,
+ * as a percentage, reaches the confidence threshold.
+ * <p>
+ * The model is read from a binary file, big-endian as written by {@link java.io.DataOutputStream}:
+ * <pre>
+ * int   magic, 0x484F4731 ("HOG1")
+ * int   number of features, must be 1764
+ * float bias
+ * float weights[number of features]
+ * </pre>
+ * A model trained with {@link LocalModelTrainer} is bundled as {@value #DEFAULT_MODEL_RESOURCE}. It
+ * was only trained on the sample images of the project, so it tells those apart but should be
+ * retrained on labelled snapshots of the actual cameras before it is relied on.
+ */
+public class LocalImageService implements ImageService {
+
+    public static final String DEFAULT_MODEL_RESOURCE = "cat-classifier.model";
+
+    static final int WINDOW_SIZE = 64;
+    static final int CELL_SIZE = 8;
+    static final int BINS = 9;
+    static final int CELLS = WINDOW_SIZE / CELL_SIZE;
+    static final int BLOCKS = CELLS - 1;
+    static final int FEATURE_COUNT = BLOCKS * BLOCKS * 4 * BINS;
+
+    static final int MAGIC = 0x484F4731;
+    private static final float L2_HYS_CLIP = 0.2f;
+    private static final float EPSILON = 1e-6f;
+
+    final float bias;
+    final float[] weights;
+
+    /**
+     * Loads the bundled model, {@value #DEFAULT_MODEL_RESOURCE} on the class path.
+     */
+    public LocalImageService() {
+        this(loadDefaultModel());
+    }
+
+    /**
+     * Loads the model from the given stream, which is left open.
+     */
+    public LocalImageService(InputStream model) throws IOException {
+        this(readModel(model));
+    }
+
+    public LocalImageService(float bias, float[] weights) {
+        this(new Model(bias, weights.clone()));
+    }
+
+    private LocalImageService(Model model) {
+        if (model.weights().length != FEATURE_COUNT) {
+            throw new IllegalArgumentException("Expected " + FEATURE_COUNT + " weights, got " + model.weights().length);
+        }
+        this.bias = model.bias();
+        this.weights = model.weights();
+    }
+
+    @Override
+    public boolean imageContainsCat(BufferedImage image, float confidenceThreshhold) {
+        return catConfidence(image) >= confidenceThreshhold;
+    }
+
+    /**
+     * Returns how confident the model is that the image shows a cat, between 0 and 100.
+     */
+    public float catConfidence(BufferedImage image) {
+        float score = bias + dot(weights, features(image));
+        return 100f / (1f + (float) Math.exp(-score));
+    }
+
+    /**
+     * Computes the HOG descriptor of an image.
+     */
+    static float[] features(BufferedImage image) {
+        int[] pixels = Luminance.downsample(image, WINDOW_SIZE, WINDOW_SIZE);
+        float[] cells = new float[CELLS * CELLS * BINS];
+        float binWidth = (float) Math.PI / BINS;
+        for (int y = 0; y < WINDOW_SIZE; y++) {
+            int up = y == 0 ? 0 : y - 1;
+            int down = y == WINDOW_SIZE - 1 ? y : y + 1;
+            for (int x = 0; x < WINDOW_SIZE; x++) {
+                int left = x == 0 ? 0 : x - 1;
+                int right = x == WINDOW_SIZE - 1 ? x : x + 1;
+                float gx = pixels[y * WINDOW_SIZE + right] - pixels[y * WINDOW_SIZE + left];
+                float gy = pixels[down * WINDOW_SIZE + x] - pixels[up * WINDOW_SIZE + x];
+                float magnitude = (float) Math.sqrt(gx * gx + gy * gy);
+                if (magnitude == 0) {
+                    continue;
+                }
+                //unsigned orientation in [0, pi), the vote is split between the two nearest bins
+                float angle = (float) Math.atan2(gy, gx);
+                if (angle < 0) {
+                    angle += (float) Math.PI;
+                }
+                float position = angle / binWidth - 0.5f;
+                int lower = (int) Math.floor(position);
+                float upperShare = position - lower;
+                int cell = ((y / CELL_SIZE) * CELLS + x / CELL_SIZE) * BINS;
+                cells[cell + Math.floorMod(lower, BINS)] += magnitude * (1 - upperShare);
+                cells[cell + Math.floorMod(lower + 1, BINS)] += magnitude * upperShare;
+            }
+        }
+
+        float[] features = new float[FEATURE_COUNT];
+        int offset = 0;
+        for (int blockY = 0; blockY < BLOCKS; blockY++) {
+            for (int blockX = 0; blockX < BLOCKS; blockX++) {
+                for (int cellY = blockY; cellY < blockY + 2; cellY++) {
+                    System.arraycopy(cells, (cellY * CELLS + blockX) * BINS, features, offset, 2 * BINS);
+                    offset += 2 * BINS;
+                }
+                normalizeBlock(features, offset - 4 * BINS, 4 * BINS);
+            }
+        }
+        return features;
+    }
+
+    /**
+     * L2-Hys: normalizes to unit length, clips large components and normalizes again, so a single
+     * strong edge cannot dominate the block.
+     */
+    private static void normalizeBlock(float[] features, int from, int length) {
+        scale(features, from, length, 1 / (float) Math.sqrt(sumOfSquares(features, from, length) + EPSILON));
+        for (int i = from; i < from + length; i++) {
+            features[i] = Math.min(features[i], L2_HYS_CLIP);
+        }
+        scale(features, from, length, 1 / (float) Math.sqrt(sumOfSquares(features, from, length) + EPSILON));
+    }
+
+    private static float sumOfSquares(float[] values, int from, int length) {
+        float sum = 0;
+        for (int i = from; i < from + length; i++) {
+            sum += values[i] * values[i];
+        }
+        return sum;
+    }
+
+    private static void scale(float[] values, int from, int length, float factor) {
+        for (int i = from; i < from + length; i++) {
+            values[i] *= factor;
+        }
+    }
+
+    /**
+     * Dot product with four independent accumulators. A single float accumulator forces every
+     * addition to wait for the previous one, as the JIT may not reorder floating point sums.
+     */
+    static float dot(float[] a, float[] b) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < a.length; i += 4) {
+            s0 += a[i] * b[i];
+            s1 += a[i + 1] * b[i + 1];
+            s2 += a[i + 2] * b[i + 2];
+            s3 += a[i + 3] * b[i + 3];
+        }
+        for (; i < a.length; i++) {
+            s0 += a[i] * b[i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    private static Model loadDefaultModel() {
+        InputStream is = LocalImageService.class.getClassLoader().getResourceAsStream(DEFAULT_MODEL_RESOURCE);
+        if (is == null) {
+            throw new IllegalStateException("Classifier model " + DEFAULT_MODEL_RESOURCE + " not found on the class path");
+        }
+        try (is) {
+            return readModel(is);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Unable to read classifier model", ioe);
+        }
+    }
+
+    private static Model readModel(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a classifier model");
+        }
+        int count = in.readInt();
+        if (count != FEATURE_COUNT) {
+            throw new IOException("Expected " + FEATURE_COUNT + " weights, got " + count);
+        }
+        float bias = in.readFloat();
+        float[] weights = new float[count];
+        for (int i = 0; i < count; i++) {
+            weights[i] = in.readFloat();
+        }
+        return new Model(bias, weights);
+    }
+
+    private record Model(float bias, float[] weights) {
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.image.service;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Trains the logistic regression model of the {@link LocalImageService} on labelled images:
+ * <pre>
+ * LocalModelTrainer --out=FILE --cat=PATH... --other=PATH... [--iterations=N] [--l2=LAMBDA]
+ *   --out=FILE        model file to write
+ *   --cat=PATH        image, or directory of images, showing a cat, may be repeated
+ *   --other=PATH      image, or directory of images, without a cat, may be repeated
+ *   --iterations=N    gradient descent steps, defaults to 500
+ *   --l2=LAMBDA       weight decay, defaults to 0.001
+ * </pre>
+ * Every image is also learned mirrored and cropped at its corners and center, so the model does
+ * not depend on the exact framing. Training is plain full-batch gradient descent starting from
+ * zero, with both classes weighted equally, so the same images always give the same model.
+ */
+public class LocalModelTrainer {
+
+    static final int DEFAULT_ITERATIONS = 500;
+    static final float DEFAULT_L2 = 0.001f;
+
+    private static final float LEARNING_RATE = 1f;
+    private static final float CROP = 0.85f;
+
+    private final List<float[]> cats = new ArrayList<>();
+    private final List<float[]> others = new ArrayList<>();
+
+    public static void main(String[] args) throws IOException {
+        LocalModelTrainer trainer = new LocalModelTrainer();
+        Path out = null;
+        int iterations = DEFAULT_ITERATIONS;
+        float l2 = DEFAULT_L2;
+        for (String arg : args) {
+            String[] option = arg.replaceFirst("^--", "").split("=", 2);
+            String value = option.length > 1 ? option[1] : "";
+            switch (option[0]) {
+                case "out" -> out = Paths.get(value);
+                case "cat" -> trainer.addImages(Paths.get(value), true);
+                case "other" -> trainer.addImages(Paths.get(value), false);
+                case "iterations" -> iterations = Integer.parseInt(value);
+                case "l2" -> l2 = Float.parseFloat(value);
+                default -> throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        if (out == null || trainer.cats.isEmpty() || trainer.others.isEmpty()) {
+            System.err.println("Usage: LocalModelTrainer --out=FILE --cat=PATH... --other=PATH... [--iterations=N] [--l2=LAMBDA]");
+            System.exit(2);
+        }
+
+        LocalImageService model = trainer.train(iterations, l2);
+        try (OutputStream os = Files.newOutputStream(out)) {
+            write(model, os);
+        }
+        System.out.printf("Trained on %d cat and %d other samples, written to %s%n", trainer.cats.size(), trainer.others.size(), out);
+    }
+
+    /**
+     * Adds an image, or every readable image in a directory, with all its variants.
+     */
+    void addImages(Path path, boolean cat) throws IOException {
+        List<Path> files;
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> children = Files.list(path)) {
+                files = children.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+            }
+        } else {
+            files = List.of(path);
+        }
+        for (Path file : files) {
+            BufferedImage image = ImageIO.read(file.toFile());
+            if (image == null) {
+                System.err.println("Skipping " + file + ", not an image");
+                continue;
+            }
+            addImage(image, cat);
+        }
+    }
+
+    void addImage(BufferedImage image, boolean cat) {
+        List<float[]> samples = cat ? cats : others;
+        for (BufferedImage variant : variants(image)) {
+            samples.add(LocalImageService.features(variant));
+        }
+    }
+
+    /**
+     * Fits the model by minimizing the class-weighted log loss plus an L2 penalty on the weights.
+     */
+    LocalImageService train(int iterations, float l2) {
+        int count = LocalImageService.FEATURE_COUNT;
+        float[] weights = new float[count];
+        float bias = 0;
+        float[] gradient = new float[count];
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            for (int i = 0; i < count; i++) {
+                gradient[i] = l2 * weights[i];
+            }
+            float biasGradient = accumulate(cats, 1, weights, bias, gradient)
+                    + accumulate(others, 0, weights, bias, gradient);
+            for (int i = 0; i < count; i++) {
+                weights[i] -= LEARNING_RATE * gradient[i];
+            }
+            bias -= LEARNING_RATE * biasGradient;
+        }
+        return new LocalImageService(bias, weights);
+    }
+
+    /**
+     * Adds the log loss gradient of one class, averaged over its samples and halved so both classes
+     * weigh the same, and returns its share of the bias gradient.
+     */
+    private static float accumulate(List<float[]> samples, float label, float[] weights, float bias, float[] gradient) {
+        float share = 0.5f / samples.size();
+        float biasGradient = 0;
+        for (float[] features : samples) {
+            float probability = 1f / (1f + (float) Math.exp(-(bias + LocalImageService.dot(weights, features))));
+            float error = (probability - label) * share;
+            for (int i = 0; i < features.length; i++) {
+                gradient[i] += error * features[i];
+            }
+            biasGradient += error;
+        }
+        return biasGradient;
+    }
+
+    /**
+     * The image itself and cropped at its four corners and its center, each also mirrored.
+     */
+    static List<BufferedImage> variants(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int cropWidth = Math.max(1, (int) (width * CROP));
+        int cropHeight = Math.max(1, (int) (height * CROP));
+        List<BufferedImage> variants = new ArrayList<>();
+        variants.add(image);
+        variants.add(image.getSubimage(0, 0, cropWidth, cropHeight));
+        variants.add(image.getSubimage(width - cropWidth, 0, cropWidth, cropHeight));
+        variants.add(image.getSubimage(0, height - cropHeight, cropWidth, cropHeight));
+        variants.add(image.getSubimage(width - cropWidth, height - cropHeight, cropWidth, cropHeight));
+        variants.add(image.getSubimage((width - cropWidth) / 2, (height - cropHeight) / 2, cropWidth, cropHeight));
+        for (int i = 0, n = variants.size(); i < n; i++) {
+            variants.add(mirror(variants.get(i)));
+        }
+        return variants;
+    }
+
+    private static BufferedImage mirror(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        BufferedImage mirrored = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                mirrored.setRGB(width - 1 - x, y, image.getRGB(x, y));
+            }
+        }
+        return mirrored;
+    }
+
+    /**
+     * Writes a model in the format read by {@link LocalImageService#LocalImageService(java.io.InputStream)}.
+     */
+    static void write(LocalImageService model, OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+        out.writeInt(LocalImageService.MAGIC);
+        out.writeInt(model.weights.length);
+        out.writeFloat(model.bias);
+        for (float weight : model.weights) {
+            out.writeFloat(weight);
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.image.service;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Helpers for turning images into small gray-level grids, for fingerprints and local features.
+ */
+final class Luminance {
+
+    private Luminance() {
+    }
+
+    /**
+     * Shrinks an image to the given size and returns its gray levels (0-255) in row-major order.
+     * Every cell is the mean of the source pixels it covers, so noise averages out instead of a
+     * few sampled pixels deciding the result. A source smaller than the grid repeats its pixels.
+     */
+    static int[] downsample(BufferedImage image, int width, int height) {
+        int sourceWidth = image.getWidth();
+        int sourceHeight = image.getHeight();
+        int[] gray = image.getRGB(0, 0, sourceWidth, sourceHeight, null, 0, sourceWidth);
+        for (int i = 0; i < gray.length; i++) {
+            int rgb = gray[i];
+            //ITU-R BT.601 luma
+            gray[i] = (299 * ((rgb >> 16) & 0xFF) + 587 * ((rgb >> 8) & 0xFF) + 114 * (rgb & 0xFF)) / 1000;
+        }
+
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            int top = y * sourceHeight / height;
+            int bottom = Math.max(top + 1, (y + 1) * sourceHeight / height);
+            for (int x = 0; x < width; x++) {
+                int left = x * sourceWidth / width;
+                int right = Math.max(left + 1, (x + 1) * sourceWidth / width);
+                long sum = 0;
+                for (int sy = top; sy < bottom; sy++) {
+                    for (int sx = left; sx < right; sx++) {
+                        sum += gray[sy * sourceWidth + sx];
+                    }
+                }
+                pixels[y * width + x] = (int) (sum / ((long) (bottom - top) * (right - left)));
+            }
+        }
+        return pixels;
+    }
+}
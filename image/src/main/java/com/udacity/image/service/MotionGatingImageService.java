@@ -0,0 +1,244 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.image.service;
+
+import com.udacity.metrics.MetricsRegistry;
+
+import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Image service decorator that only asks the delegate about frames that differ noticeably from
+ * what the camera usually sees. Frames without motion reuse the previous verdict.
+ * <p>
+ * Every frame is shrunk to a 32x24 luminance grid and compared against a background model: the
+ * last frame with motion, slowly blended with the frames seen since so gradual lighting changes do
+ * not count as motion. The grid is split into 8x6 blocks of 4x4 cells, and a block
+ * counts as changed when its mean absolute difference from the background exceeds a threshold
+ * derived from the sensitivity. A frame is forwarded if any block changed, if there is no
+ * verdict for the current background yet, or if it is checked against a different confidence
+ * threshold. Motion discards the previous verdict, so frames are forwarded until the delegate
+ * answered for the new scene, and a failed call leaves the next frame to be forwarded as well.
+ * <p>
+ * The background and verdict are kept per camera, for the {@value #MAX_CAMERAS} most recently
+ * seen cameras. Frames passed without a camera id share one entry.
+ */
+public class MotionGatingImageService implements CameraImageService {
+
+    public static final float DEFAULT_SENSITIVITY = 0.5f;
+    public static final int MAX_CAMERAS = 1024;
+
+    private static final String NO_CAMERA = "";
+    private static final int GRID_WIDTH = 32;
+    private static final int GRID_HEIGHT = 24;
+    private static final int BLOCK_SIZE = 4;
+    private static final float BACKGROUND_LEARNING_RATE = 0.1f;
+
+    private final ImageService delegate;
+    private final float blockThreshold;
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    //guarded by this, least recently seen camera first
+    private final Map<String, CameraState> cameras = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CameraState> eldest) {
+            return size() > MAX_CAMERAS;
+        }
+    };
+
+    public MotionGatingImageService(ImageService delegate) {
+        this(delegate, DEFAULT_SENSITIVITY);
+    }
+
+    /**
+     * @param delegate    Service asked about frames with motion
+     * @param sensitivity Between 0 and 1. At 1 a mean change of 5 gray levels in any block is
+     *                    treated as motion, at 0 it takes a change of 50 gray levels.
+     */
+    public MotionGatingImageService(ImageService delegate, float sensitivity) {
+        if (sensitivity < 0 || sensitivity > 1) {
+            throw new IllegalArgumentException("sensitivity must be between 0 and 1");
+        }
+        this.delegate = delegate;
+        this.blockThreshold = 5 + (1 - sensitivity) * 45;
+    }
+
+    @Override
+    public boolean imageContainsCat(BufferedImage image, float confidenceThreshold) {
+        return imageContainsCat(NO_CAMERA, image, confidenceThreshold);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> imageContainsCatAsync(BufferedImage image, float confidenceThreshold, Executor executor) {
+        return imageContainsCatAsync(NO_CAMERA, image, confidenceThreshold, executor);
+    }
+
+    @Override
+    public boolean imageContainsCat(String cameraId, BufferedImage image, float confidenceThreshold) {
+        Gate gate = gate(cameraId, image, confidenceThreshold);
+        if (gate.verdict() != null) {
+            return gate.verdict();
+        }
+        boolean verdict = CameraImageService.analyze(delegate, cameraId, image, confidenceThreshold);
+        remember(gate, verdict, confidenceThreshold);
+        return verdict;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> imageContainsCatAsync(String cameraId, BufferedImage image, float confidenceThreshold,
+                                                            Executor executor) {
+        Gate gate = gate(cameraId, image, confidenceThreshold);
+        if (gate.verdict() != null) {
+            return CompletableFuture.completedFuture(gate.verdict());
+        }
+        CompletableFuture<Boolean> analysis = CameraImageService.analyzeAsync(delegate, cameraId, image, confidenceThreshold, executor);
+        analysis.thenAccept(verdict -> remember(gate, verdict, confidenceThreshold));
+        return analysis;
+    }
+
+    /**
+     * Feeds the frame into the camera's background model and decides whether it is forwarded.
+     */
+    private Gate gate(String cameraId, BufferedImage image, float confidenceThreshold) {
+        if (image == null) {
+            forwarded.increment();
+            return new Gate(null, -1, null);
+        }
+        int[] frame = Luminance.downsample(image, GRID_WIDTH, GRID_HEIGHT);
+        synchronized (this) {
+            CameraState state = cameras.computeIfAbsent(cameraId, id -> new CameraState());
+            if (updateBackground(state, frame)) {
+                //the scene changed, the verdict for the old one must not be reused
+                state.verdict = null;
+                state.generation++;
+            }
+            if (state.verdict == null || state.confidenceThreshold != confidenceThreshold) {
+                forwarded.increment();
+                return new Gate(state, state.generation, null);
+            }
+            skipped.increment();
+            return new Gate(state, state.generation, state.verdict);
+        }
+    }
+
+    /**
+     * Keeps the delegate's verdict for reuse, unless the camera saw motion since the frame was
+     * forwarded.
+     */
+    private synchronized void remember(Gate gate, boolean verdict, float confidenceThreshold) {
+        CameraState state = gate.state();
+        if (state != null && state.generation == gate.generation()) {
+            state.verdict = verdict;
+            state.confidenceThreshold = confidenceThreshold;
+        }
+    }
+
+    /**
+     * Compares the frame against the background. Frames with motion replace the background, other
+     * frames are blended into it.
+     *
+     * @return True if there was no background yet or any block differs from it by more than the
+     * threshold
+     */
+    private boolean updateBackground(CameraState state, int[] frame) {
+        float[] background = state.background;
+        if (background == null) {
+            state.background = new float[frame.length];
+            for (int i = 0; i < frame.length; i++) {
+                state.background[i] = frame[i];
+            }
+            return true;
+        }
+        boolean motion = false;
+        float blockLimit = blockThreshold * BLOCK_SIZE * BLOCK_SIZE;
+        for (int blockY = 0; blockY < GRID_HEIGHT; blockY += BLOCK_SIZE) {
+            for (int blockX = 0; blockX < GRID_WIDTH; blockX += BLOCK_SIZE) {
+                float difference = 0;
+                for (int y = blockY; y < blockY + BLOCK_SIZE; y++) {
+                    for (int x = blockX; x < blockX + BLOCK_SIZE; x++) {
+                        difference += Math.abs(frame[y * GRID_WIDTH + x] - background[y * GRID_WIDTH + x]);
+                    }
+                }
+                motion |= difference > blockLimit;
+            }
+        }
+        float learningRate = motion ? 1 : BACKGROUND_LEARNING_RATE;
+        for (int i = 0; i < frame.length; i++) {
+            background[i] += learningRate * (frame[i] - background[i]);
+        }
+        return motion;
+    }
+
+    /**
+     * Publishes how many frames were forwarded and skipped in the registry.
+     */
+    public void registerMetrics(MetricsRegistry registry) {
+        if (!registry.isEnabled()) {
+            return;
+        }
+        registry.gauge("image.motion.forwarded", this::getForwardedCount);
+        registry.gauge("image.motion.skipped", this::getSkippedCount);
+    }
+
+    /**
+     * Returns the number of frames that were sent to the delegate.
+     */
+    public long getForwardedCount() {
+        return forwarded.sum();
+    }
+
+    /**
+     * Returns the number of frames answered with the previous verdict.
+     */
+    public long getSkippedCount() {
+        return skipped.sum();
+    }
+
+    /**
+     * Returns the number of cameras whose background is kept.
+     */
+    public synchronized int getCameraCount() {
+        return cameras.size();
+    }
+
+    private static class CameraState {
+        float[] background;
+        Boolean verdict;
+        float confidenceThreshold;
+        //counts the scene changes, so a verdict is only kept for the scene it was asked about
+        long generation;
+    }
+
+    /**
+     * The outcome of gating one frame: the verdict to reuse, or null if it is forwarded, and the
+     * camera's generation at the time.
+     */
+    private record Gate(CameraState state, long generation, Boolean verdict) {
+    }
+}
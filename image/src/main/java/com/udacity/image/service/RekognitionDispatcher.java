@@ -0,0 +1,370 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.image.service;
+
+import com.udacity.metrics.MetricsRegistry;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.rekognition.RekognitionAsyncClient;
+import software.amazon.awssdk.services.rekognition.RekognitionClient;
+import software.amazon.awssdk.services.rekognition.model.DetectLabelsRequest;
+import software.amazon.awssdk.services.rekognition.model.DetectLabelsResponse;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Sends label detection requests to one Rekognition client on behalf of many callers.
+ * <ul>
+ * <li>At most {@code maxConcurrency} requests are sent at the same time, and at most
+ * {@code maxQueued} more may wait for their turn. Requests beyond that are rejected right away
+ * with a {@link RejectedExecutionException} instead of piling up behind a slow service.</li>
+ * <li>A request for a frame that is already being analyzed with the same confidence threshold
+ * shares the result of the request in flight instead of being sent again. Frames are compared
+ * by identity.</li>
+ * <li>Failures the SDK reports as retryable are retried with exponential backoff and full
+ * jitter, up to {@code maxAttempts} attempts in total.</li>
+ * </ul>
+ * With a {@link RekognitionClient} requests are sent on the calling thread, which waits for its
+ * turn. With a {@link RekognitionAsyncClient} no thread is blocked: waiting requests are queued
+ * and sent as soon as a running one completes.
+ * <p>
+ * Closing the dispatcher fails the requests still waiting for their turn or for a retry with a
+ * {@link RejectedExecutionException}, as well as any sent later.
+ */
+public class RekognitionDispatcher implements AutoCloseable {
+
+    public static final int DEFAULT_MAX_CONCURRENCY = 4;
+    public static final int DEFAULT_MAX_QUEUED = 32;
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    private static final long BASE_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 5_000;
+
+    private final RekognitionClient client;
+    private final RekognitionAsyncClient asyncClient;
+    private final int maxConcurrency;
+    private final int maxQueued;
+    private final int maxAttempts;
+    private final Semaphore permits;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Queue<Call> waiting = new ConcurrentLinkedQueue<>();
+    //calls waiting for their retry to be sent, removed by whoever gets to them first
+    private final Set<Call> retrying = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<RequestKey, CompletableFuture<DetectLabelsResponse>> inFlight = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService retryScheduler;
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private volatile boolean closed;
+
+    public RekognitionDispatcher(RekognitionClient client) {
+        this(client, DEFAULT_MAX_CONCURRENCY, DEFAULT_MAX_QUEUED, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    public RekognitionDispatcher(RekognitionClient client, int maxConcurrency, int maxQueued, int maxAttempts) {
+        this(client, null, maxConcurrency, maxQueued, maxAttempts);
+    }
+
+    public RekognitionDispatcher(RekognitionAsyncClient asyncClient, int maxConcurrency, int maxQueued, int maxAttempts) {
+        this(null, asyncClient, maxConcurrency, maxQueued, maxAttempts);
+    }
+
+    private RekognitionDispatcher(RekognitionClient client, RekognitionAsyncClient asyncClient,
+                                  int maxConcurrency, int maxQueued, int maxAttempts) {
+        if (maxConcurrency <= 0 || maxQueued < 0 || maxAttempts <= 0) {
+            throw new IllegalArgumentException("maxConcurrency and maxAttempts must be positive, maxQueued must not be negative");
+        }
+        this.client = client;
+        this.asyncClient = asyncClient;
+        this.maxConcurrency = maxConcurrency;
+        this.maxQueued = maxQueued;
+        this.maxAttempts = maxAttempts;
+        this.permits = new Semaphore(maxConcurrency, true);
+        this.retryScheduler = asyncClient == null ? null
+                : Executors.newSingleThreadScheduledExecutor(ImageServiceExecutors.daemonThreads("rekognition-retry"));
+    }
+
+    /**
+     * Detects labels in the given frame. The request is only built, and the frame only encoded,
+     * if no request for the same frame and threshold is already in flight.
+     *
+     * @param image         The frame, used to recognize duplicate requests
+     * @param minConfidence Minimum confidence requested for labels
+     * @param request       Builds the request to send for this frame
+     * @return Future completed with the response. Cancelling it does not affect other callers
+     * sharing the same request.
+     */
+    public CompletableFuture<DetectLabelsResponse> detectLabels(BufferedImage image, float minConfidence,
+                                                                Supplier<DetectLabelsRequest> request) {
+        RequestKey key = new RequestKey(image, minConfidence);
+        CompletableFuture<DetectLabelsResponse> result = new CompletableFuture<>();
+        CompletableFuture<DetectLabelsResponse> existing = inFlight.putIfAbsent(key, result);
+        if (existing != null) {
+            coalesced.increment();
+            return existing.copy();
+        }
+        result.whenComplete((response, t) -> inFlight.remove(key, result));
+
+        if (closed) {
+            result.completeExceptionally(closedException());
+            return result;
+        }
+        if (pending.incrementAndGet() > maxConcurrency + maxQueued) {
+            pending.decrementAndGet();
+            rejected.increment();
+            result.completeExceptionally(new RejectedExecutionException("Too many Rekognition requests queued"));
+            return result;
+        }
+        Call call;
+        try {
+            call = new Call(request.get(), result);
+        } catch (RuntimeException e) {
+            pending.decrementAndGet();
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        if (asyncClient == null) {
+            sendBlocking(call);
+        } else {
+            waiting.add(call);
+            sendWaiting();
+        }
+        return result.copy();
+    }
+
+    private void sendBlocking(Call call) {
+        try {
+            permits.acquire();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            pending.decrementAndGet();
+            call.result.completeExceptionally(ie);
+            return;
+        }
+        try {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    sent.increment();
+                    call.result.complete(client.detectLabels(call.request));
+                    return;
+                } catch (RuntimeException e) {
+                    if (attempt >= maxAttempts || !retryable(e)) {
+                        call.result.completeExceptionally(e);
+                        return;
+                    }
+                }
+                retried.increment();
+                Thread.sleep(backoffMillis(attempt));
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            call.result.completeExceptionally(ie);
+        } finally {
+            permits.release();
+            pending.decrementAndGet();
+        }
+    }
+
+    /**
+     * Sends waiting requests for as long as there are free permits.
+     */
+    private void sendWaiting() {
+        if (closed) {
+            failWaiting();
+            return;
+        }
+        while (!waiting.isEmpty() && permits.tryAcquire()) {
+            Call call = waiting.poll();
+            if (call == null) {
+                permits.release();
+            } else {
+                sendAsync(call, 1);
+            }
+        }
+    }
+
+    private void sendAsync(Call call, int attempt) {
+        CompletableFuture<DetectLabelsResponse> response;
+        try {
+            sent.increment();
+            response = asyncClient.detectLabels(call.request);
+        } catch (RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        response.whenComplete((labels, t) -> {
+            if (t == null) {
+                finishAsync(call, labels, null);
+                return;
+            }
+            Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+            if (attempt < maxAttempts && retryable(cause) && !closed) {
+                retried.increment();
+                retrying.add(call);
+                try {
+                    retryScheduler.schedule(() -> {
+                        if (retrying.remove(call)) {
+                            sendAsync(call, attempt + 1);
+                        }
+                    }, backoffMillis(attempt), TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    //closed in the meantime
+                    if (retrying.remove(call)) {
+                        finishAsync(call, null, cause);
+                    }
+                }
+            } else {
+                finishAsync(call, null, cause);
+            }
+        });
+    }
+
+    private void finishAsync(Call call, DetectLabelsResponse response, Throwable failure) {
+        permits.release();
+        pending.decrementAndGet();
+        if (failure == null) {
+            call.result.complete(response);
+        } else {
+            call.result.completeExceptionally(failure);
+        }
+        sendWaiting();
+    }
+
+    /**
+     * Fails the calls that wait for a permit, which they do not hold yet.
+     */
+    private void failWaiting() {
+        for (Call call; (call = waiting.poll()) != null; ) {
+            pending.decrementAndGet();
+            call.result.completeExceptionally(closedException());
+        }
+    }
+
+    private static RejectedExecutionException closedException() {
+        return new RejectedExecutionException("Rekognition dispatcher closed");
+    }
+
+    private static boolean retryable(Throwable t) {
+        return (t instanceof SdkException sdkException && sdkException.retryable())
+                || t instanceof IOException || t.getCause() instanceof IOException;
+    }
+
+    /**
+     * Exponential backoff with full jitter: a random delay up to a ceiling that doubles with
+     * every attempt, so callers that failed together do not retry together.
+     */
+    private static long backoffMillis(int attempt) {
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt - 1, 16));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    public boolean isAsync() {
+        return asyncClient != null;
+    }
+
+    /**
+     * Returns the number of requests waiting for a free slot.
+     */
+    public int getQueuedCount() {
+        return Math.max(0, pending.get() - (maxConcurrency - permits.availablePermits()));
+    }
+
+    public long getSentCount() {
+        return sent.sum();
+    }
+
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public long getRetryCount() {
+        return retried.sum();
+    }
+
+    /**
+     * Publishes the dispatcher's counts in the registry.
+     */
+    public void registerMetrics(MetricsRegistry registry) {
+        if (!registry.isEnabled()) {
+            return;
+        }
+        registry.gauge("rekognition.queued", this::getQueuedCount);
+        registry.gauge("rekognition.sent", this::getSentCount);
+        registry.gauge("rekognition.coalesced", this::getCoalescedCount);
+        registry.gauge("rekognition.rejected", this::getRejectedCount);
+        registry.gauge("rekognition.retries", this::getRetryCount);
+    }
+
+    /**
+     * Fails the requests waiting for their turn or for a retry, and closes the client. Requests
+     * already sent complete as the client completes them.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (retryScheduler != null) {
+            retryScheduler.shutdownNow();
+            for (Call call : retrying) {
+                if (retrying.remove(call)) {
+                    finishAsync(call, null, closedException());
+                }
+            }
+        }
+        failWaiting();
+        if (client != null) {
+            client.close();
+        }
+        if (asyncClient != null) {
+            asyncClient.close();
+        }
+    }
+
+    private record RequestKey(BufferedImage image, float minConfidence) {
+    }
+
+    private record Call(DetectLabelsRequest request, CompletableFuture<DetectLabelsResponse> result) {
+    }
+}
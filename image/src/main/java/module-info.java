@@ -5,5 +5,7 @@ module com.udacity.image {
     requires software.amazon.awssdk.regions;
     requires software.amazon.awssdk.services.rekognition;
     requires java.desktop;
+    requires com.udacity.metrics;
     exports com.udacity.image.service;
+    exports com.udacity.image.scan;
 }
\ No newline at end of file
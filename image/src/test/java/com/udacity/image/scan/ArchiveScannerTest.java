@@ -0,0 +1,159 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.image.scan;
+
+import com.udacity.image.service.ImageService;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ArchiveScannerTest {
+
+    private static final int RED = 0xFF0000;
+
+    //red images are cats
+    private static final ImageService RED_IS_CAT = (image, threshold) -> (image.getRGB(0, 0) & 0xFFFFFF) == RED;
+
+    @TempDir
+    Path directory;
+
+    private Path archive;
+    private Path resultsFile;
+
+    private void image(String path, int rgb) throws IOException {
+        BufferedImage image = new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 4; x++) {
+                image.setRGB(x, y, rgb);
+            }
+        }
+        Path file = archive.resolve(path);
+        Files.createDirectories(file.getParent());
+        ImageIO.write(image, "png", file.toFile());
+    }
+
+    private ArchiveScanner.Summary scan(ImageService imageService) throws IOException {
+        return new ArchiveScanner(imageService, 50f, 0, 2, 1).scan(archive, resultsFile);
+    }
+
+    private List<String> lines() throws IOException {
+        return Files.readAllLines(resultsFile, StandardCharsets.UTF_8);
+    }
+
+    private Set<String> listedPaths() throws IOException {
+        return lines().stream().map(line -> line.split("\t", 4)[3]).collect(Collectors.toSet());
+    }
+
+    @Test
+    void resumedScanOnlyCountsNewImages() throws IOException {
+        archive = directory.resolve("archive");
+        resultsFile = directory.resolve("results.tsv");
+        image("a.png", RED);
+        image("sub/b.png", 0x00FF00);
+
+        ArchiveScanner scanner = new ArchiveScanner(RED_IS_CAT, 50f, 0, 2, 1);
+        ArchiveScanner.Summary first = scanner.scan(archive, resultsFile);
+        assertEquals(2, first.scanned());
+        assertEquals(1, first.cats());
+        assertEquals(Set.of("a.png", "sub/b.png"), listedPaths());
+
+        image("sub/c.png", RED);
+        ArchiveScanner.Summary second = scanner.scan(archive, resultsFile);
+        assertEquals(1, second.scanned());
+        assertEquals(2, second.skipped());
+        assertEquals(1, second.cats());
+        assertEquals(1, scanner.getScannedCount());
+        assertEquals(3, lines().size());
+        assertTrue(lines().get(2).startsWith("cat\t") && lines().get(2).endsWith("\tsub/c.png"), lines().get(2));
+    }
+
+    @Test
+    void tornLastLineIsRemovedAndItsImageScannedAgain() throws IOException {
+        archive = directory.resolve("archive");
+        resultsFile = directory.resolve("results.tsv");
+        image("a.png", RED);
+        image("b.png", RED);
+        Files.writeString(resultsFile, "cat\t10\t20\ta.png\nno_cat\t1", StandardCharsets.UTF_8);
+
+        ArchiveScanner.Summary summary = scan(RED_IS_CAT);
+        assertEquals(1, summary.skipped());
+        assertEquals(1, summary.scanned());
+        List<String> lines = lines();
+        assertEquals(2, lines.size());
+        assertEquals("cat\t10\t20\ta.png", lines.get(0));
+        assertTrue(lines.get(1).startsWith("cat\t") && lines.get(1).endsWith("\tb.png"), lines.get(1));
+    }
+
+    @Test
+    void listedPathsAreSkippedEvenWithTabsInTheirNames() throws IOException {
+        archive = directory.resolve("archive");
+        resultsFile = directory.resolve("results.tsv");
+        image("with\ttab.png", RED);
+        image("plain.png", RED);
+        Files.writeString(resultsFile, "no_cat\t1\t2\twith\ttab.png\nno_cat\t1\t2\tplain.png\n", StandardCharsets.UTF_8);
+
+        ArchiveScanner.Summary summary = scan((image, threshold) -> {
+            throw new AssertionError("listed images must not be analyzed");
+        });
+        assertEquals(2, summary.skipped());
+        assertEquals(0, summary.scanned());
+        assertEquals(2, lines().size());
+    }
+
+    @Test
+    void failedDetectionsAreNotWrittenAndRetriedNextTime() throws IOException {
+        archive = directory.resolve("archive");
+        resultsFile = directory.resolve("results.tsv");
+        image("a.png", RED);
+        image("b.png", 0x0000FF);
+
+        ArchiveScanner.Summary failing = scan((image, threshold) -> {
+            if ((image.getRGB(0, 0) & 0xFFFFFF) == RED) {
+                throw new IllegalStateException("service unavailable");
+            }
+            return false;
+        });
+        assertEquals(1, failing.failed());
+        assertEquals(1, failing.scanned());
+        assertEquals(Set.of("b.png"), listedPaths());
+
+        ArchiveScanner.Summary retry = scan(RED_IS_CAT);
+        assertEquals(0, retry.failed());
+        assertEquals(1, retry.scanned());
+        assertEquals(1, retry.cats());
+        assertEquals(Set.of("a.png", "b.png"), listedPaths());
+    }
+}
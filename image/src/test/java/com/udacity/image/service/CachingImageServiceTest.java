@@ -0,0 +1,91 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.image.service;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CachingImageServiceTest {
+
+    private static BufferedImage sample(String name) throws IOException {
+        //the sample images live in the project root
+        return ImageIO.read(Path.of("..", name).toFile());
+    }
+
+    private static BufferedImage withNoise(BufferedImage image, int amplitude) {
+        Random random = new Random(7);
+        BufferedImage noisy = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                int rgb = image.getRGB(x, y);
+                int result = 0;
+                for (int shift = 16; shift >= 0; shift -= 8) {
+                    int channel = (rgb >> shift) & 0xFF;
+                    channel += random.nextInt(2 * amplitude + 1) - amplitude;
+                    result = (result << 8) | Math.max(0, Math.min(255, channel));
+                }
+                noisy.setRGB(x, y, result);
+            }
+        }
+        return noisy;
+    }
+
+    @Test
+    public void noisyCopyHitsTheCacheAndADifferentImageMisses() throws IOException {
+        AtomicInteger calls = new AtomicInteger();
+        CachingImageService cache = new CachingImageService((image, threshold) -> {
+            calls.incrementAndGet();
+            return true;
+        });
+        BufferedImage cat = sample("sample-cat.jpg");
+
+        assertTrue(cache.imageContainsCat(cat, 50));
+        assertTrue(cache.imageContainsCat(withNoise(cat, 12), 50));
+        assertEquals(1, calls.get());
+        assertEquals(1, cache.getHitCount());
+
+        cache.imageContainsCat(sample("sample-not-cat.jpg"), 50);
+        assertEquals(2, calls.get());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void hashIgnoresNoiseButTellsImagesApart() throws IOException {
+        BufferedImage cat = sample("sample-cat.jpg");
+        long hash = CachingImageService.differenceHash(cat);
+        for (int amplitude : new int[]{4, 8, 16}) {
+            assertEquals(hash, CachingImageService.differenceHash(withNoise(cat, amplitude)), "noise " + amplitude);
+        }
+        assertNotEquals(hash, CachingImageService.differenceHash(sample("sample-not-cat.jpg")));
+    }
+}
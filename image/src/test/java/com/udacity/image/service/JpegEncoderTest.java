@@ -0,0 +1,136 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.image.service;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JpegEncoderTest {
+
+    private static BufferedImage filled(int width, int height, int type, int argb) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, argb);
+            }
+        }
+        return image;
+    }
+
+    private static BufferedImage decode(byte[] jpeg) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+        assertNotNull(image, "not a readable JPEG");
+        return image;
+    }
+
+    private static void assertColor(int expectedRgb, BufferedImage image) {
+        int rgb = image.getRGB(image.getWidth() / 2, image.getHeight() / 2);
+        for (int shift = 16; shift >= 0; shift -= 8) {
+            int expected = (expectedRgb >> shift) & 0xFF;
+            int actual = (rgb >> shift) & 0xFF;
+            assertTrue(Math.abs(expected - actual) <= 8,
+                    String.format("expected about %06x but was %06x", expectedRgb, rgb & 0xFFFFFF));
+        }
+    }
+
+    @Test
+    void encodedImageDecodesAtItsSize() throws IOException {
+        byte[] jpeg = new JpegEncoder().encode(filled(120, 80, BufferedImage.TYPE_INT_RGB, 0x3366CC));
+        BufferedImage decoded = decode(jpeg);
+        assertEquals(120, decoded.getWidth());
+        assertEquals(80, decoded.getHeight());
+        assertColor(0x3366CC, decoded);
+    }
+
+    @Test
+    void downscalingCapsTheLongestSide() throws IOException {
+        JpegEncoder encoder = new JpegEncoder(JpegEncoder.DEFAULT_QUALITY, 100);
+        BufferedImage wide = decode(encoder.encode(filled(400, 100, BufferedImage.TYPE_INT_RGB, 0x808080)));
+        assertEquals(100, wide.getWidth());
+        assertEquals(25, wide.getHeight());
+        BufferedImage tall = decode(encoder.encode(filled(30, 300, BufferedImage.TYPE_INT_RGB, 0x808080)));
+        assertEquals(10, tall.getWidth());
+        assertEquals(100, tall.getHeight());
+        //smaller images are left alone
+        BufferedImage small = decode(encoder.encode(filled(60, 40, BufferedImage.TYPE_INT_RGB, 0x808080)));
+        assertEquals(60, small.getWidth());
+        assertEquals(40, small.getHeight());
+    }
+
+    @Test
+    void imagesWithAlphaAreEncoded() throws IOException {
+        BufferedImage decoded = decode(new JpegEncoder().encode(filled(64, 48, BufferedImage.TYPE_INT_ARGB, 0xFFCC3300)));
+        assertEquals(64, decoded.getWidth());
+        assertEquals(48, decoded.getHeight());
+        assertColor(0xCC3300, decoded);
+    }
+
+    @Test
+    void threadsEncodeIndependently() throws Exception {
+        JpegEncoder encoder = new JpegEncoder(JpegEncoder.DEFAULT_QUALITY, 64);
+        BufferedImage red = filled(200, 100, BufferedImage.TYPE_INT_RGB, 0xFF0000);
+        BufferedImage blue = filled(90, 180, BufferedImage.TYPE_INT_ARGB, 0xFF0000FF);
+        byte[] redExpected = encoder.encode(red);
+        byte[] blueExpected = encoder.encode(blue);
+
+        CyclicBarrier start = new CyclicBarrier(2);
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        try {
+            CompletableFuture<Void> reds = CompletableFuture.runAsync(() -> encodeRepeatedly(encoder, red, redExpected, start), threads);
+            CompletableFuture<Void> blues = CompletableFuture.runAsync(() -> encodeRepeatedly(encoder, blue, blueExpected, start), threads);
+            reds.get();
+            blues.get();
+        } finally {
+            threads.shutdown();
+        }
+        BufferedImage decodedRed = decode(redExpected);
+        assertEquals(64, decodedRed.getWidth());
+        assertColor(0xFF0000, decodedRed);
+        BufferedImage decodedBlue = decode(blueExpected);
+        assertEquals(64, decodedBlue.getHeight());
+        assertColor(0x0000FF, decodedBlue);
+    }
+
+    private static void encodeRepeatedly(JpegEncoder encoder, BufferedImage image, byte[] expected, CyclicBarrier start) {
+        try {
+            start.await();
+            for (int i = 0; i < 200; i++) {
+                assertArrayEquals(expected, encoder.encode(image));
+            }
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.image.service;
+
+import com.udacity.image.scan.ArchiveScanner;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LocalImageServiceTest {
+
+    private static BufferedImage sample(String name) throws IOException {
+        return ImageIO.read(Path.of("..", name).toFile());
+    }
+
+    private static byte[] model(int magic, float bias, float[] weights) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(magic);
+        out.writeInt(weights.length);
+        out.writeFloat(bias);
+        for (float weight : weights) {
+            out.writeFloat(weight);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void modelIsReadAndAppliedToTheFeatures() throws IOException {
+        float[] weights = new float[LocalImageService.FEATURE_COUNT];
+        weights[7] = 2;
+        LocalImageService service = new LocalImageService(new ByteArrayInputStream(model(0x484F4731, -1, weights)));
+        BufferedImage cat = sample("sample-cat.jpg");
+
+        float score = -1 + 2 * LocalImageService.features(cat)[7];
+        assertEquals(100 / (1 + Math.exp(-score)), service.catConfidence(cat), 1e-3);
+        assertEquals(service.catConfidence(cat) >= 40, service.imageContainsCat(cat, 40));
+    }
+
+    @Test
+    public void bundledModelTellsTheSamplesApart() throws IOException {
+        LocalImageService service = new LocalImageService();
+
+        assertTrue(service.imageContainsCat(sample("sample-cat.jpg"), ArchiveScanner.DEFAULT_CONFIDENCE_THRESHOLD));
+        assertFalse(service.imageContainsCat(sample("sample-not-cat.jpg"), ArchiveScanner.DEFAULT_CONFIDENCE_THRESHOLD));
+    }
+
+    @Test
+    public void featuresAreNormalizedPerBlock() throws IOException {
+        float[] features = LocalImageService.features(sample("sample-not-cat.jpg"));
+        assertEquals(LocalImageService.FEATURE_COUNT, features.length);
+        for (int block = 0; block < features.length; block += 4 * LocalImageService.BINS) {
+            double sum = 0;
+            for (int i = block; i < block + 4 * LocalImageService.BINS; i++) {
+                assertTrue(features[i] >= 0);
+                sum += features[i] * features[i];
+            }
+            assertTrue(sum < 1.0001, "block at " + block);
+        }
+    }
+
+    @Test
+    public void malformedModelsAreRejected() throws IOException {
+        float[] weights = new float[LocalImageService.FEATURE_COUNT];
+        assertThrows(IOException.class, () -> new LocalImageService(new ByteArrayInputStream(model(0x1234, 0, weights))));
+        assertThrows(IOException.class, () -> new LocalImageService(new ByteArrayInputStream(model(0x484F4731, 0, new float[10]))));
+        assertThrows(IllegalArgumentException.class, () -> new LocalImageService(0, new float[10]));
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.image.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MotionGatingImageServiceTest {
+
+    private static final BufferedImage EMPTY = scene(false);
+    private static final BufferedImage CAT = scene(true);
+
+    private static BufferedImage scene(boolean cat) {
+        BufferedImage image = new BufferedImage(320, 240, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.GRAY);
+        g.fillRect(0, 0, 320, 240);
+        if (cat) {
+            g.setColor(Color.WHITE);
+            g.fillRect(100, 80, 80, 80);
+        }
+        g.dispose();
+        return image;
+    }
+
+    /**
+     * Delegate whose asynchronous verdicts are completed by the test.
+     */
+    private static class PendingImageService implements ImageService {
+        final List<CompletableFuture<Boolean>> calls = new ArrayList<>();
+
+        @Override
+        public boolean imageContainsCat(BufferedImage image, float confidenceThreshold) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<Boolean> imageContainsCatAsync(BufferedImage image, float confidenceThreshold, Executor executor) {
+            CompletableFuture<Boolean> verdict = new CompletableFuture<>();
+            calls.add(verdict);
+            return verdict;
+        }
+    }
+
+    @Test
+    public void stillFramesAfterMotionWaitForTheNewVerdict() {
+        PendingImageService delegate = new PendingImageService();
+        MotionGatingImageService gating = new MotionGatingImageService(delegate);
+
+        gating.imageContainsCatAsync(EMPTY, 50, Runnable::run);
+        delegate.calls.get(0).complete(false);
+        assertFalse(gating.imageContainsCatAsync(EMPTY, 50, Runnable::run).join());
+        assertEquals(1, delegate.calls.size());
+
+        //the cat walks in and stays put before the delegate answered
+        CompletableFuture<Boolean> walkingIn = gating.imageContainsCatAsync(CAT, 50, Runnable::run);
+        CompletableFuture<Boolean> sitting = gating.imageContainsCatAsync(CAT, 50, Runnable::run);
+        assertEquals(3, delegate.calls.size());
+        assertFalse(sitting.isDone());
+
+        delegate.calls.get(2).complete(true);
+        delegate.calls.get(1).complete(true);
+        assertTrue(walkingIn.join());
+        assertTrue(gating.imageContainsCatAsync(CAT, 50, Runnable::run).join());
+        assertEquals(3, delegate.calls.size());
+        assertEquals(2, gating.getSkippedCount());
+    }
+
+    @Test
+    public void verdictForAnOlderSceneIsNotReused() {
+        PendingImageService delegate = new PendingImageService();
+        MotionGatingImageService gating = new MotionGatingImageService(delegate);
+
+        gating.imageContainsCatAsync(EMPTY, 50, Runnable::run);
+        gating.imageContainsCatAsync(CAT, 50, Runnable::run);
+        //the answer about the empty scene arrives after the cat appeared
+        delegate.calls.get(0).complete(false);
+
+        gating.imageContainsCatAsync(CAT, 50, Runnable::run);
+        assertEquals(3, delegate.calls.size());
+    }
+
+    @Test
+    public void failedCallIsRetriedWithTheNextFrame() {
+        int[] calls = new int[1];
+        MotionGatingImageService gating = new MotionGatingImageService((image, threshold) -> {
+            if (calls[0]++ == 1) {
+                throw new IllegalStateException("service unavailable");
+            }
+            return image == CAT;
+        });
+
+        assertFalse(gating.imageContainsCat(EMPTY, 50));
+        assertThrows(IllegalStateException.class, () -> gating.imageContainsCat(CAT, 50));
+        assertTrue(gating.imageContainsCat(CAT, 50));
+        assertTrue(gating.imageContainsCat(CAT, 50));
+        assertEquals(3, calls[0]);
+    }
+
+    @Test
+    public void camerasKeepTheirOwnBackground() {
+        int[] calls = new int[1];
+        MotionGatingImageService gating = new MotionGatingImageService((image, threshold) -> {
+            calls[0]++;
+            return image == CAT;
+        });
+
+        for (int i = 0; i < 3; i++) {
+            assertFalse(gating.imageContainsCat("porch", EMPTY, 50));
+            assertTrue(gating.imageContainsCat("garden", CAT, 50));
+        }
+        assertEquals(2, calls[0]);
+        assertEquals(2, gating.getCameraCount());
+
+        //decorators in front pass the camera on
+        ImageService cached = new CachingImageService(gating);
+        assertTrue(CameraImageService.analyze(cached, "garden", CAT, 50));
+        assertEquals(2, calls[0]);
+    }
+}
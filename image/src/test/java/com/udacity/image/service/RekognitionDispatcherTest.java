@@ -0,0 +1,217 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.image.service;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.exception.RetryableException;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.rekognition.RekognitionAsyncClient;
+import software.amazon.awssdk.services.rekognition.RekognitionClient;
+import software.amazon.awssdk.services.rekognition.model.DetectLabelsRequest;
+import software.amazon.awssdk.services.rekognition.model.DetectLabelsResponse;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RekognitionDispatcherTest {
+
+    private static final DetectLabelsResponse RESPONSE = DetectLabelsResponse.builder().build();
+
+    private static CompletableFuture<DetectLabelsResponse> detect(RekognitionDispatcher dispatcher, BufferedImage image) {
+        return dispatcher.detectLabels(image, 50f, () -> DetectLabelsRequest.builder().minConfidence(50f).build());
+    }
+
+    private static BufferedImage frame() {
+        return new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+    }
+
+    private static Throwable failure(CompletableFuture<?> future) throws InterruptedException {
+        ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+        return e.getCause();
+    }
+
+    @Test
+    void identicalFramesInFlightShareOneRequest() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        StubClient client = new StubClient(request -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            return RESPONSE;
+        });
+        try (RekognitionDispatcher dispatcher = new RekognitionDispatcher(client)) {
+            BufferedImage image = frame();
+            //the blocking client sends on the calling thread
+            CompletableFuture<CompletableFuture<DetectLabelsResponse>> first =
+                    CompletableFuture.supplyAsync(() -> detect(dispatcher, image));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            CompletableFuture<DetectLabelsResponse> second = detect(dispatcher, image);
+            assertFalse(second.isDone());
+            release.countDown();
+
+            assertSame(RESPONSE, first.get(5, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS));
+            assertSame(RESPONSE, second.get(5, TimeUnit.SECONDS));
+            assertEquals(1, client.calls.get());
+            assertEquals(1, dispatcher.getCoalescedCount());
+        }
+    }
+
+    @Test
+    void requestsBeyondTheQueueAreRejected() throws Exception {
+        StubAsyncClient client = new StubAsyncClient();
+        try (RekognitionDispatcher dispatcher = new RekognitionDispatcher(client, 1, 1, 1)) {
+            CompletableFuture<DetectLabelsResponse> running = detect(dispatcher, frame());
+            CompletableFuture<DetectLabelsResponse> queued = detect(dispatcher, frame());
+            CompletableFuture<DetectLabelsResponse> rejected = detect(dispatcher, frame());
+            assertInstanceOf(RejectedExecutionException.class, failure(rejected));
+            assertEquals(1, dispatcher.getRejectedCount());
+            assertFalse(running.isDone());
+            assertFalse(queued.isDone());
+        }
+    }
+
+    @Test
+    void onlyRetryableFailuresAreRetried() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        StubClient flaky = new StubClient(request -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw RetryableException.builder().message("throttled").build();
+            }
+            return RESPONSE;
+        });
+        try (RekognitionDispatcher dispatcher = new RekognitionDispatcher(flaky, 1, 0, 3)) {
+            assertSame(RESPONSE, detect(dispatcher, frame()).get(5, TimeUnit.SECONDS));
+            assertEquals(2, flaky.calls.get());
+            assertEquals(1, dispatcher.getRetryCount());
+        }
+
+        StubClient broken = new StubClient(request -> {
+            throw SdkClientException.create("bad request");
+        });
+        try (RekognitionDispatcher dispatcher = new RekognitionDispatcher(broken, 1, 0, 3)) {
+            assertInstanceOf(SdkClientException.class, failure(detect(dispatcher, frame())));
+            assertEquals(1, broken.calls.get());
+            assertEquals(0, dispatcher.getRetryCount());
+        }
+    }
+
+    @Test
+    void queuedRequestsStartAsRunningOnesComplete() throws Exception {
+        StubAsyncClient client = new StubAsyncClient();
+        try (RekognitionDispatcher dispatcher = new RekognitionDispatcher(client, 1, 2, 1)) {
+            List<CompletableFuture<DetectLabelsResponse>> results = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                results.add(detect(dispatcher, frame()));
+            }
+            assertEquals(1, client.sent.size());
+            assertEquals(2, dispatcher.getQueuedCount());
+
+            client.sent.get(0).complete(RESPONSE);
+            assertSame(RESPONSE, results.get(0).get(5, TimeUnit.SECONDS));
+            assertEquals(2, client.sent.size());
+            assertFalse(results.get(1).isDone());
+
+            client.sent.get(1).complete(RESPONSE);
+            assertEquals(3, client.sent.size());
+            client.sent.get(2).complete(RESPONSE);
+            assertSame(RESPONSE, results.get(2).get(5, TimeUnit.SECONDS));
+            assertEquals(0, dispatcher.getQueuedCount());
+        }
+    }
+
+    @Test
+    void closeCompletesOutstandingRequests() throws Exception {
+        StubAsyncClient client = new StubAsyncClient();
+        client.failFirst = RetryableException.builder().message("throttled").build();
+        RekognitionDispatcher dispatcher = new RekognitionDispatcher(client, 1, 2, 5);
+        //waits for its retry, or is being retried once close comes
+        CompletableFuture<DetectLabelsResponse> retrying = detect(dispatcher, frame());
+        CompletableFuture<DetectLabelsResponse> queued = detect(dispatcher, frame());
+        dispatcher.close();
+
+        assertNotNull(failure(retrying));
+        assertInstanceOf(RejectedExecutionException.class, failure(queued));
+        assertInstanceOf(RejectedExecutionException.class, failure(detect(dispatcher, frame())));
+        assertEquals(0, dispatcher.getQueuedCount());
+    }
+
+    private static final class StubClient implements RekognitionClient {
+        private final Function<DetectLabelsRequest, DetectLabelsResponse> answer;
+        private final AtomicInteger calls = new AtomicInteger();
+
+        StubClient(Function<DetectLabelsRequest, DetectLabelsResponse> answer) {
+            this.answer = answer;
+        }
+
+        @Override
+        public DetectLabelsResponse detectLabels(DetectLabelsRequest request) {
+            calls.incrementAndGet();
+            return answer.apply(request);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Hands out futures the test completes. Like the SDK, closing fails the ones still open.
+     */
+    private static final class StubAsyncClient implements RekognitionAsyncClient {
+        private final List<CompletableFuture<DetectLabelsResponse>> sent = new ArrayList<>();
+        private RuntimeException failFirst;
+
+        @Override
+        public synchronized CompletableFuture<DetectLabelsResponse> detectLabels(DetectLabelsRequest request) {
+            if (failFirst != null) {
+                RuntimeException failure = failFirst;
+                failFirst = null;
+                return CompletableFuture.failedFuture(failure);
+            }
+            CompletableFuture<DetectLabelsResponse> response = new CompletableFuture<>();
+            sent.add(response);
+            return response;
+        }
+
+        @Override
+        public synchronized void close() {
+            List.copyOf(sent).forEach(response -> response.completeExceptionally(SdkClientException.create("client closed")));
+        }
+    }
+}
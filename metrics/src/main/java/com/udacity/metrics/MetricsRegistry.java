@@ -0,0 +1,199 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.metrics;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Named latency histograms, counters and gauges, published through JMX and as text.
+ * <p>
+ * Components take a registry and create their instruments once, then record on their hot paths
+ * without any lookup. When metrics are not wanted, use {@link #DISABLED}: components check
+ * {@link #isEnabled()} and skip instrumentation altogether, so a disabled registry costs at most a
+ * null check per call.
+ */
+public class MetricsRegistry {
+
+    public static final MetricsRegistry DISABLED = new MetricsRegistry(false);
+
+    private static final String JMX_DOMAIN = "com.udacity.metrics";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final boolean enabled;
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+    private final Map<String, Counter> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private MBeanServer mBeanServer;
+
+    public MetricsRegistry() {
+        this(true);
+    }
+
+    private MetricsRegistry(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the histogram with the given name, creating it if needed.
+     */
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> {
+            LatencyHistogram histogram = new LatencyHistogram(n);
+            register("Histogram", n, new HistogramBean(histogram), HistogramMXBean.class);
+            return histogram;
+        });
+    }
+
+    /**
+     * Returns the counter with the given name, creating it if needed.
+     */
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, n -> {
+            Counter counter = new Counter(n);
+            register("Counter", n, (ValueMXBean) counter::getCount, ValueMXBean.class);
+            return counter;
+        });
+    }
+
+    /**
+     * Publishes a value that is read when metrics are collected, for example a count a component
+     * already keeps. Replaces an earlier gauge with the same name.
+     */
+    public void gauge(String name, LongSupplier value) {
+        if (gauges.put(name, value) == null) {
+            register("Gauge", name, (ValueMXBean) () -> gauges.get(name).getAsLong(), ValueMXBean.class);
+        }
+    }
+
+    /**
+     * Registers an MXBean for every metric in the platform MBean server, now and whenever a
+     * metric is created later.
+     */
+    public void registerMBeans() {
+        registerMBeans(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    public synchronized void registerMBeans(MBeanServer server) {
+        mBeanServer = server;
+        histograms.forEach((name, histogram) -> register("Histogram", name, new HistogramBean(histogram), HistogramMXBean.class));
+        counters.forEach((name, counter) -> register("Counter", name, (ValueMXBean) counter::getCount, ValueMXBean.class));
+        gauges.keySet().forEach(name -> register("Gauge", name, (ValueMXBean) () -> gauges.get(name).getAsLong(), ValueMXBean.class));
+    }
+
+    private synchronized <T> void register(String type, String name, T bean, Class<T> mxBeanInterface) {
+        if (mBeanServer == null || !enabled) {
+            return;
+        }
+        try {
+            ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+            mBeanServer.registerMBean(new StandardMBean(bean, mxBeanInterface, true), objectName);
+        } catch (InstanceAlreadyExistsException e) {
+            //registered by an earlier call
+        } catch (JMException e) {
+            throw new IllegalStateException("Unable to register MBean for " + name, e);
+        }
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format. Latencies are reported in
+     * seconds as summaries, with dots in names replaced by underscores.
+     */
+    public void writeText(Writer out) throws IOException {
+        for (LatencyHistogram histogram : histograms.values()) {
+            String name = exportName(histogram.getName()) + "_seconds";
+            out.write("# TYPE " + name + " summary\n");
+            for (double quantile : QUANTILES) {
+                out.write(name + "{quantile=\"" + quantile + "\"} " + seconds(histogram.getQuantileNanos(quantile)) + "\n");
+            }
+            out.write(name + "_sum " + seconds(histogram.getSumNanos()) + "\n");
+            out.write(name + "_count " + histogram.getCount() + "\n");
+        }
+        for (Counter counter : counters.values()) {
+            String name = exportName(counter.getName()) + "_total";
+            out.write("# TYPE " + name + " counter\n");
+            out.write(name + " " + counter.getCount() + "\n");
+        }
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            String name = exportName(gauge.getKey());
+            out.write("# TYPE " + name + " gauge\n");
+            out.write(name + " " + gauge.getValue().getAsLong() + "\n");
+        }
+    }
+
+    private static String exportName(String name) {
+        return name.replaceAll("[^A-Za-z0-9_]", "_").toLowerCase(Locale.ROOT);
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    private record HistogramBean(LatencyHistogram histogram) implements HistogramMXBean {
+        @Override
+        public long getCount() {
+            return histogram.getCount();
+        }
+
+        @Override
+        public double getMeanMillis() {
+            return LatencyHistogram.toMillis(histogram.getMeanNanos());
+        }
+
+        @Override
+        public double getMedianMillis() {
+            return LatencyHistogram.toMillis(histogram.getQuantileNanos(0.5));
+        }
+
+        @Override
+        public double get99thPercentileMillis() {
+            return LatencyHistogram.toMillis(histogram.getQuantileNanos(0.99));
+        }
+
+        @Override
+        public double get999thPercentileMillis() {
+            return LatencyHistogram.toMillis(histogram.getQuantileNanos(0.999));
+        }
+
+        @Override
+        public double getMaxMillis() {
+            return LatencyHistogram.toMillis(histogram.getMaxNanos());
+        }
+    }
+}
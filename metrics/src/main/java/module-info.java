@@ -0,0 +1,5 @@
+module com.udacity.metrics {
+    requires java.management;
+    requires jdk.httpserver;
+    exports com.udacity.metrics;
+}
@@ -0,0 +1,125 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    void smallValuesHaveTheirOwnBucket() {
+        for (long value = 0; value < 128; value++) {
+            assertEquals(value, LatencyHistogram.bucketIndex(value));
+            assertEquals(value, LatencyHistogram.bucketUpperBound((int) value));
+        }
+        assertEquals(128, LatencyHistogram.bucketIndex(128));
+        assertEquals(128, LatencyHistogram.bucketIndex(129));
+        assertEquals(129, LatencyHistogram.bucketIndex(130));
+        assertEquals(129, LatencyHistogram.bucketUpperBound(128));
+    }
+
+    @Test
+    void bucketsAreContiguousAndWithinOneSixtyFourth() {
+        long previousUpperBound = -1;
+        int previousIndex = -1;
+        for (long value = 0; value < 1 << 20; value++) {
+            int index = LatencyHistogram.bucketIndex(value);
+            long upperBound = LatencyHistogram.bucketUpperBound(index);
+            assertTrue(value <= upperBound, "value " + value + " above its bucket");
+            assertTrue(upperBound - value <= value / 64, "value " + value + " reported as " + upperBound);
+            if (index != previousIndex) {
+                assertEquals(previousIndex + 1, index);
+                assertEquals(previousUpperBound + 1, value);
+            }
+            previousIndex = index;
+            previousUpperBound = upperBound;
+        }
+    }
+
+    @Test
+    void precisionHoldsAcrossTheWholeRange() {
+        Random random = new Random(3);
+        for (int i = 0; i < 100_000; i++) {
+            long value = random.nextLong() >>> (24 + random.nextInt(40));
+            if (value >= 1L << 40) {
+                continue;
+            }
+            long upperBound = LatencyHistogram.bucketUpperBound(LatencyHistogram.bucketIndex(value));
+            assertTrue(value <= upperBound && upperBound - value <= value / 64, "value " + value);
+        }
+    }
+
+    @Test
+    void quantilesOfAUniformSpread() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        for (long value = 1; value <= 10_000; value++) {
+            histogram.recordNanos(value * 1_000);
+        }
+        assertEquals(10_000, histogram.getCount());
+        assertEquals(10_000_000, histogram.getMaxNanos());
+        assertEquals(5_000_500, histogram.getMeanNanos(), 1e-6);
+        assertWithin(5_000_000, histogram.getQuantileNanos(0.5));
+        assertWithin(9_900_000, histogram.getQuantileNanos(0.99));
+        assertWithin(1_000, histogram.getQuantileNanos(0));
+        assertEquals(10_000_000, histogram.getQuantileNanos(1));
+    }
+
+    @Test
+    void quantilesNeverExceedTheMaximum() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        histogram.recordNanos(1_000_001);
+        //the bucket reaches higher, but nothing larger was recorded
+        assertEquals(1_000_001, histogram.getQuantileNanos(0.5));
+        assertEquals(1_000_001, histogram.getQuantileNanos(1));
+    }
+
+    @Test
+    void emptyAndOutOfRangeValues() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        assertEquals(0, histogram.getQuantileNanos(0.99));
+        assertEquals(0, histogram.getMeanNanos());
+
+        histogram.recordNanos(-5);
+        assertEquals(0, histogram.getMaxNanos());
+        assertEquals(0, histogram.getQuantileNanos(1));
+
+        long huge = 1L << 50;
+        histogram.recordNanos(huge);
+        assertEquals(huge, histogram.getMaxNanos());
+        assertEquals(huge, histogram.getQuantileNanos(1));
+        int last = LatencyHistogram.bucketIndex(Long.MAX_VALUE);
+        assertEquals(last, LatencyHistogram.bucketIndex(huge));
+        assertEquals(last, LatencyHistogram.bucketIndex(1L << 41));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(actual >= expected && actual - expected <= expected / 64,
+                "expected about " + expected + " but was " + actual);
+    }
+}
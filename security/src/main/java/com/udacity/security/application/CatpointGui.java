@@ -25,24 +25,50 @@
 package com.udacity.security.application;
 
 
+import com.udacity.image.service.CachingImageService;
 import com.udacity.image.service.FakeImageService;
+import com.udacity.image.service.ImageServiceExecutors;
+import com.udacity.image.service.InstrumentedImageService;
+import com.udacity.image.service.MotionGatingImageService;
+import com.udacity.metrics.MetricsHttpServer;
+import com.udacity.metrics.MetricsRegistry;
+import com.udacity.security.audit.AuditLog;
+import com.udacity.security.data.InstrumentedSecurityRepository;
 import com.udacity.security.data.PretendDatabaseSecurityRepositoryImpl;
 import com.udacity.security.data.SecurityRepository;
 import com.udacity.security.service.SecurityService;
 import net.miginfocom.swing.MigLayout;
 
 import javax.swing.*;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
 
 /**
  * This is the primary JFrame for the application that contains all the top-level JPanels.
  * <p>
  * We're not using any dependency injection framework, so this class also handles constructing
  * all our dependencies and providing them to other classes as necessary.
+ * <p>
+ * Metrics are collected when the system property {@value #METRICS_PORT_PROPERTY} is set. They
+ * are then published as MBeans and as text on http://localhost:&lt;port&gt;/metrics.
+ * <p>
+ * Every input and alarm transition is recorded in an audit log when the system property
+ * {@value #AUDIT_DIRECTORY_PROPERTY} names the directory to keep it in.
  */
 public class CatpointGui extends JFrame {
-    private final SecurityRepository securityRepository = new PretendDatabaseSecurityRepositoryImpl();
-    private final FakeImageService imageService = new FakeImageService();
-    private final SecurityService securityService = new SecurityService(securityRepository, imageService);
+    public static final String METRICS_PORT_PROPERTY = "catpoint.metrics.port";
+    public static final String AUDIT_DIRECTORY_PROPERTY = "catpoint.audit.dir";
+
+    private final MetricsRegistry metrics = createMetrics();
+    private final SecurityRepository securityRepository = InstrumentedSecurityRepository.wrap(
+            new PretendDatabaseSecurityRepositoryImpl(), metrics);
+    //frames without motion reuse the last verdict, frames that look alike share one
+    private final CachingImageService imageCache = new CachingImageService(
+            InstrumentedImageService.wrap(new FakeImageService(), metrics, "image.detect"));
+    private final MotionGatingImageService imageService = new MotionGatingImageService(imageCache);
+    private final SecurityService securityService = new SecurityService(securityRepository, imageService,
+            ImageServiceExecutors.newBoundedExecutor(2, 4), SwingUtilities::invokeLater);
     private final DisplayPanel displayPanel = new DisplayPanel(securityService);
     private final ControlPanel controlPanel = new ControlPanel(securityService);
     private final SensorPanel sensorPanel = new SensorPanel(securityService);
@@ -63,5 +89,40 @@ public class CatpointGui extends JFrame {
 
         getContentPane().add(mainPanel);
 
+        securityService.registerMetrics(metrics);
+        imageCache.registerMetrics(metrics);
+        imageService.registerMetrics(metrics);
+        securityService.setAuditLog(createAuditLog(metrics));
+    }
+
+    private static AuditLog createAuditLog(MetricsRegistry metrics) {
+        String directory = System.getProperty(AUDIT_DIRECTORY_PROPERTY);
+        if (directory == null) {
+            return null;
+        }
+        try {
+            AuditLog auditLog = new AuditLog(Paths.get(directory));
+            auditLog.registerMetrics(metrics);
+            //written in the background, so whatever is still queued is written on exit
+            Runtime.getRuntime().addShutdownHook(new Thread(auditLog::close, "audit-shutdown"));
+            return auditLog;
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Unable to open the audit log in " + directory, ioe);
+        }
+    }
+
+    private static MetricsRegistry createMetrics() {
+        Integer port = Integer.getInteger(METRICS_PORT_PROPERTY);
+        if (port == null) {
+            return MetricsRegistry.DISABLED;
+        }
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.registerMBeans();
+        try {
+            MetricsHttpServer.start(registry, port);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Unable to serve metrics on port " + port, ioe);
+        }
+        return registry;
     }
 }
@@ -0,0 +1,144 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.security.application;
+
+import com.udacity.image.service.AwsImageService;
+import com.udacity.image.service.FakeImageService;
+import com.udacity.image.service.ImageService;
+import com.udacity.image.service.ImageServiceExecutors;
+import com.udacity.image.service.LocalImageService;
+import com.udacity.security.engine.SiteEngine;
+import com.udacity.security.server.ProtocolServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Launches the application without a GUI, serving sensor events, arming commands and camera
+ * images over the network, see {@link com.udacity.security.server.CatpointProtocol}:
+ * <pre>
+ * CatpointServer [options]
+ *   --port=N                  port to listen on, defaults to 7070
+ *   --bind=ADDRESS            address to listen on, defaults to the loopback address
+ *   --data=DIR                directory keeping a write-ahead log per site, defaults to catpoint-sites
+ *   --shards=N                threads applying changes, defaults to the number of cores
+ *   --idle-timeout=SECONDS    time after which an unused site is unloaded
+ *   --service=local|aws|fake  image service to use, defaults to local
+ *   --model=FILE              classifier model of the local service, defaults to the bundled one
+ *   --image-threads=N         images decoded and analyzed at the same time, defaults to the number of cores
+ *   --threshold=PERCENT       minimum confidence for a cat
+ * </pre>
+ * Runs until the process is stopped. The protocol has no authentication, anyone who can connect
+ * can disarm any site, so only bind to an address other clients can reach on a trusted network.
+ */
+public class CatpointServer {
+
+    private static final float DEFAULT_CONFIDENCE_THRESHOLD = 50.0f;
+    private static final long STATS_INTERVAL_SECONDS = 10;
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                System.err.println("Usage: CatpointServer [--port=N] [--bind=ADDRESS] [--data=DIR] [--shards=N] [--idle-timeout=SECONDS]"
+                        + " [--service=local|aws|fake] [--model=FILE] [--image-threads=N] [--threshold=PERCENT]");
+                System.exit(2);
+            }
+            String[] option = arg.substring(2).split("=", 2);
+            options.put(option[0], option.length > 1 ? option[1] : "");
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        int imageThreads = Integer.parseInt(options.getOrDefault("image-threads", String.valueOf(cores)));
+        ExecutorService imageExecutor = ImageServiceExecutors.newBoundedExecutor(imageThreads, imageThreads * 4);
+
+        SiteEngine engine = new SiteEngine(Integer.parseInt(options.getOrDefault("shards", String.valueOf(cores))),
+                SiteEngine.writeAheadLogRepositories(Paths.get(options.getOrDefault("data", "catpoint-sites"))),
+                imageService(options), imageExecutor,
+                options.containsKey("idle-timeout")
+                        ? Duration.ofSeconds(Long.parseLong(options.get("idle-timeout")))
+                        : SiteEngine.DEFAULT_IDLE_TIMEOUT);
+        int port = Integer.parseInt(options.getOrDefault("port", String.valueOf(ProtocolServer.DEFAULT_PORT)));
+        InetSocketAddress address = options.containsKey("bind")
+                ? new InetSocketAddress(options.get("bind"), port)
+                : new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        ProtocolServer server;
+        try {
+            server = new ProtocolServer(engine, imageExecutor,
+                    Float.parseFloat(options.getOrDefault("threshold", String.valueOf(DEFAULT_CONFIDENCE_THRESHOLD))),
+                    address);
+        } catch (IOException e) {
+            engine.close();
+            throw e;
+        }
+        System.out.printf("Listening on %s port %d%n", address.getHostString(), server.getPort());
+
+        ScheduledExecutorService stats = Executors.newSingleThreadScheduledExecutor(ImageServiceExecutors.daemonThreads("server-stats"));
+        long[] last = {0, System.nanoTime()};
+        stats.scheduleAtFixedRate(() -> {
+            long events = server.getSensorEventCount();
+            long now = System.nanoTime();
+            System.out.printf("%d connections, %d active sites, %.0f sensor events/s, %d images (%d dropped), %d queued%n",
+                    server.getConnectionCount(), engine.getActiveSiteCount(), (events - last[0]) * 1e9 / (now - last[1]),
+                    server.getImageCount(), server.getImagesDroppedCount(), engine.getQueuedCount());
+            last[0] = events;
+            last[1] = now;
+        }, STATS_INTERVAL_SECONDS, STATS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+        //the server thread keeps the JVM running, stopping the process closes every site's log
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            stats.shutdownNow();
+            server.close();
+            engine.close();
+        }, "server-shutdown"));
+    }
+
+    private static ImageService imageService(Map<String, String> options) throws IOException {
+        String model = options.get("model");
+        return switch (options.getOrDefault("service", "local")) {
+            case "local" -> {
+                if (model == null) {
+                    yield new LocalImageService();
+                }
+                try (InputStream in = Files.newInputStream(Paths.get(model))) {
+                    yield new LocalImageService(in);
+                }
+            }
+            case "aws" -> new AwsImageService();
+            case "fake" -> new FakeImageService();
+            default -> throw new IllegalArgumentException("Unknown image service " + options.get("service"));
+        };
+    }
+}
@@ -36,6 +36,7 @@ import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.CancellationException;
 
 /**
  * Panel containing the 'camera' output. Allows users to 'refresh' the camera
@@ -55,7 +56,7 @@ public class ImagePanel extends JPanel implements StatusListener {
         super();
         setLayout(new MigLayout());
         this.securityService = securityService;
-        securityService.addStatusListener(this);
+        securityService.addStatusListener(this, SwingUtilities::invokeLater);
 
         cameraHeader = new JLabel("Camera Feed");
         cameraHeader.setFont(StyleService.HEADING_FONT);
@@ -87,7 +88,13 @@ public class ImagePanel extends JPanel implements StatusListener {
 
         //button that sends the image to the image service
         JButton scanPictureButton = new JButton("Scan Picture");
-        scanPictureButton.addActionListener(e -> securityService.processImage(currentCameraImage));
+        scanPictureButton.addActionListener(e -> securityService.processImageAsync(currentCameraImage)
+                .exceptionally(t -> {
+                    if (!(t instanceof CancellationException) && !(t.getCause() instanceof CancellationException)) {
+                        SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null, "Unable to scan picture."));
+                    }
+                    return null;
+                }));
 
         add(cameraHeader, "span 3, wrap");
         add(cameraLabel, "span 3, wrap");
@@ -33,11 +33,20 @@ import com.udacity.security.service.StyleService;
 import net.miginfocom.swing.MigLayout;
 
 import javax.swing.*;
+import javax.swing.table.TableCellEditor;
+import javax.swing.table.TableCellRenderer;
+import javax.swing.table.TableColumn;
+import java.awt.Component;
+import java.awt.Dimension;
 import java.util.Objects;
+import java.util.function.IntConsumer;
 
 /**
  * Panel that allows users to add sensors to their system. Sensors may be
  * manually set to "active" and "inactive" to test the system.
+ * <p>
+ * Sensors are listed in a table, which only renders the visible rows and only repaints the rows
+ * of sensors that changed.
  */
 public class SensorPanel extends JPanel implements StatusListener {
 
@@ -50,14 +59,15 @@ public class SensorPanel extends JPanel implements StatusListener {
     private final JComboBox newSensorTypeDropdown = new JComboBox(SensorType.values());
     private final JButton addNewSensorButton = new JButton("Add New Sensor");
 
-    private final JPanel sensorListPanel;
+    private final SensorTableModel sensorTableModel = new SensorTableModel();
+    private final JTable sensorTable = new JTable(sensorTableModel);
     private final JPanel newSensorPanel;
 
     public SensorPanel(SecurityService securityService) {
         super();
         setLayout(new MigLayout());
         this.securityService = securityService;
-        securityService.addStatusListener(this);
+        securityService.addStatusListener(this, SwingUtilities::invokeLater);
 
         panelLabel.setFont(StyleService.HEADING_FONT);
         addNewSensorButton.addActionListener(e ->
@@ -65,14 +75,12 @@ public class SensorPanel extends JPanel implements StatusListener {
                         SensorType.valueOf(Objects.requireNonNull(newSensorTypeDropdown.getSelectedItem()).toString()))));
 
         newSensorPanel = buildAddSensorPanel();
-        sensorListPanel = new JPanel();
-        sensorListPanel.setLayout(new MigLayout());
-
-        updateSensorList(sensorListPanel);
+        configureSensorTable();
+        sensorTableModel.refresh(securityService.getSensors());
 
         add(panelLabel, "wrap");
         add(newSensorPanel, "span");
-        add(sensorListPanel, "span");
+        add(new JScrollPane(sensorTable), "span");
     }
 
     /**
@@ -90,64 +98,72 @@ public class SensorPanel extends JPanel implements StatusListener {
     }
 
     /**
-     * Requests the current list of sensors and updates the provided panel to display them. Sensors
-     * will display in the order that they are created.
-     *
-     * @param p The Panel to populate with the current list of sensors
+     * Sets up the sensor table: a label column and two button columns, sorted like the sensors
+     * themselves. Sensors will display in the order of their names.
      */
-    private void updateSensorList(JPanel p) {
-        p.removeAll();
-        securityService.getSensors().stream().sorted().forEach(s -> {
-            JLabel sensorLabel = new JLabel(String.format("%s(%s): %s", s.getName(), s.getSensorType().toString(), (s.getActive() ? "Active" : "Inactive")));
-            JButton sensorToggleButton = new JButton((s.getActive() ? "Deactivate" : "Activate"));
-            JButton sensorRemoveButton = new JButton("Remove Sensor");
-
-            sensorToggleButton.addActionListener(e -> setSensorActivity(s, !s.getActive()));
-            sensorRemoveButton.addActionListener(e -> removeSensor(s));
-
-            //hard code some sizes, tsk tsk
-            p.add(sensorLabel, "width 300:300:300");
-            p.add(sensorToggleButton, "width 100:100:100");
-            p.add(sensorRemoveButton, "wrap");
+    private void configureSensorTable() {
+        sensorTable.setTableHeader(null);
+        sensorTable.setShowGrid(false);
+        sensorTable.setRowSelectionAllowed(false);
+        sensorTable.setRowHeight(new JButton("Deactivate").getPreferredSize().height);
+        //hard code some sizes, tsk tsk
+        configureColumn(SensorTableModel.SENSOR_COLUMN, 300);
+        configureColumn(SensorTableModel.TOGGLE_COLUMN, 100);
+        configureColumn(SensorTableModel.REMOVE_COLUMN, 130);
+        ButtonColumn toggle = new ButtonColumn(row -> {
+            Sensor s = sensorTableModel.getSensorAt(row);
+            setSensorActivity(s, !s.getActive());
         });
+        ButtonColumn remove = new ButtonColumn(row -> removeSensor(sensorTableModel.getSensorAt(row)));
+        TableColumn toggleColumn = sensorTable.getColumnModel().getColumn(SensorTableModel.TOGGLE_COLUMN);
+        toggleColumn.setCellRenderer(toggle);
+        toggleColumn.setCellEditor(toggle);
+        TableColumn removeColumn = sensorTable.getColumnModel().getColumn(SensorTableModel.REMOVE_COLUMN);
+        removeColumn.setCellRenderer(remove);
+        removeColumn.setCellEditor(remove);
+        sensorTable.setPreferredScrollableViewportSize(new Dimension(530, 8 * sensorTable.getRowHeight()));
+    }
 
-        repaint();
-        revalidate();
+    private void configureColumn(int column, int width) {
+        TableColumn tableColumn = sensorTable.getColumnModel().getColumn(column);
+        tableColumn.setMinWidth(width);
+        tableColumn.setMaxWidth(width);
+        tableColumn.setPreferredWidth(width);
     }
 
     /**
-     * Asks the securityService to change a sensor activation status and then rebuilds the current sensor list
+     * Asks the securityService to change a sensor activation status and then repaints its row
      *
      * @param sensor   The sensor to update
      * @param isActive The sensor's activation status
      */
     private void setSensorActivity(Sensor sensor, Boolean isActive) {
         securityService.changeSensorActivationStatus(sensor, isActive);
-        updateSensorList(sensorListPanel);
+        sensorTableModel.sensorUpdated(sensor);
     }
 
     /**
-     * Adds a sensor to the securityService and then rebuilds the sensor list
+     * Adds a sensor to the securityService and then inserts its row
      *
      * @param sensor The sensor to add
      */
     private void addSensor(Sensor sensor) {
         if (securityService.getSensors().size() < 4) {
             securityService.addSensor(sensor);
-            updateSensorList(sensorListPanel);
+            sensorTableModel.sensorAdded(sensor);
         } else {
             JOptionPane.showMessageDialog(null, "To add more than 4 sensors, please subscribe to our Premium Membership!");
         }
     }
 
     /**
-     * Remove a sensor from the securityService and then rebuild the sensor list
+     * Remove a sensor from the securityService and then remove its row
      *
      * @param sensor The sensor to remove
      */
     private void removeSensor(Sensor sensor) {
         securityService.removeSensor(sensor);
-        updateSensorList(sensorListPanel);
+        sensorTableModel.sensorRemoved(sensor);
     }
 
     @Override
@@ -162,6 +178,43 @@ public class SensorPanel extends JPanel implements StatusListener {
 
     @Override
     public void sensorStatusChanged() {
-        updateSensorList(sensorListPanel);
+        sensorTableModel.refresh(securityService.getSensors());
+    }
+
+    /**
+     * Renders and edits a table column as buttons. One button is shared by all rows for
+     * rendering and one for the row being clicked.
+     */
+    private static class ButtonColumn extends AbstractCellEditor implements TableCellRenderer, TableCellEditor {
+        private final JButton renderButton = new JButton();
+        private final JButton editButton = new JButton();
+        private int editingRow;
+
+        ButtonColumn(IntConsumer action) {
+            editButton.addActionListener(e -> {
+                int row = editingRow;
+                fireEditingStopped();
+                action.accept(row);
+            });
+        }
+
+        @Override
+        public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected,
+                                                       boolean hasFocus, int row, int column) {
+            renderButton.setText(value.toString());
+            return renderButton;
+        }
+
+        @Override
+        public Component getTableCellEditorComponent(JTable table, Object value, boolean isSelected, int row, int column) {
+            editButton.setText(value.toString());
+            editingRow = row;
+            return editButton;
+        }
+
+        @Override
+        public Object getCellEditorValue() {
+            return editButton.getText();
+        }
     }
 }
@@ -0,0 +1,175 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.security.application;
+
+import com.udacity.security.data.Sensor;
+
+import javax.swing.table.AbstractTableModel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Table model holding the sensors in display order. It is told about each sensor that changed
+ * and only fires events for the affected rows, so the table repaints those rows and nothing else.
+ * Must only be used on the Swing event dispatch thread.
+ */
+class SensorTableModel extends AbstractTableModel {
+
+    static final int SENSOR_COLUMN = 0;
+    static final int TOGGLE_COLUMN = 1;
+    static final int REMOVE_COLUMN = 2;
+
+    private static final String[] COLUMN_NAMES = {"Sensor", "", ""};
+
+    private final List<Row> rows = new ArrayList<>();
+    private final Map<UUID, Integer> rowIndexes = new HashMap<>();
+
+    @Override
+    public int getRowCount() {
+        return rows.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMN_NAMES.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMN_NAMES[column];
+    }
+
+    @Override
+    public Object getValueAt(int rowIndex, int columnIndex) {
+        Row row = rows.get(rowIndex);
+        return switch (columnIndex) {
+            case SENSOR_COLUMN -> String.format("%s(%s): %s", row.sensor.getName(), row.sensor.getSensorType().toString(),
+                    (row.active ? "Active" : "Inactive"));
+            case TOGGLE_COLUMN -> row.active ? "Deactivate" : "Activate";
+            case REMOVE_COLUMN -> "Remove Sensor";
+            default -> throw new IndexOutOfBoundsException(columnIndex);
+        };
+    }
+
+    @Override
+    public boolean isCellEditable(int rowIndex, int columnIndex) {
+        return columnIndex == TOGGLE_COLUMN || columnIndex == REMOVE_COLUMN;
+    }
+
+    Sensor getSensorAt(int rowIndex) {
+        return rows.get(rowIndex).sensor;
+    }
+
+    /**
+     * Adds a sensor at its sorted position.
+     */
+    void sensorAdded(Sensor sensor) {
+        if (rowIndexes.containsKey(sensor.getSensorId())) {
+            sensorUpdated(sensor);
+            return;
+        }
+        int position = Collections.binarySearch(rows, new Row(sensor), (a, b) -> a.sensor.compareTo(b.sensor));
+        int rowIndex = position < 0 ? -position - 1 : position;
+        rows.add(rowIndex, new Row(sensor));
+        reindexFrom(rowIndex);
+        fireTableRowsInserted(rowIndex, rowIndex);
+    }
+
+    void sensorRemoved(Sensor sensor) {
+        Integer rowIndex = rowIndexes.remove(sensor.getSensorId());
+        if (rowIndex == null) {
+            return;
+        }
+        rows.remove((int) rowIndex);
+        reindexFrom(rowIndex);
+        fireTableRowsDeleted(rowIndex, rowIndex);
+    }
+
+    /**
+     * Repaints the sensor's row if what it shows has changed.
+     */
+    void sensorUpdated(Sensor sensor) {
+        Integer rowIndex = rowIndexes.get(sensor.getSensorId());
+        if (rowIndex == null) {
+            return;
+        }
+        Row row = rows.get(rowIndex);
+        row.sensor = sensor;
+        if (row.active != sensor.getActive()) {
+            row.active = sensor.getActive();
+            fireTableRowsUpdated(rowIndex, rowIndex);
+        }
+    }
+
+    /**
+     * Brings the model in line with the current sensors. If the same sensors are shown only the
+     * rows whose state changed are repainted, otherwise the model is rebuilt.
+     */
+    void refresh(Collection<Sensor> sensors) {
+        boolean sameSensors = sensors.size() == rows.size();
+        if (sameSensors) {
+            for (Sensor sensor : sensors) {
+                if (!rowIndexes.containsKey(sensor.getSensorId())) {
+                    sameSensors = false;
+                    break;
+                }
+            }
+        }
+        if (sameSensors) {
+            sensors.forEach(this::sensorUpdated);
+            return;
+        }
+        rows.clear();
+        sensors.forEach(sensor -> rows.add(new Row(sensor)));
+        rows.sort((a, b) -> a.sensor.compareTo(b.sensor));
+        rowIndexes.clear();
+        reindexFrom(0);
+        fireTableDataChanged();
+    }
+
+    private void reindexFrom(int rowIndex) {
+        for (int i = rowIndex; i < rows.size(); i++) {
+            rowIndexes.put(rows.get(i).sensor.getSensorId(), i);
+        }
+    }
+
+    /**
+     * A sensor and the activation state its row currently shows.
+     */
+    private static class Row {
+        private Sensor sensor;
+        private boolean active;
+
+        Row(Sensor sensor) {
+            this.sensor = sensor;
+            this.active = sensor.getActive();
+        }
+    }
+}
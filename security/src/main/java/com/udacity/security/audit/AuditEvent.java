@@ -0,0 +1,58 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.security.audit;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * One entry of the {@link AuditLog}: an input the security system received, or an alarm
+ * transition it made in response.
+ *
+ * @param timestampMicros Microseconds since the epoch, never smaller than the previous entry's
+ * @param type            What happened
+ * @param subject         The sensor id for sensor events, the camera id for image verdicts,
+ *                        otherwise empty
+ * @param value           The sensor's new state, {@code active} or {@code inactive}, the verdict,
+ *                        {@code cat} or {@code no_cat}, or the name of the new arming or alarm
+ *                        status
+ */
+public record AuditEvent(long timestampMicros, Type type, String subject, String value) {
+
+    public enum Type {
+        SENSOR,
+        IMAGE,
+        ARMING,
+        ALARM
+    }
+
+    public Instant timestamp() {
+        return Instant.EPOCH.plus(timestampMicros, ChronoUnit.MICROS);
+    }
+
+    static long toMicros(Instant instant) {
+        return Math.addExact(Math.multiplyExact(instant.getEpochSecond(), 1_000_000L), instant.getNano() / 1_000);
+    }
+}
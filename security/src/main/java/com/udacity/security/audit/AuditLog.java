@@ -0,0 +1,849 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.security.audit;
+
+import com.udacity.metrics.MetricsRegistry;
+import com.udacity.security.service.MpscRingBuffer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Append-only log of every input the security system received and every alarm transition it
+ * made, kept in segment files in a directory.
+ * <p>
+ * Recording an event only stamps it with the time and queues it in a {@link MpscRingBuffer}; a
+ * background thread appends it to the current segment and makes it visible to queries whenever
+ * the queue runs empty. Timestamps never go backwards: an event stamped before the previous one,
+ * because the clock was set back or another thread queued it later, gets the previous event's
+ * timestamp. When the queue is full, recording waits for the writer rather than lose the event. Once
+ * the log is closed or its writer failed, events are counted as dropped instead.
+ * <p>
+ * Records are framed like those of the write-ahead log, {@code [payload length][CRC32][payload]},
+ * so a tail torn by a crash is detected and cut off when the log is opened. Every segment has a
+ * sparse index holding the timestamp and position of the first record of each block of about
+ * {@value #INDEX_INTERVAL_BYTES} bytes. A full segment is sealed and compressed by a second
+ * background thread, so the writer goes on with the next segment right away: each block is
+ * compressed as a separate gzip member and the index is stored next to it, so reading can still
+ * start in the middle of a compressed segment. Until its compressed copy replaces it, a sealed
+ * segment is queried uncompressed. A range query picks the segments by their first timestamp and
+ * the first block by the index, and reads at most one block before the range.
+ */
+public class AuditLog implements AutoCloseable {
+
+    public static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    private static final int INDEX_INTERVAL_BYTES = 64 * 1024;
+    private static final int DRAIN_LIMIT = 256;
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int FRAME_HEADER_BYTES = 2 * Integer.BYTES;
+    //a timestamp, a type and two strings of at most 64 KB
+    private static final int MAX_PAYLOAD_BYTES = Long.BYTES + 1 + 2 * (Short.BYTES + 0xFFFF);
+    private static final String PREFIX = "audit-";
+    private static final String LOG_SUFFIX = ".log";
+    private static final String COMPRESSED_SUFFIX = ".log.gz";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final Clock clock;
+    //audit events, and futures completed once everything before them is visible
+    private final MpscRingBuffer<Object> queue;
+    private final Thread writer;
+    private final ExecutorService compressor;
+    private final LongAdder recorded = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    //held by queries while they read, so sealing never deletes a segment being read
+    private final ReadWriteLock segmentLock = new ReentrantReadWriteLock();
+    //oldest first, replaced while holding segmentUpdates; the last one is the one being written
+    private volatile List<Segment> segments;
+    private final Object segmentUpdates = new Object();
+    private volatile boolean parked;
+    private volatile boolean running = true;
+    private volatile Exception failure;
+
+    //only touched by the writer thread once it started
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer buffer = ByteBuffer.allocate(256);
+    private Segment active;
+    private FileChannel channel;
+    private OutputStream out;
+    private long position;
+    private long blockStart;
+    private long lastTimestamp;
+
+    public AuditLog(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_CAPACITY, Clock.systemUTC());
+    }
+
+    /**
+     * Opens (or creates) the log in the given directory. Segments left uncompressed by a crash
+     * are compressed now, apart from the last one, which is appended to.
+     *
+     * @param directory    Directory holding the segments
+     * @param segmentBytes Size after which a segment is sealed and compressed
+     * @param capacity     Maximum number of events waiting for the writer
+     * @param clock        Clock stamping the events
+     */
+    public AuditLog(Path directory, long segmentBytes, int capacity, Clock clock) throws IOException {
+        if (segmentBytes <= 0) {
+            throw new IllegalArgumentException("segmentBytes must be positive");
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.clock = clock;
+        this.queue = new MpscRingBuffer<>(capacity);
+        Files.createDirectories(directory);
+        segments = open();
+        compressor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "audit-compressor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        writer = new Thread(this::run, "audit-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Records an event, stamped with the current time. Returns once the event is queued; it is
+     * written in the background.
+     *
+     * @throws IllegalArgumentException If the subject or the value is longer than 65535 bytes in UTF-8
+     */
+    public void record(AuditEvent.Type type, String subject, String value) {
+        Objects.requireNonNull(type, "type");
+        if (!fitsInField(Objects.requireNonNull(subject, "subject"))
+                || !fitsInField(Objects.requireNonNull(value, "value"))) {
+            throw new IllegalArgumentException("Audit event text longer than 65535 bytes");
+        }
+        enqueue(new AuditEvent(AuditEvent.toMicros(clock.instant()), type, subject, value));
+    }
+
+    private static boolean fitsInField(String text) {
+        //a char takes at most three bytes, only long texts have to be encoded to tell
+        return text.length() <= 0xFFFF / 3 || text.getBytes(StandardCharsets.UTF_8).length <= 0xFFFF;
+    }
+
+    private boolean enqueue(Object element) {
+        while (true) {
+            //once the writer stopped, nothing takes elements off the queue any more
+            if (!running || !writer.isAlive()) {
+                if (element instanceof AuditEvent) {
+                    dropped.increment();
+                }
+                return false;
+            }
+            if (queue.offer(element)) {
+                break;
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        if (!running && reclaim(element)) {
+            return false;
+        }
+        if (element instanceof AuditEvent) {
+            recorded.increment();
+        }
+        if (parked) {
+            LockSupport.unpark(writer);
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the writer to stop and drops what it left in the queue: an element queued while
+     * it stopped may have missed its last look at the queue.
+     *
+     * @return True if the given element was dropped
+     */
+    private boolean reclaim(Object element) {
+        try {
+            writer.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        synchronized (queue) {
+            return abandonQueued(element);
+        }
+    }
+
+    /**
+     * Waits until every event recorded so far was written and is visible to queries.
+     *
+     * @throws IllegalStateException If the writer failed, the events it did not write are lost
+     */
+    public void flush() {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        if (!enqueue(done)) {
+            throwIfFailed();
+            return;
+        }
+        //the writer may have stopped before it got to the future
+        while (!done.isDone() && writer.isAlive()) {
+            try {
+                done.get(PARK_NANOS, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException | ExecutionException ignored) {
+                //checked by the loop
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        throwIfFailed();
+    }
+
+    private void throwIfFailed() {
+        if (failure != null) {
+            throw new IllegalStateException("Audit log writer failed", failure);
+        }
+    }
+
+    /**
+     * Returns the events recorded from {@code from}, inclusive, to {@code to}, exclusive, in the
+     * order they were recorded. Events still waiting for the writer are not included.
+     */
+    public List<AuditEvent> query(Instant from, Instant to) throws IOException {
+        long fromMicros = AuditEvent.toMicros(from);
+        long toMicros = AuditEvent.toMicros(to);
+        List<AuditEvent> events = new ArrayList<>();
+        segmentLock.readLock().lock();
+        try {
+            List<Segment> all = segments;
+            //the range may start in the last segment starting before it; with equal timestamps
+            //at a segment border, the range's first events are in the earlier segment
+            int first = 0;
+            while (first + 1 < all.size() && all.get(first + 1).firstTimestamp < fromMicros) {
+                first++;
+            }
+            for (int i = first; i < all.size() && all.get(i).firstTimestamp < toMicros; i++) {
+                if (!read(all.get(i), fromMicros, toMicros, events)) {
+                    break;
+                }
+            }
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+        return events;
+    }
+
+    /**
+     * Adds the segment's events in the range to the list.
+     *
+     * @return False if the segment holds an event past the range
+     */
+    private static boolean read(Segment segment, long from, long to, List<AuditEvent> events) throws IOException {
+        long start;
+        long length;
+        synchronized (segment) {
+            start = segment.floor(from);
+            length = segment.length;
+        }
+        if (start >= length) {
+            return true;
+        }
+        try (FileChannel file = FileChannel.open(segment.file, StandardOpenOption.READ);
+             InputStream stream = new BufferedInputStream(Channels.newInputStream(file.position(start)), INDEX_INTERVAL_BYTES);
+             RecordReader reader = new RecordReader(segment.compressed
+                             ? new BufferedInputStream(new GZIPInputStream(stream), INDEX_INTERVAL_BYTES) : stream,
+                     segment.compressed ? Long.MAX_VALUE : length - start)) {
+            for (AuditEvent event; (event = reader.next()) != null; ) {
+                if (event.timestampMicros() >= to) {
+                    return false;
+                }
+                if (event.timestampMicros() >= from) {
+                    events.add(event);
+                }
+            }
+        }
+        return true;
+    }
+
+    public long getRecordedCount() {
+        return recorded.sum();
+    }
+
+    /**
+     * Returns the number of events that were not written because the log was closed or its
+     * writer failed. A failure of the writer is also passed to its uncaught exception handler
+     * and thrown by {@link #flush()}.
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public int getQueuedCount() {
+        return queue.size();
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Publishes the log's counts in the registry.
+     */
+    public void registerMetrics(MetricsRegistry registry) {
+        if (!registry.isEnabled()) {
+            return;
+        }
+        registry.gauge("audit.recorded", this::getRecordedCount);
+        registry.gauge("audit.dropped", this::getDroppedCount);
+        registry.gauge("audit.queued", this::getQueuedCount);
+        registry.gauge("audit.segments", this::getSegmentCount);
+    }
+
+    /**
+     * Waits until the segments sealed so far are compressed, or failed to be.
+     */
+    void awaitCompression() {
+        try {
+            compressor.submit(() -> {
+            }).get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | RejectedExecutionException e) {
+            //closed, nothing left to wait for
+        }
+    }
+
+    /**
+     * Writes the queued events, closes the current segment and waits for the segments being
+     * compressed. Events recorded afterwards are dropped.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        compressor.shutdown();
+        try {
+            compressor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (running || !queue.isEmpty()) {
+                if (queue.drain(this::handle, DRAIN_LIMIT) > 0) {
+                    continue;
+                }
+                makeVisible();
+                parked = true;
+                //check again after announcing, a producer that missed the flag has already queued
+                if (queue.isEmpty() && running) {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+                parked = false;
+            }
+            if (active != null) {
+                makeVisible();
+                channel.force(false);
+                channel.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+            writer.getUncaughtExceptionHandler().uncaughtException(writer, e);
+        } finally {
+            running = false;
+            abandonQueued(null);
+        }
+    }
+
+    /**
+     * Empties the queue once the writer stopped, counting the events as dropped and failing the
+     * flushes.
+     *
+     * @return True if the given element was in the queue
+     */
+    private boolean abandonQueued(Object element) {
+        boolean found = false;
+        for (Object queued; (queued = queue.poll()) != null; ) {
+            found |= queued == element;
+            if (queued instanceof CompletableFuture<?> done) {
+                done.completeExceptionally(failure != null
+                        ? new IllegalStateException("Audit log writer failed", failure)
+                        : new IllegalStateException("Audit log closed"));
+            } else {
+                dropped.increment();
+            }
+        }
+        return found;
+    }
+
+    private void handle(Object element) {
+        try {
+            if (element instanceof AuditEvent event) {
+                append(event);
+            } else {
+                makeVisible();
+                ((CompletableFuture<?>) element).complete(null);
+            }
+        } catch (IOException ioe) {
+            if (element instanceof AuditEvent) {
+                dropped.increment();
+            }
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    private void append(AuditEvent event) throws IOException {
+        long timestamp = Math.max(event.timestampMicros(), lastTimestamp);
+        lastTimestamp = timestamp;
+        if (active == null || position >= segmentBytes) {
+            roll(timestamp);
+        }
+        //record() made sure both fit their length fields
+        byte[] subject = event.subject().getBytes(StandardCharsets.UTF_8);
+        byte[] value = event.value().getBytes(StandardCharsets.UTF_8);
+        int length = Long.BYTES + 1 + Short.BYTES + subject.length + Short.BYTES + value.length;
+        if (buffer.capacity() < FRAME_HEADER_BYTES + length) {
+            buffer = ByteBuffer.allocate(FRAME_HEADER_BYTES + length);
+        }
+        buffer.clear();
+        buffer.putInt(length);
+        buffer.putInt(0);
+        buffer.putLong(timestamp);
+        buffer.put((byte) event.type().ordinal());
+        buffer.putShort((short) subject.length);
+        buffer.put(subject);
+        buffer.putShort((short) value.length);
+        buffer.put(value);
+        crc.reset();
+        crc.update(buffer.array(), FRAME_HEADER_BYTES, length);
+        buffer.putInt(Integer.BYTES, (int) crc.getValue());
+
+        if (active.blocks == 0 || position - blockStart >= INDEX_INTERVAL_BYTES) {
+            synchronized (active) {
+                active.addBlock(timestamp, position);
+            }
+            blockStart = position;
+        }
+        out.write(buffer.array(), 0, buffer.position());
+        position += buffer.position();
+    }
+
+    private void makeVisible() throws IOException {
+        if (active != null && active.length != position) {
+            out.flush();
+            synchronized (active) {
+                active.length = position;
+            }
+        }
+    }
+
+    /**
+     * Seals the current segment, if any, hands it to the compressor and starts a new one with the
+     * given first timestamp.
+     */
+    private void roll(long firstTimestamp) throws IOException {
+        if (active != null) {
+            makeVisible();
+            channel.force(false);
+            channel.close();
+            Segment sealed = active;
+            compressor.execute(() -> compressInBackground(sealed));
+        }
+        long sequence = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).sequence + 1;
+        Segment segment = new Segment(file(sequence, firstTimestamp, LOG_SUFFIX), sequence, firstTimestamp, false);
+        channel = FileChannel.open(segment.file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        out = new BufferedOutputStream(Channels.newOutputStream(channel), INDEX_INTERVAL_BYTES);
+        position = 0;
+        blockStart = 0;
+        active = segment;
+        synchronized (segmentUpdates) {
+            List<Segment> all = new ArrayList<>(segments);
+            all.add(segment);
+            segments = List.copyOf(all);
+        }
+    }
+
+    /**
+     * Compresses a sealed segment. If that fails, the segment stays uncompressed until the log is
+     * opened again.
+     */
+    private void compressInBackground(Segment raw) {
+        try {
+            replace(raw, compress(raw));
+        } catch (IOException | RuntimeException e) {
+            Thread thread = Thread.currentThread();
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        }
+    }
+
+    /**
+     * Swaps a sealed segment for its compressed copy and deletes the uncompressed file.
+     */
+    private void replace(Segment raw, Segment compressed) throws IOException {
+        segmentLock.writeLock().lock();
+        try {
+            synchronized (segmentUpdates) {
+                List<Segment> all = new ArrayList<>(segments);
+                all.set(all.indexOf(raw), compressed);
+                segments = List.copyOf(all);
+            }
+            Files.delete(raw.file);
+        } finally {
+            segmentLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes a compressed copy of a segment, one gzip member per index block, and its index.
+     * The compressed file is moved into place last, so it only exists once it is complete.
+     */
+    private Segment compress(Segment raw) throws IOException {
+        Path compressedFile = file(raw.sequence, raw.firstTimestamp, COMPRESSED_SUFFIX);
+        Path temp = temp(compressedFile);
+        Segment compressed = new Segment(compressedFile, raw.sequence, raw.firstTimestamp, true);
+        try (FileChannel in = FileChannel.open(raw.file, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                     StandardOpenOption.WRITE)) {
+            ByteArrayOutputStream member = new ByteArrayOutputStream();
+            for (int i = 0; i < raw.blocks; i++) {
+                long start = raw.positions[i];
+                long end = i + 1 < raw.blocks ? raw.positions[i + 1] : raw.length;
+                ByteBuffer block = ByteBuffer.allocate((int) (end - start));
+                while (block.hasRemaining()) {
+                    if (in.read(block, start + block.position()) < 0) {
+                        throw new EOFException("Audit segment " + raw.file + " is shorter than its index");
+                    }
+                }
+                member.reset();
+                try (GZIPOutputStream gzip = new GZIPOutputStream(member)) {
+                    gzip.write(block.array());
+                }
+                compressed.addBlock(raw.timestamps[i], out.position());
+                out.write(ByteBuffer.wrap(member.toByteArray()));
+            }
+            compressed.length = out.position();
+            out.force(false);
+        }
+        Path index = file(raw.sequence, raw.firstTimestamp, INDEX_SUFFIX);
+        try (DataOutputStream data = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp(index))))) {
+            data.writeInt(compressed.blocks);
+            for (int i = 0; i < compressed.blocks; i++) {
+                data.writeLong(compressed.timestamps[i]);
+                data.writeLong(compressed.positions[i]);
+            }
+        }
+        Files.move(temp(index), index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(temp, compressedFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return compressed;
+    }
+
+    /**
+     * Loads the segments found in the directory and opens the last one for appending.
+     */
+    private List<Segment> open() throws IOException {
+        TreeMap<Long, Path> raw = new TreeMap<>();
+        TreeMap<Long, Path> compressed = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    //left behind by a crash while compressing
+                    Files.delete(file);
+                } else if (name.endsWith(COMPRESSED_SUFFIX)) {
+                    compressed.put(sequence(name), file);
+                } else if (name.endsWith(LOG_SUFFIX)) {
+                    raw.put(sequence(name), file);
+                }
+            }
+        }
+        List<Segment> all = new ArrayList<>();
+        for (Path file : compressed.values()) {
+            Segment segment = loadCompressed(file);
+            Path rawFile = raw.remove(segment.sequence);
+            if (rawFile != null) {
+                //compressed, but the crash came before the original was deleted
+                Files.delete(rawFile);
+            }
+            all.add(segment);
+        }
+        for (Path file : raw.values()) {
+            Segment segment = scan(file);
+            if (file.equals(raw.lastEntry().getValue()) && (all.isEmpty()
+                    || segment.sequence > all.get(all.size() - 1).sequence)) {
+                active = segment;
+            } else {
+                Segment sealed = compress(segment);
+                Files.delete(file);
+                segment = sealed;
+            }
+            all.add(segment);
+        }
+        all.sort((a, b) -> Long.compare(a.sequence, b.sequence));
+        if (active != null) {
+            channel = FileChannel.open(active.file, StandardOpenOption.WRITE);
+            channel.truncate(active.length);
+            channel.position(active.length);
+            out = new BufferedOutputStream(Channels.newOutputStream(channel), INDEX_INTERVAL_BYTES);
+            position = active.length;
+            blockStart = active.blocks == 0 ? 0 : active.positions[active.blocks - 1];
+        } else if (!all.isEmpty()) {
+            lastTimestamp = lastTimestamp(all.get(all.size() - 1));
+        }
+        return List.copyOf(all);
+    }
+
+    private Segment loadCompressed(Path file) throws IOException {
+        String name = file.getFileName().toString();
+        Segment segment = new Segment(file, sequence(name), firstTimestamp(name), true);
+        Path index = file(segment.sequence, segment.firstTimestamp, INDEX_SUFFIX);
+        try (DataInputStream data = new DataInputStream(new BufferedInputStream(Files.newInputStream(index)))) {
+            int blocks = data.readInt();
+            for (int i = 0; i < blocks; i++) {
+                segment.addBlock(data.readLong(), data.readLong());
+            }
+        }
+        segment.length = Files.size(file);
+        return segment;
+    }
+
+    /**
+     * Reads an uncompressed segment, rebuilding its index, and cuts off a torn tail.
+     */
+    private Segment scan(Path file) throws IOException {
+        String name = file.getFileName().toString();
+        Segment segment = new Segment(file, sequence(name), firstTimestamp(name), false);
+        long lastBlock = 0;
+        try (RecordReader reader = new RecordReader(new BufferedInputStream(Files.newInputStream(file)), Long.MAX_VALUE)) {
+            for (long start = 0; ; start = reader.consumed) {
+                AuditEvent event = reader.next();
+                if (event == null) {
+                    break;
+                }
+                if (segment.blocks == 0 || start - lastBlock >= INDEX_INTERVAL_BYTES) {
+                    segment.addBlock(event.timestampMicros(), start);
+                    lastBlock = start;
+                }
+                lastTimestamp = Math.max(lastTimestamp, event.timestampMicros());
+            }
+            segment.length = reader.consumed;
+        }
+        if (Files.size(file) > segment.length) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(segment.length);
+            }
+        }
+        return segment;
+    }
+
+    private static long lastTimestamp(Segment segment) throws IOException {
+        List<AuditEvent> events = new ArrayList<>();
+        read(segment, segment.blocks == 0 ? 0 : segment.timestamps[segment.blocks - 1], Long.MAX_VALUE, events);
+        return events.isEmpty() ? segment.firstTimestamp : events.get(events.size() - 1).timestampMicros();
+    }
+
+    private Path file(long sequence, long firstTimestamp, String suffix) {
+        return directory.resolve(String.format("%s%010d-%020d%s", PREFIX, sequence, firstTimestamp, suffix));
+    }
+
+    private static Path temp(Path file) {
+        return file.resolveSibling(file.getFileName() + TEMP_SUFFIX);
+    }
+
+    private static long sequence(String name) {
+        return Long.parseLong(name.substring(PREFIX.length(), PREFIX.length() + 10));
+    }
+
+    private static long firstTimestamp(String name) {
+        return Long.parseLong(name.substring(PREFIX.length() + 11, PREFIX.length() + 31));
+    }
+
+    /**
+     * A segment file and its sparse index.
+     */
+    private static final class Segment {
+        final Path file;
+        final long sequence;
+        final long firstTimestamp;
+        final boolean compressed;
+        //guarded by this while the segment is written
+        long[] timestamps = new long[16];
+        long[] positions = new long[16];
+        int blocks;
+        //bytes queries may read
+        long length;
+
+        Segment(Path file, long sequence, long firstTimestamp, boolean compressed) {
+            this.file = file;
+            this.sequence = sequence;
+            this.firstTimestamp = firstTimestamp;
+            this.compressed = compressed;
+        }
+
+        void addBlock(long timestamp, long position) {
+            if (blocks == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, blocks * 2);
+                positions = Arrays.copyOf(positions, blocks * 2);
+            }
+            timestamps[blocks] = timestamp;
+            positions[blocks] = position;
+            blocks++;
+        }
+
+        /**
+         * Returns the position of the last block that starts before the timestamp, or of the
+         * first block. Events at the timestamp may end the block before the one starting with it.
+         */
+        long floor(long timestamp) {
+            int low = 0;
+            int high = blocks - 1;
+            int found = 0;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (timestamps[middle] < timestamp) {
+                    found = middle;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return blocks == 0 ? 0 : positions[found];
+        }
+    }
+
+    /**
+     * Reads framed records until the end of the stream, the byte limit, or the first torn or
+     * corrupt record.
+     */
+    private static final class RecordReader implements AutoCloseable {
+        private final DataInputStream in;
+        private final long limit;
+        private final CRC32 crc = new CRC32();
+        private byte[] payload = new byte[256];
+        long consumed;
+
+        RecordReader(InputStream in, long limit) {
+            this.in = new DataInputStream(in);
+            this.limit = limit;
+        }
+
+        AuditEvent next() throws IOException {
+            if (consumed + FRAME_HEADER_BYTES > limit) {
+                return null;
+            }
+            int length;
+            int checksum;
+            try {
+                length = in.readInt();
+                checksum = in.readInt();
+                if (length < Long.BYTES + 1 + 2 * Short.BYTES || length > MAX_PAYLOAD_BYTES
+                        || consumed + FRAME_HEADER_BYTES + length > limit) {
+                    return null;
+                }
+                if (payload.length < length) {
+                    payload = new byte[length];
+                }
+                in.readFully(payload, 0, length);
+            } catch (EOFException e) {
+                return null;
+            }
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                return null;
+            }
+            consumed += FRAME_HEADER_BYTES + length;
+            ByteBuffer record = ByteBuffer.wrap(payload, 0, length);
+            long timestamp = record.getLong();
+            int type = Byte.toUnsignedInt(record.get());
+            if (type >= AuditEvent.Type.values().length) {
+                return null;
+            }
+            String subject = string(record);
+            String value = string(record);
+            return subject == null || value == null ? null
+                    : new AuditEvent(timestamp, AuditEvent.Type.values()[type], subject, value);
+        }
+
+        private static String string(ByteBuffer record) {
+            if (record.remaining() < Short.BYTES) {
+                return null;
+            }
+            int length = Short.toUnsignedInt(record.getShort());
+            if (length > record.remaining()) {
+                return null;
+            }
+            String value = new String(record.array(), record.position(), length, StandardCharsets.UTF_8);
+            record.position(record.position() + length);
+            return value;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.security.data;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when a repository writes the changes it buffered in memory, according to its
+ * {@link Durability}.
+ * <p>
+ * The repository applies a change to its in-memory state, marks it for writing and then calls
+ * {@link #changed()}, without holding its own lock. With {@link Durability#SYNC} and
+ * {@link Durability#FSYNC} the first caller to arrive writes everything buffered so far, while
+ * callers arriving during that write wait and are covered by the next one, so concurrent changes
+ * share writes and forces. With {@link Durability#ASYNC} a background thread writes the buffered
+ * changes every flush interval, or as soon as the given number of changes is pending, without
+ * forcing them, and writes and forces them once more when the JVM shuts down. After
+ * {@link #close()} there is no background thread left, and changes are written by their caller.
+ */
+class GroupCommit implements AutoCloseable {
+
+    /**
+     * Writes every change the repository buffered, as one batch.
+     */
+    interface Writer {
+        /**
+         * @param force Whether the batch must also be forced to the storage device
+         */
+        void write(boolean force);
+    }
+
+    private final Durability durability;
+    private final int maxPendingChanges;
+    private final Writer writer;
+    private final ScheduledExecutorService flusher;
+    private final Thread shutdownHook;
+
+    //guarded by this, sequence numbers of changes
+    private long changes;
+    private long written;
+    private long forced;
+    private boolean writing;
+    private long commits;
+    private RuntimeException failure;
+
+    /**
+     * @param name              Name of the background thread
+     * @param durability        When changes have to be written
+     * @param flushInterval     How long changes may stay buffered, only used with ASYNC
+     * @param maxPendingChanges Number of buffered changes that triggers a write, only used with ASYNC
+     * @param writer            Writes the buffered changes
+     */
+    GroupCommit(String name, Durability durability, Duration flushInterval, int maxPendingChanges, Writer writer) {
+        if (maxPendingChanges <= 0 || flushInterval.isNegative() || flushInterval.isZero()) {
+            throw new IllegalArgumentException("flushInterval and maxPendingChanges must be positive");
+        }
+        this.durability = durability;
+        this.maxPendingChanges = maxPendingChanges;
+        this.writer = writer;
+        if (durability == Durability.ASYNC) {
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+            long intervalNanos = flushInterval.toNanos();
+            flusher.scheduleWithFixedDelay(() -> writeInBackground(false), intervalNanos, intervalNanos, TimeUnit.NANOSECONDS);
+            shutdownHook = new Thread(() -> writeInBackground(true), name + "-shutdown");
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        } else {
+            flusher = null;
+            shutdownHook = null;
+        }
+    }
+
+    /**
+     * Records that the repository buffered a change, and returns once the change is as durable as
+     * configured.
+     */
+    void changed() {
+        long sequence;
+        synchronized (this) {
+            sequence = ++changes;
+        }
+        switch (durability) {
+            case SYNC -> commit(sequence, false);
+            case FSYNC -> commit(sequence, true);
+            case ASYNC -> {
+                if (flusher.isShutdown()) {
+                    commit(sequence, false);
+                } else if (pendingChanges() >= maxPendingChanges) {
+                    try {
+                        flusher.execute(() -> writeInBackground(false));
+                    } catch (RejectedExecutionException e) {
+                        //closed in the meantime
+                        commit(sequence, false);
+                    }
+                }
+            }
+        }
+    }
+
+    private synchronized long pendingChanges() {
+        return changes - written;
+    }
+
+    /**
+     * Writes and forces every change made so far. Rethrows a failure of an earlier background
+     * write that was not retried successfully since.
+     */
+    void flush() {
+        long sequence;
+        synchronized (this) {
+            sequence = changes;
+        }
+        commit(sequence, true);
+        synchronized (this) {
+            if (failure != null) {
+                RuntimeException e = failure;
+                failure = null;
+                throw e;
+            }
+        }
+    }
+
+    private void writeInBackground(boolean force) {
+        long sequence;
+        synchronized (this) {
+            sequence = changes;
+        }
+        try {
+            commit(sequence, force);
+        } catch (RuntimeException e) {
+            //the changes stay buffered and are retried with the next write
+            synchronized (this) {
+                failure = e;
+            }
+        }
+    }
+
+    /**
+     * Makes sure a write covering the given change has finished, doing it on this thread unless
+     * another thread is already writing.
+     */
+    private void commit(long sequence, boolean force) {
+        long upTo;
+        synchronized (this) {
+            boolean interrupted = false;
+            while (writing && (force ? forced : written) < sequence) {
+                try {
+                    wait();
+                } catch (InterruptedException ie) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if ((force ? forced : written) >= sequence) {
+                return;
+            }
+            writing = true;
+            upTo = changes;
+        }
+        boolean succeeded = false;
+        try {
+            writer.write(force);
+            succeeded = true;
+        } finally {
+            synchronized (this) {
+                writing = false;
+                if (succeeded) {
+                    written = Math.max(written, upTo);
+                    if (force) {
+                        forced = Math.max(forced, upTo);
+                    }
+                    failure = null;
+                    commits++;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of batches written.
+     */
+    synchronized long getCommitCount() {
+        return commits;
+    }
+
+    /**
+     * Stops the background thread after writing and forcing every buffered change.
+     */
+    @Override
+    public void close() {
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                //already shutting down, the hook writes the changes
+            }
+        }
+        flush();
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.security.data;
+
+import com.udacity.metrics.LatencyHistogram;
+import com.udacity.metrics.MetricsRegistry;
+
+import java.util.Collection;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Repository decorator that records how long writes take, in the histogram
+ * {@code repository.write}, whether they succeed or fail. Reads are passed through untimed.
+ */
+public class InstrumentedSecurityRepository implements SecurityRepository {
+
+    private final SecurityRepository delegate;
+    private final LatencyHistogram writeLatency;
+
+    private InstrumentedSecurityRepository(SecurityRepository delegate, LatencyHistogram writeLatency) {
+        this.delegate = delegate;
+        this.writeLatency = writeLatency;
+    }
+
+    /**
+     * Returns the repository itself if the registry is disabled, otherwise a decorator recording
+     * its writes.
+     */
+    public static SecurityRepository wrap(SecurityRepository delegate, MetricsRegistry registry) {
+        if (!registry.isEnabled()) {
+            return delegate;
+        }
+        return new InstrumentedSecurityRepository(delegate, registry.histogram("repository.write"));
+    }
+
+    @Override
+    public void addSensor(Sensor sensor) {
+        long start = System.nanoTime();
+        try {
+            delegate.addSensor(sensor);
+        } finally {
+            writeLatency.recordSince(start);
+        }
+    }
+
+    @Override
+    public void removeSensor(Sensor sensor) {
+        long start = System.nanoTime();
+        try {
+            delegate.removeSensor(sensor);
+        } finally {
+            writeLatency.recordSince(start);
+        }
+    }
+
+    @Override
+    public void updateSensor(Sensor sensor) {
+        long start = System.nanoTime();
+        try {
+            delegate.updateSensor(sensor);
+        } finally {
+            writeLatency.recordSince(start);
+        }
+    }
+
+    @Override
+    public void updateSensors(Collection<Sensor> sensors) {
+        long start = System.nanoTime();
+        try {
+            delegate.updateSensors(sensors);
+        } finally {
+            writeLatency.recordSince(start);
+        }
+    }
+
+    @Override
+    public void deactivateAll() {
+        long start = System.nanoTime();
+        try {
+            delegate.deactivateAll();
+        } finally {
+            writeLatency.recordSince(start);
+        }
+    }
+
+    @Override
+    public Set<Sensor> getSensors() {
+        return delegate.getSensors();
+    }
+
+    @Override
+    public Optional<Sensor> findById(UUID sensorId) {
+        return delegate.findById(sensorId);
+    }
+
+    @Override
+    public Optional<Sensor> setActive(UUID sensorId, boolean active) {
+        long start = System.nanoTime();
+        try {
+            return delegate.setActive(sensorId, active);
+        } finally {
+            writeLatency.recordSince(start);
+        }
+    }
+
+    @Override
+    public Optional<Sensor> removeById(UUID sensorId) {
+        long start = System.nanoTime();
+        try {
+            return delegate.removeById(sensorId);
+        } finally {
+            writeLatency.recordSince(start);
+        }
+    }
+
+    @Override
+    public Set<Sensor> getSensors(SensorType sensorType) {
+        return delegate.getSensors(sensorType);
+    }
+
+    @Override
+    public Set<Sensor> getActiveSensors() {
+        return delegate.getActiveSensors();
+    }
+
+    @Override
+    public int getActiveSensorCount() {
+        return delegate.getActiveSensorCount();
+    }
+
+    @Override
+    public int getActiveSensorCount(SensorType sensorType) {
+        return delegate.getActiveSensorCount(sensorType);
+    }
+
+    @Override
+    public AlarmStatus getAlarmStatus() {
+        return delegate.getAlarmStatus();
+    }
+
+    @Override
+    public void setAlarmStatus(AlarmStatus alarmStatus) {
+        long start = System.nanoTime();
+        try {
+            delegate.setAlarmStatus(alarmStatus);
+        } finally {
+            writeLatency.recordSince(start);
+        }
+    }
+
+    @Override
+    public ArmingStatus getArmingStatus() {
+        return delegate.getArmingStatus();
+    }
+
+    @Override
+    public void setArmingStatus(ArmingStatus armingStatus) {
+        long start = System.nanoTime();
+        try {
+            delegate.setArmingStatus(armingStatus);
+        } finally {
+            writeLatency.recordSince(start);
+        }
+    }
+}
@@ -0,0 +1,547 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.security.data;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Repository implementation that keeps the sensor roster in a memory-mapped file of fixed-width
+ * binary records, so startup only maps the file instead of parsing it and every update is
+ * written in place.
+ * <p>
+ * File layout: a 32 byte header (magic, version, record count, alarm and arming status, reset
+ * generation) followed by one 24 byte record per sensor holding the UUID as two longs, an index
+ * into the interned name table, the {@link SensorType} ordinal, a flags byte with the active bit
+ * and the reset generation the sensor was last stored in. A sensor is only active if its active
+ * bit is set and it was stored in the current generation, so {@link #deactivateAll()} just
+ * starts a new generation instead of rewriting every record. Names live in
+ * a separate append-only file of length-prefixed UTF-8 strings. The UUID-to-slot index and the
+ * name table are only built the first time they are needed, and {@link #getSensors()} is a view
+ * that decodes records while it is iterated. Like the other repositories it iterates in display
+ * order; the slots sorted by name, type and id are kept until a sensor is added, removed, renamed
+ * or changes type.
+ * <p>
+ * Safe to use from several threads; every access to the mapped records holds this repository's
+ * lock.
+ */
+public class MappedSecurityRepositoryImpl implements SecurityRepository, AutoCloseable {
+
+    private static final String SENSOR_FILE = "sensors.dat";
+    private static final String NAME_FILE = "sensor-names.dat";
+
+    private static final int MAGIC = 0x43415453;
+    private static final int VERSION = 1;
+    private static final int INITIAL_CAPACITY = 64;
+
+    //header layout
+    private static final int HEADER_BYTES = 32;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int COUNT_OFFSET = 8;
+    private static final int ALARM_OFFSET = 12;
+    private static final int ARMING_OFFSET = 13;
+    private static final int RESET_GENERATION_OFFSET = 16;
+
+    //record layout
+    private static final int RECORD_BYTES = 24;
+    private static final int MSB_OFFSET = 0;
+    private static final int LSB_OFFSET = 8;
+    private static final int NAME_OFFSET = 16;
+    private static final int TYPE_OFFSET = 20;
+    private static final int FLAGS_OFFSET = 21;
+    private static final int GENERATION_OFFSET = 22;
+    private static final byte ACTIVE_FLAG = 1;
+
+    private final FileChannel sensorChannel;
+    private final FileChannel nameChannel;
+    private final Set<Sensor> sensorView = new SensorView();
+    private MappedByteBuffer records;
+    private int capacity;
+
+    //built lazily, see slots(), names(), activeCounts() and sortedSlots()
+    private Map<UUID, Integer> slots;
+    private int[] sortedSlots;
+    private int[] activeCounts;
+    private List<String> names;
+    private Map<String, Integer> nameIndexes;
+
+    public MappedSecurityRepositoryImpl() {
+        this(Paths.get(System.getProperty("user.home"), ".catpoint"));
+    }
+
+    public MappedSecurityRepositoryImpl(Path directory) {
+        try {
+            Files.createDirectories(directory);
+            sensorChannel = FileChannel.open(directory.resolve(SENSOR_FILE),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            nameChannel = FileChannel.open(directory.resolve(NAME_FILE),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            long size = sensorChannel.size();
+            if (size > 0 && size < HEADER_BYTES) {
+                throw new IllegalStateException("Truncated sensor store header in " + directory);
+            }
+            if (size == 0) {
+                map(INITIAL_CAPACITY);
+                records.putInt(MAGIC_OFFSET, MAGIC);
+                records.putInt(VERSION_OFFSET, VERSION);
+                records.putInt(COUNT_OFFSET, 0);
+                records.put(ALARM_OFFSET, (byte) AlarmStatus.NO_ALARM.ordinal());
+                records.put(ARMING_OFFSET, (byte) ArmingStatus.DISARMED.ordinal());
+            } else {
+                map((int) ((size - HEADER_BYTES) / RECORD_BYTES));
+                if (records.getInt(MAGIC_OFFSET) != MAGIC || records.getInt(VERSION_OFFSET) != VERSION) {
+                    throw new IllegalStateException("Unrecognized sensor store format in " + directory);
+                }
+                if (count() < 0 || count() > capacity) {
+                    throw new IllegalStateException("Sensor store in " + directory + " claims " + count()
+                            + " records but has room for " + capacity);
+                }
+            }
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Unable to open sensor store in " + directory, ioe);
+        }
+    }
+
+    /**
+     * Maps the header plus room for the given number of records, growing the file if needed.
+     */
+    private void map(int recordCapacity) throws IOException {
+        records = sensorChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + (long) recordCapacity * RECORD_BYTES);
+        capacity = recordCapacity;
+    }
+
+    private int count() {
+        return records.getInt(COUNT_OFFSET);
+    }
+
+    private static int offset(int slot) {
+        return HEADER_BYTES + slot * RECORD_BYTES;
+    }
+
+    private static UUID sensorIdAt(ByteBuffer records, int slot) {
+        int offset = offset(slot);
+        return new UUID(records.getLong(offset + MSB_OFFSET), records.getLong(offset + LSB_OFFSET));
+    }
+
+    /**
+     * Index from sensor id to record slot, built from the mapped records on first use.
+     */
+    private Map<UUID, Integer> slots() {
+        if (slots == null) {
+            int count = count();
+            slots = new HashMap<>(Math.max(16, count * 2));
+            for (int slot = 0; slot < count; slot++) {
+                slots.put(sensorIdAt(records, slot), slot);
+            }
+        }
+        return slots;
+    }
+
+    /**
+     * Number of active sensors per {@link SensorType} ordinal, counted from the record flags on
+     * first use and then adjusted whenever a record is written.
+     */
+    private int[] activeCounts() {
+        if (activeCounts == null) {
+            activeCounts = new int[SensorType.values().length];
+            int count = count();
+            for (int slot = 0; slot < count; slot++) {
+                countRecord(slot, 1);
+            }
+        }
+        return activeCounts;
+    }
+
+    /**
+     * Record slots in display order, sorted on first use after the order changed.
+     */
+    private int[] sortedSlots() {
+        if (sortedSlots == null) {
+            List<String> names = names();
+            Integer[] order = new Integer[count()];
+            for (int slot = 0; slot < order.length; slot++) {
+                order[slot] = slot;
+            }
+            Arrays.sort(order, (a, b) -> {
+                int result = names.get(records.getInt(offset(a) + NAME_OFFSET))
+                        .compareTo(names.get(records.getInt(offset(b) + NAME_OFFSET)));
+                if (result != 0) {
+                    return result;
+                }
+                result = SensorType.values()[records.get(offset(a) + TYPE_OFFSET)].name()
+                        .compareTo(SensorType.values()[records.get(offset(b) + TYPE_OFFSET)].name());
+                return result != 0 ? result : sensorIdAt(records, a).compareTo(sensorIdAt(records, b));
+            });
+            sortedSlots = Arrays.stream(order).mapToInt(Integer::intValue).toArray();
+        }
+        return sortedSlots;
+    }
+
+    private void countRecord(int slot, int delta) {
+        int offset = offset(slot);
+        if (activeCounts != null && isActive(offset)) {
+            activeCounts[records.get(offset + TYPE_OFFSET)] += delta;
+        }
+    }
+
+    /**
+     * Interned sensor names, read from the name file on first use.
+     */
+    private List<String> names() {
+        if (names == null) {
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate((int) nameChannel.size());
+                while (buffer.hasRemaining()) {
+                    if (nameChannel.read(buffer, buffer.position()) < 0) {
+                        break;
+                    }
+                }
+                buffer.flip();
+                names = new ArrayList<>();
+                nameIndexes = new HashMap<>();
+                while (buffer.remaining() >= Integer.BYTES) {
+                    int length = buffer.getInt();
+                    if (length < 0 || length > buffer.remaining()) {
+                        //a name write cut short by a crash, no record can point at it
+                        break;
+                    }
+                    byte[] bytes = new byte[length];
+                    buffer.get(bytes);
+                    String name = new String(bytes, StandardCharsets.UTF_8);
+                    nameIndexes.putIfAbsent(name, names.size());
+                    names.add(name);
+                }
+            } catch (IOException ioe) {
+                throw new UncheckedIOException("Unable to read sensor names", ioe);
+            }
+        }
+        return names;
+    }
+
+    private int intern(String name) {
+        String key = name == null ? "" : name;
+        names();
+        Integer index = nameIndexes.get(key);
+        if (index != null) {
+            return index;
+        }
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer entry = ByteBuffer.allocate(Integer.BYTES + bytes.length).putInt(bytes.length).put(bytes);
+        entry.flip();
+        try {
+            long position = nameChannel.size();
+            while (entry.hasRemaining()) {
+                position += nameChannel.write(entry, position);
+            }
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Unable to store sensor name", ioe);
+        }
+        nameIndexes.put(key, names.size());
+        names.add(key);
+        return names.size() - 1;
+    }
+
+    private Sensor readSensor(int slot) {
+        int offset = offset(slot);
+        Sensor sensor = new Sensor(names().get(records.getInt(offset + NAME_OFFSET)),
+                SensorType.values()[records.get(offset + TYPE_OFFSET)]);
+        sensor.setSensorId(sensorIdAt(records, slot));
+        sensor.setActive(isActive(offset));
+        return sensor;
+    }
+
+    private boolean isActive(int offset) {
+        return (records.get(offset + FLAGS_OFFSET) & ACTIVE_FLAG) != 0
+                && records.getShort(offset + GENERATION_OFFSET) == generation();
+    }
+
+    /**
+     * The current reset generation, truncated to the 16 bits stored in each record.
+     */
+    private short generation() {
+        return (short) records.getInt(RESET_GENERATION_OFFSET);
+    }
+
+    private void writeSensor(int slot, Sensor sensor) {
+        int offset = offset(slot);
+        records.putLong(offset + MSB_OFFSET, sensor.getSensorId().getMostSignificantBits());
+        records.putLong(offset + LSB_OFFSET, sensor.getSensorId().getLeastSignificantBits());
+        records.putInt(offset + NAME_OFFSET, intern(sensor.getName()));
+        records.put(offset + TYPE_OFFSET, (byte) sensor.getSensorType().ordinal());
+        records.put(offset + FLAGS_OFFSET, sensor.getActive() ? ACTIVE_FLAG : 0);
+        records.putShort(offset + GENERATION_OFFSET, generation());
+    }
+
+    @Override
+    public synchronized void addSensor(Sensor sensor) {
+        Integer slot = slots().get(sensor.getSensorId());
+        if (slot != null) {
+            int offset = offset(slot);
+            int name = records.getInt(offset + NAME_OFFSET);
+            byte type = records.get(offset + TYPE_OFFSET);
+            countRecord(slot, -1);
+            writeSensor(slot, sensor);
+            countRecord(slot, 1);
+            if (records.getInt(offset + NAME_OFFSET) != name || records.get(offset + TYPE_OFFSET) != type) {
+                sortedSlots = null;
+            }
+            return;
+        }
+        int count = count();
+        if (count == capacity) {
+            try {
+                map(capacity * 2);
+            } catch (IOException ioe) {
+                throw new UncheckedIOException("Unable to grow sensor store", ioe);
+            }
+        }
+        writeSensor(count, sensor);
+        countRecord(count, 1);
+        records.putInt(COUNT_OFFSET, count + 1);
+        slots.put(sensor.getSensorId(), count);
+        sortedSlots = null;
+    }
+
+    @Override
+    public synchronized void removeSensor(Sensor sensor) {
+        Integer slot = slots().remove(sensor.getSensorId());
+        if (slot == null) {
+            return;
+        }
+        countRecord(slot, -1);
+        //keep the records dense by moving the last record into the freed slot
+        int last = count() - 1;
+        if (slot != last) {
+            records.put(offset(slot), records, offset(last), RECORD_BYTES);
+            slots.put(sensorIdAt(records, slot), slot);
+        }
+        records.putInt(COUNT_OFFSET, last);
+        sortedSlots = null;
+    }
+
+    @Override
+    public synchronized void updateSensor(Sensor sensor) {
+        addSensor(sensor);
+    }
+
+    @Override
+    public synchronized void updateSensors(Collection<Sensor> sensors) {
+        sensors.forEach(this::addSensor);
+    }
+
+    /**
+     * Returns a read-only view of the stored sensors in display order. Sensors are decoded from
+     * their records while the view is iterated; pass changed sensors back through
+     * {@link #updateSensor(Sensor)}. An iterator follows the order as it was when the iteration
+     * started, so it skips sensors removed since then and does not see sensors added since then.
+     */
+    @Override
+    public Set<Sensor> getSensors() {
+        return sensorView;
+    }
+
+    @Override
+    public synchronized Optional<Sensor> findById(UUID sensorId) {
+        Integer slot = slots().get(sensorId);
+        return slot == null ? Optional.empty() : Optional.of(readSensor(slot));
+    }
+
+    /**
+     * Flips the active flag of the sensor's record in place.
+     */
+    @Override
+    public synchronized Optional<Sensor> setActive(UUID sensorId, boolean active) {
+        Integer slot = slots().get(sensorId);
+        if (slot == null) {
+            return Optional.empty();
+        }
+        int flags = offset(slot) + FLAGS_OFFSET;
+        countRecord(slot, -1);
+        records.put(flags, (byte) (active ? records.get(flags) | ACTIVE_FLAG : records.get(flags) & ~ACTIVE_FLAG));
+        records.putShort(offset(slot) + GENERATION_OFFSET, generation());
+        countRecord(slot, 1);
+        return Optional.of(readSensor(slot));
+    }
+
+    /**
+     * Starts a new reset generation, which leaves every stored sensor inactive without touching
+     * its record.
+     */
+    @Override
+    public synchronized void deactivateAll() {
+        int generation = records.getInt(RESET_GENERATION_OFFSET) + 1;
+        if ((short) generation == 0) {
+            //records only keep 16 bits of the generation, so clear the active bits before an old
+            //generation can come round again
+            int count = count();
+            for (int slot = 0; slot < count; slot++) {
+                int flags = offset(slot) + FLAGS_OFFSET;
+                records.put(flags, (byte) (records.get(flags) & ~ACTIVE_FLAG));
+            }
+        }
+        records.putInt(RESET_GENERATION_OFFSET, generation);
+        if (activeCounts != null) {
+            Arrays.fill(activeCounts, 0);
+        }
+    }
+
+    @Override
+    public synchronized Optional<Sensor> removeById(UUID sensorId) {
+        Optional<Sensor> sensor = findById(sensorId);
+        sensor.ifPresent(this::removeSensor);
+        return sensor;
+    }
+
+    @Override
+    public synchronized int getActiveSensorCount() {
+        int total = 0;
+        for (int count : activeCounts()) {
+            total += count;
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized int getActiveSensorCount(SensorType sensorType) {
+        return activeCounts()[sensorType.ordinal()];
+    }
+
+    @Override
+    public synchronized AlarmStatus getAlarmStatus() {
+        return AlarmStatus.values()[records.get(ALARM_OFFSET)];
+    }
+
+    @Override
+    public synchronized void setAlarmStatus(AlarmStatus alarmStatus) {
+        records.put(ALARM_OFFSET, (byte) alarmStatus.ordinal());
+    }
+
+    @Override
+    public synchronized ArmingStatus getArmingStatus() {
+        return ArmingStatus.values()[records.get(ARMING_OFFSET)];
+    }
+
+    @Override
+    public synchronized void setArmingStatus(ArmingStatus armingStatus) {
+        records.put(ARMING_OFFSET, (byte) armingStatus.ordinal());
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            records.force();
+            nameChannel.force(true);
+            sensorChannel.close();
+            nameChannel.close();
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Unable to close sensor store", ioe);
+        }
+    }
+
+    private class SensorView extends AbstractSet<Sensor> {
+        @Override
+        public Iterator<Sensor> iterator() {
+            int[] order;
+            long[] ids;
+            synchronized (MappedSecurityRepositoryImpl.this) {
+                order = sortedSlots();
+                //removals move records between slots, so remember which sensor each slot held
+                ids = new long[2 * order.length];
+                for (int i = 0; i < order.length; i++) {
+                    int offset = offset(order[i]);
+                    ids[2 * i] = records.getLong(offset + MSB_OFFSET);
+                    ids[2 * i + 1] = records.getLong(offset + LSB_OFFSET);
+                }
+            }
+            return new Iterator<>() {
+                private int position;
+                private Sensor next;
+
+                @Override
+                public boolean hasNext() {
+                    if (next == null) {
+                        synchronized (MappedSecurityRepositoryImpl.this) {
+                            while (next == null && position < order.length) {
+                                Integer slot = order == sortedSlots ? Integer.valueOf(order[position])
+                                        : slots().get(new UUID(ids[2 * position], ids[2 * position + 1]));
+                                position++;
+                                if (slot != null) {
+                                    next = readSensor(slot);
+                                }
+                            }
+                        }
+                    }
+                    return next != null;
+                }
+
+                @Override
+                public Sensor next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    Sensor sensor = next;
+                    next = null;
+                    return sensor;
+                }
+            };
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            synchronized (MappedSecurityRepositoryImpl.this) {
+                return o instanceof Sensor sensor && slots().containsKey(sensor.getSensorId());
+            }
+        }
+
+        @Override
+        public int size() {
+            synchronized (MappedSecurityRepositoryImpl.this) {
+                return count();
+            }
+        }
+    }
+}
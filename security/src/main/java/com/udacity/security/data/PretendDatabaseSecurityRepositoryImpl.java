@@ -28,16 +28,32 @@ import com.google.common.reflect.TypeToken;
 import com.google.gson.Gson;
 
 import java.lang.reflect.Type;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Optional;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.UUID;
+import java.util.prefs.BackingStoreException;
 import java.util.prefs.Preferences;
 
 /**
  * Fake repository implementation for demo purposes. Stores state information in local
  * memory and writes it to user preferences between app loads. This implementation is
  * intentionally a little hard to use in unit tests, so watch out!
+ * <p>
+ * Safe to use from several threads. Sensors are kept in a {@link SensorIndex}, and
+ * writing them to preferences is serialized so the last write always holds the latest state.
+ * <p>
+ * Changes are not written one by one. Each change only marks the values it touched, and
+ * everything marked is written together, see {@link GroupCommit}: arming the system, which
+ * resets every sensor, serializes the sensors once rather than once per sensor. By default
+ * changes are written in the background every {@value #DEFAULT_FLUSH_INTERVAL_MILLIS} ms, and
+ * when the JVM shuts down or the repository is closed.
  */
-public class PretendDatabaseSecurityRepositoryImpl implements SecurityRepository {
+public class PretendDatabaseSecurityRepositoryImpl implements SecurityRepository, AutoCloseable {
+
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 50;
+    public static final int DEFAULT_MAX_PENDING_CHANGES = 256;
 
     //preference keys
     private static final String SENSORS = "SENSORS";
@@ -45,11 +61,26 @@ public class PretendDatabaseSecurityRepositoryImpl implements SecurityRepository
     private static final String ARMING_STATUS = "ARMING_STATUS";
     private static final Preferences prefs = Preferences.userNodeForPackage(PretendDatabaseSecurityRepositoryImpl.class);
     private static final Gson gson = new Gson(); //used to serialize objects into JSON
-    private final Set<Sensor> sensors;
-    private AlarmStatus alarmStatus;
-    private ArmingStatus armingStatus;
+    private final SensorIndex sensors = new SensorIndex();
+    private volatile AlarmStatus alarmStatus;
+    private volatile ArmingStatus armingStatus;
+    private final GroupCommit commit;
+    //guarded by this, values changed since the last write
+    private boolean sensorsChanged;
+    private boolean alarmStatusChanged;
+    private boolean armingStatusChanged;
 
     public PretendDatabaseSecurityRepositoryImpl() {
+        this(Durability.ASYNC, Duration.ofMillis(DEFAULT_FLUSH_INTERVAL_MILLIS), DEFAULT_MAX_PENDING_CHANGES);
+    }
+
+    /**
+     * @param durability        When changes are written to preferences. With FSYNC preferences are
+     *                          also flushed to their backing store.
+     * @param flushInterval     How long changes may stay buffered with ASYNC durability
+     * @param maxPendingChanges Number of buffered changes that triggers a write with ASYNC durability
+     */
+    public PretendDatabaseSecurityRepositoryImpl(Durability durability, Duration flushInterval, int maxPendingChanges) {
         //load system state from prefs, or else default
         alarmStatus = AlarmStatus.valueOf(prefs.get(ALARM_STATUS, AlarmStatus.NO_ALARM.toString()));
         armingStatus = ArmingStatus.valueOf(prefs.get(ARMING_STATUS, ArmingStatus.DISARMED.toString()));
@@ -57,37 +88,119 @@ public class PretendDatabaseSecurityRepositoryImpl implements SecurityRepository
         //we've serialized our sensor objects for storage, which should be a good warning sign that
         // this is likely an impractical solution for a real system
         String sensorString = prefs.get(SENSORS, null);
-        if (sensorString == null) {
-            sensors = new TreeSet<>();
-        } else {
+        if (sensorString != null) {
             Type type = new TypeToken<Set<Sensor>>() {
             }.getType();
-            sensors = gson.fromJson(sensorString, type);
+            gson.<Set<Sensor>>fromJson(sensorString, type).forEach(sensors::put);
         }
+        commit = new GroupCommit("pretend-database-writer", durability, flushInterval, maxPendingChanges, this::writeChanges);
     }
 
     @Override
     public void addSensor(Sensor sensor) {
-        sensors.add(sensor);
-        prefs.put(SENSORS, gson.toJson(sensors));
+        sensors.put(sensor);
+        markSensorsChanged();
     }
 
     @Override
     public void removeSensor(Sensor sensor) {
-        sensors.remove(sensor);
-        prefs.put(SENSORS, gson.toJson(sensors));
+        sensors.remove(sensor.getSensorId());
+        markSensorsChanged();
     }
 
     @Override
     public void updateSensor(Sensor sensor) {
-        sensors.remove(sensor);
-        sensors.add(sensor);
-        prefs.put(SENSORS, gson.toJson(sensors));
+        sensors.put(sensor);
+        markSensorsChanged();
+    }
+
+    @Override
+    public void updateSensors(Collection<Sensor> changedSensors) {
+        changedSensors.forEach(sensors::put);
+        markSensorsChanged();
+    }
+
+    @Override
+    public void deactivateAll() {
+        sensors.deactivateAll();
+        markSensorsChanged();
+    }
+
+    private void markSensorsChanged() {
+        synchronized (this) {
+            sensorsChanged = true;
+        }
+        commit.changed();
+    }
+
+    /**
+     * Writes every value changed since the last write.
+     */
+    private synchronized void writeChanges(boolean force) {
+        if (sensorsChanged) {
+            prefs.put(SENSORS, gson.toJson(sensors.sorted()));
+            sensorsChanged = false;
+        }
+        if (alarmStatusChanged) {
+            prefs.put(ALARM_STATUS, alarmStatus.toString());
+            alarmStatusChanged = false;
+        }
+        if (armingStatusChanged) {
+            prefs.put(ARMING_STATUS, armingStatus.toString());
+            armingStatusChanged = false;
+        }
+        if (force) {
+            try {
+                prefs.flush();
+            } catch (BackingStoreException e) {
+                throw new IllegalStateException("Unable to write preferences", e);
+            }
+        }
+    }
+
+    /**
+     * Writes all changes to preferences and flushes them to their backing store.
+     */
+    public void flush() {
+        commit.flush();
+    }
+
+    /**
+     * Writes all pending changes and stops the background writer.
+     */
+    @Override
+    public void close() {
+        commit.close();
     }
 
     @Override
     public Set<Sensor> getSensors() {
-        return sensors;
+        return sensors.asSet();
+    }
+
+    @Override
+    public Optional<Sensor> findById(UUID sensorId) {
+        return Optional.ofNullable(sensors.get(sensorId));
+    }
+
+    @Override
+    public Set<Sensor> getSensors(SensorType sensorType) {
+        return sensors.ofType(sensorType);
+    }
+
+    @Override
+    public Set<Sensor> getActiveSensors() {
+        return sensors.active();
+    }
+
+    @Override
+    public int getActiveSensorCount() {
+        return sensors.activeCount();
+    }
+
+    @Override
+    public int getActiveSensorCount(SensorType sensorType) {
+        return sensors.activeCount(sensorType);
     }
 
     @Override
@@ -97,8 +210,11 @@ public class PretendDatabaseSecurityRepositoryImpl implements SecurityRepository
 
     @Override
     public void setAlarmStatus(AlarmStatus alarmStatus) {
-        this.alarmStatus = alarmStatus;
-        prefs.put(ALARM_STATUS, this.alarmStatus.toString());
+        synchronized (this) {
+            this.alarmStatus = alarmStatus;
+            alarmStatusChanged = true;
+        }
+        commit.changed();
     }
 
     @Override
@@ -108,7 +224,10 @@ public class PretendDatabaseSecurityRepositoryImpl implements SecurityRepository
 
     @Override
     public void setArmingStatus(ArmingStatus armingStatus) {
-        this.armingStatus = armingStatus;
-        prefs.put(ARMING_STATUS, this.armingStatus.toString());
+        synchronized (this) {
+            this.armingStatus = armingStatus;
+            armingStatusChanged = true;
+        }
+        commit.changed();
     }
 }
@@ -24,7 +24,13 @@
 
 package com.udacity.security.data;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
 import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
 
 /**
  * Interface showing the methods our security repository will need to support
@@ -36,8 +42,82 @@ public interface SecurityRepository {
 
     void updateSensor(Sensor sensor);
 
+    /**
+     * Stores changes to several sensors as a single write.
+     */
+    void updateSensors(Collection<Sensor> sensors);
+
     Set<Sensor> getSensors();
 
+    /**
+     * Deactivates every sensor, stored as one write. The default implementation stores the
+     * active sensors as a batch; repositories that can reset all sensors at once override it.
+     */
+    default void deactivateAll() {
+        List<Sensor> active = new ArrayList<>(getActiveSensors());
+        if (!active.isEmpty()) {
+            active.forEach(sensor -> sensor.setActive(false));
+            updateSensors(active);
+        }
+    }
+
+    /**
+     * Returns the stored sensor with the given id. The default implementation scans
+     * {@link #getSensors()}; repositories that can look sensors up by id override it.
+     */
+    default Optional<Sensor> findById(UUID sensorId) {
+        return getSensors().stream().filter(s -> s.getSensorId().equals(sensorId)).findFirst();
+    }
+
+    /**
+     * Activates or deactivates the sensor with the given id and stores the change.
+     *
+     * @return The changed sensor, or empty if there is no sensor with that id
+     */
+    default Optional<Sensor> setActive(UUID sensorId, boolean active) {
+        Optional<Sensor> sensor = findById(sensorId);
+        sensor.ifPresent(s -> {
+            s.setActive(active);
+            updateSensor(s);
+        });
+        return sensor;
+    }
+
+    /**
+     * Removes the sensor with the given id.
+     *
+     * @return The removed sensor, or empty if there is no sensor with that id
+     */
+    default Optional<Sensor> removeById(UUID sensorId) {
+        Optional<Sensor> sensor = findById(sensorId);
+        sensor.ifPresent(this::removeSensor);
+        return sensor;
+    }
+
+    /**
+     * Returns the sensors of the given type, in no particular order. The default implementation
+     * filters {@link #getSensors()}.
+     */
+    default Set<Sensor> getSensors(SensorType sensorType) {
+        return getSensors().stream().filter(s -> s.getSensorType() == sensorType).collect(Collectors.toSet());
+    }
+
+    /**
+     * Returns the active sensors, in no particular order. The default implementation filters
+     * {@link #getSensors()}.
+     */
+    default Set<Sensor> getActiveSensors() {
+        return getSensors().stream().filter(Sensor::getActive).collect(Collectors.toSet());
+    }
+
+    /**
+     * Returns the number of active sensors. Kept up to date on every write, so unlike
+     * scanning {@link #getSensors()} this does not depend on the number of sensors.
+     */
+    int getActiveSensorCount();
+
+    int getActiveSensorCount(SensorType sensorType);
+
     AlarmStatus getAlarmStatus();
 
     void setAlarmStatus(AlarmStatus alarmStatus);
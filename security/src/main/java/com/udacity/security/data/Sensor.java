@@ -25,18 +25,15 @@
 package com.udacity.security.data;
 
 
-import com.google.common.collect.ComparisonChain;
-
-import java.util.Objects;
 import java.util.UUID;
 
 /**
- * Sensor POJO. Needs to know how to sort itself for display purposes.
+ * Sensor POJO. Needs to know how to sort itself for display purposes: by name, then type, then id.
  */
 public class Sensor implements Comparable<Sensor> {
     private UUID sensorId;
     private String name;
-    private Boolean active;
+    private boolean active;
     private SensorType sensorType;
 
     public Sensor() {
@@ -46,7 +43,7 @@ public class Sensor implements Comparable<Sensor> {
         this.name = name;
         this.sensorType = sensorType;
         this.sensorId = UUID.randomUUID();
-        this.active = Boolean.FALSE;
+        this.active = false;
     }
 
     @Override
@@ -59,7 +56,7 @@ public class Sensor implements Comparable<Sensor> {
 
     @Override
     public int hashCode() {
-        return Objects.hash(sensorId);
+        return sensorId.hashCode();
     }
 
     public String getName() {
@@ -96,10 +93,12 @@ public class Sensor implements Comparable<Sensor> {
 
     @Override
     public int compareTo(Sensor o) {
-        return ComparisonChain.start()
-                .compare(this.name, o.name)
-                .compare(this.sensorType.toString(), o.sensorType.toString())
-                .compare(this.sensorId, o.sensorId)
-                .result();
+        int result = name.compareTo(o.name);
+        if (result != 0) {
+            return result;
+        }
+        //by type name, as displayed, rather than declaration order
+        result = sensorType.name().compareTo(o.sensorType.name());
+        return result != 0 ? result : sensorId.compareTo(o.sensorId);
     }
 }
@@ -0,0 +1,430 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.security.data;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Sensors keyed by id, in an open-addressing hash table with linear probing over the two longs of
+ * the UUID. Lookups, updates and removals take constant time and do not allocate, where a sorted
+ * set walks the comparator, and with it the sensor names, on every step.
+ * <p>
+ * The order used for display is kept apart from the table: a sorted array that is only rebuilt
+ * when it is asked for after sensors were added, removed, renamed or replaced. Toggling a sensor
+ * leaves it valid.
+ * <p>
+ * Two secondary indexes link the sensors of each type, and the active sensors, into doubly linked
+ * lists threaded through the table by slot number, so {@link #ofType(SensorType)} and
+ * {@link #active()} only visit matching sensors and keeping them current does not allocate.
+ * A sensor counts as active if it was active when it was last stored. The active list also keeps
+ * the counts behind the repositories' {@code getActiveSensorCount} methods.
+ * <p>
+ * Safe to use from several threads, every method holds the index's lock. The set returned by
+ * {@link #asSet()} is a read-only view; its iterator walks the sorted array as it was when the
+ * iteration started.
+ */
+class SensorIndex {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int NONE = -1;
+
+    //slot i is free if sensors[i] is null
+    private long[] mostSignificantBits;
+    private long[] leastSignificantBits;
+    private Sensor[] sensors;
+    //sort keys as they were when the sensor was stored, to notice renames
+    private String[] names;
+    private SensorType[] types;
+    private int size;
+    //secondary indexes, lists of slots linked by previous and next slot
+    private int[] typePrevious;
+    private int[] typeNext;
+    private final int[] typeHeads = new int[SensorType.values().length];
+    private final int[] typeCounts = new int[SensorType.values().length];
+    private boolean[] activeFlags;
+    private int[] activePrevious;
+    private int[] activeNext;
+    private int activeHead = NONE;
+    private int activeCount;
+    private final int[] activeTypeCounts = new int[SensorType.values().length];
+    //null when it has to be rebuilt
+    private Sensor[] sorted;
+    private final Set<Sensor> view = new View();
+    private final Set<Sensor> activeView = new IndexView(null);
+
+    SensorIndex() {
+        allocate(INITIAL_CAPACITY);
+        Arrays.fill(typeHeads, NONE);
+    }
+
+    private void allocate(int capacity) {
+        mostSignificantBits = new long[capacity];
+        leastSignificantBits = new long[capacity];
+        sensors = new Sensor[capacity];
+        names = new String[capacity];
+        types = new SensorType[capacity];
+        typePrevious = new int[capacity];
+        typeNext = new int[capacity];
+        activeFlags = new boolean[capacity];
+        activePrevious = new int[capacity];
+        activeNext = new int[capacity];
+    }
+
+    private static int hash(long msb, long lsb) {
+        long h = (msb ^ lsb) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Returns the slot holding the sensor with the given id, or the free slot where it belongs.
+     */
+    private int find(long msb, long lsb) {
+        int mask = sensors.length - 1;
+        int slot = hash(msb, lsb) & mask;
+        while (sensors[slot] != null
+                && (mostSignificantBits[slot] != msb || leastSignificantBits[slot] != lsb)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    synchronized Sensor get(UUID sensorId) {
+        return sensors[find(sensorId.getMostSignificantBits(), sensorId.getLeastSignificantBits())];
+    }
+
+    /**
+     * Adds the sensor, or replaces the stored sensor with the same id.
+     *
+     * @return The sensor that was replaced, or null
+     */
+    synchronized Sensor put(Sensor sensor) {
+        long msb = sensor.getSensorId().getMostSignificantBits();
+        long lsb = sensor.getSensorId().getLeastSignificantBits();
+        int slot = find(msb, lsb);
+        Sensor previous = sensors[slot];
+        if (previous == null) {
+            if ((size + 1) * 2 > sensors.length) {
+                resize(sensors.length * 2);
+                slot = find(msb, lsb);
+            }
+            size++;
+            mostSignificantBits[slot] = msb;
+            leastSignificantBits[slot] = lsb;
+            sorted = null;
+        } else {
+            if (previous != sensor || !Objects.equals(names[slot], sensor.getName())
+                    || types[slot] != sensor.getSensorType()) {
+                sorted = null;
+            }
+            unlink(slot);
+        }
+        sensors[slot] = sensor;
+        names[slot] = sensor.getName();
+        types[slot] = sensor.getSensorType();
+        activeFlags[slot] = sensor.getActive();
+        link(slot);
+        return previous;
+    }
+
+    /**
+     * Adds the sensor in the slot to the secondary indexes.
+     */
+    private void link(int slot) {
+        int type = types[slot].ordinal();
+        typePrevious[slot] = NONE;
+        typeNext[slot] = typeHeads[type];
+        if (typeHeads[type] != NONE) {
+            typePrevious[typeHeads[type]] = slot;
+        }
+        typeHeads[type] = slot;
+        typeCounts[type]++;
+        if (activeFlags[slot]) {
+            activePrevious[slot] = NONE;
+            activeNext[slot] = activeHead;
+            if (activeHead != NONE) {
+                activePrevious[activeHead] = slot;
+            }
+            activeHead = slot;
+            activeCount++;
+            activeTypeCounts[type]++;
+        }
+    }
+
+    /**
+     * Removes the sensor in the slot from the secondary indexes.
+     */
+    private void unlink(int slot) {
+        int type = types[slot].ordinal();
+        int previous = typePrevious[slot];
+        int next = typeNext[slot];
+        if (previous == NONE) {
+            typeHeads[type] = next;
+        } else {
+            typeNext[previous] = next;
+        }
+        if (next != NONE) {
+            typePrevious[next] = previous;
+        }
+        typeCounts[type]--;
+        if (activeFlags[slot]) {
+            previous = activePrevious[slot];
+            next = activeNext[slot];
+            if (previous == NONE) {
+                activeHead = next;
+            } else {
+                activeNext[previous] = next;
+            }
+            if (next != NONE) {
+                activePrevious[next] = previous;
+            }
+            activeCount--;
+            activeTypeCounts[type]--;
+        }
+    }
+
+    /**
+     * @return The removed sensor, or null if there was none with that id
+     */
+    synchronized Sensor remove(UUID sensorId) {
+        int slot = find(sensorId.getMostSignificantBits(), sensorId.getLeastSignificantBits());
+        Sensor removed = sensors[slot];
+        if (removed == null) {
+            return null;
+        }
+        unlink(slot);
+        //shift later sensors of the same probe run back, so lookups need no tombstones
+        int mask = sensors.length - 1;
+        int gap = slot;
+        for (int next = (gap + 1) & mask; sensors[next] != null; next = (next + 1) & mask) {
+            int home = hash(mostSignificantBits[next], leastSignificantBits[next]) & mask;
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                move(next, gap);
+                gap = next;
+            }
+        }
+        sensors[gap] = null;
+        names[gap] = null;
+        types[gap] = null;
+        size--;
+        sorted = null;
+        return removed;
+    }
+
+    private void move(int from, int to) {
+        mostSignificantBits[to] = mostSignificantBits[from];
+        leastSignificantBits[to] = leastSignificantBits[from];
+        sensors[to] = sensors[from];
+        names[to] = names[from];
+        types[to] = types[from];
+        activeFlags[to] = activeFlags[from];
+        //point the neighbours in the secondary indexes at the new slot
+        typePrevious[to] = typePrevious[from];
+        typeNext[to] = typeNext[from];
+        if (typePrevious[to] == NONE) {
+            typeHeads[types[to].ordinal()] = to;
+        } else {
+            typeNext[typePrevious[to]] = to;
+        }
+        if (typeNext[to] != NONE) {
+            typePrevious[typeNext[to]] = to;
+        }
+        if (activeFlags[to]) {
+            activePrevious[to] = activePrevious[from];
+            activeNext[to] = activeNext[from];
+            if (activePrevious[to] == NONE) {
+                activeHead = to;
+            } else {
+                activeNext[activePrevious[to]] = to;
+            }
+            if (activeNext[to] != NONE) {
+                activePrevious[activeNext[to]] = to;
+            }
+        }
+    }
+
+    private void resize(int capacity) {
+        long[] oldMsbs = mostSignificantBits;
+        long[] oldLsbs = leastSignificantBits;
+        Sensor[] oldSensors = sensors;
+        String[] oldNames = names;
+        SensorType[] oldTypes = types;
+        boolean[] oldActiveFlags = activeFlags;
+        allocate(capacity);
+        Arrays.fill(typeHeads, NONE);
+        Arrays.fill(typeCounts, 0);
+        Arrays.fill(activeTypeCounts, 0);
+        activeHead = NONE;
+        activeCount = 0;
+        for (int i = 0; i < oldSensors.length; i++) {
+            if (oldSensors[i] != null) {
+                int slot = find(oldMsbs[i], oldLsbs[i]);
+                mostSignificantBits[slot] = oldMsbs[i];
+                leastSignificantBits[slot] = oldLsbs[i];
+                sensors[slot] = oldSensors[i];
+                names[slot] = oldNames[i];
+                types[slot] = oldTypes[i];
+                activeFlags[slot] = oldActiveFlags[i];
+                link(slot);
+            }
+        }
+    }
+
+    /**
+     * Deactivates every active sensor. Walks the active list only, so the cost depends on the
+     * number of active sensors rather than on the size of the index.
+     *
+     * @return The number of sensors that were deactivated
+     */
+    synchronized int deactivateAll() {
+        int deactivated = activeCount;
+        for (int slot = activeHead; slot != NONE; slot = activeNext[slot]) {
+            sensors[slot].setActive(false);
+            activeFlags[slot] = false;
+        }
+        activeHead = NONE;
+        activeCount = 0;
+        Arrays.fill(activeTypeCounts, 0);
+        return deactivated;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized int activeCount() {
+        return activeCount;
+    }
+
+    synchronized int activeCount(SensorType sensorType) {
+        return activeTypeCounts[sensorType.ordinal()];
+    }
+
+    /**
+     * Returns all sensors in display order. The array is shared, callers must not change it.
+     */
+    synchronized Sensor[] sorted() {
+        if (sorted == null) {
+            Sensor[] all = new Sensor[size];
+            int i = 0;
+            for (Sensor sensor : sensors) {
+                if (sensor != null) {
+                    all[i++] = sensor;
+                }
+            }
+            Arrays.sort(all);
+            sorted = all;
+        }
+        return sorted;
+    }
+
+    /**
+     * Returns a read-only set view of the index, iterated in display order.
+     */
+    Set<Sensor> asSet() {
+        return view;
+    }
+
+    /**
+     * Returns a read-only set view of the sensors of the given type, in no particular order.
+     */
+    Set<Sensor> ofType(SensorType sensorType) {
+        return new IndexView(sensorType);
+    }
+
+    /**
+     * Returns a read-only set view of the active sensors, in no particular order.
+     */
+    Set<Sensor> active() {
+        return activeView;
+    }
+
+    /**
+     * View of one secondary index: the sensors of a type, or the active sensors if the type is
+     * null. Iterating copies the index's sensors under the lock.
+     */
+    private class IndexView extends AbstractSet<Sensor> {
+        private final SensorType type;
+
+        IndexView(SensorType type) {
+            this.type = type;
+        }
+
+        @Override
+        public Iterator<Sensor> iterator() {
+            Sensor[] snapshot;
+            synchronized (SensorIndex.this) {
+                snapshot = new Sensor[size()];
+                int i = 0;
+                for (int slot = type == null ? activeHead : typeHeads[type.ordinal()]; slot != NONE;
+                     slot = type == null ? activeNext[slot] : typeNext[slot]) {
+                    snapshot[i++] = sensors[slot];
+                }
+            }
+            return Arrays.asList(snapshot).iterator();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Sensor sensor) || sensor.getSensorId() == null) {
+                return false;
+            }
+            synchronized (SensorIndex.this) {
+                UUID id = sensor.getSensorId();
+                int slot = find(id.getMostSignificantBits(), id.getLeastSignificantBits());
+                return sensors[slot] != null && (type == null ? activeFlags[slot] : types[slot] == type);
+            }
+        }
+
+        @Override
+        public int size() {
+            synchronized (SensorIndex.this) {
+                return type == null ? activeCount : typeCounts[type.ordinal()];
+            }
+        }
+    }
+
+    private class View extends AbstractSet<Sensor> {
+        @Override
+        public Iterator<Sensor> iterator() {
+            //Arrays.asList does not support removal, so the view stays read-only
+            return Arrays.asList(sorted()).iterator();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof Sensor sensor && sensor.getSensorId() != null && get(sensor.getSensorId()) != null;
+        }
+
+        @Override
+        public int size() {
+            return SensorIndex.this.size();
+        }
+    }
+}
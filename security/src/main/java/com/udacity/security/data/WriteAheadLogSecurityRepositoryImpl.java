@@ -0,0 +1,532 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.security.data;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Repository implementation that persists every change as a small delta record appended to a
+ * write-ahead log, so a write costs the same no matter how many sensors are stored.
+ * <p>
+ * Each record is framed as {@code [payload length][CRC32][payload]}. On startup the latest
+ * snapshot is loaded and the log is replayed on top of it; a torn or corrupt tail left behind
+ * by a crash is detected by its checksum and cut off. Once the log holds more records than the
+ * compaction threshold, the full state is written to a new snapshot and the log is truncated.
+ * <p>
+ * Records are collected in memory and appended to the log in batches according to the
+ * configured {@link Durability}, see {@link GroupCommit}. The default, {@link Durability#SYNC},
+ * appends every change before the call returns; concurrent changes share one append.
+ * <p>
+ * Safe to use from several threads: writes to the log are serialized, while reads are served
+ * from a {@link SensorIndex} and volatile fields without taking the log's lock.
+ */
+public class WriteAheadLogSecurityRepositoryImpl implements SecurityRepository, AutoCloseable {
+
+    public static final int DEFAULT_COMPACTION_THRESHOLD = 10_000;
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 50;
+    public static final int DEFAULT_MAX_PENDING_CHANGES = 256;
+
+    private static final String LOG_FILE = "security.wal";
+    private static final String SNAPSHOT_FILE = "security.snapshot";
+    private static final String SNAPSHOT_TEMP_FILE = "security.snapshot.tmp";
+
+    //record types
+    private static final byte SENSOR_PUT = 1;
+    private static final byte SENSOR_REMOVE = 2;
+    private static final byte ALARM_STATUS = 3;
+    private static final byte ARMING_STATUS = 4;
+    private static final byte SENSOR_BATCH = 5;
+    private static final byte DEACTIVATE_ALL = 6;
+
+    private static final int FRAME_HEADER_BYTES = 2 * Integer.BYTES;
+    private static final int MAX_PAYLOAD_BYTES = 16 << 20;
+
+    private final Path directory;
+    private final int compactionThreshold;
+    private final CRC32 crc = new CRC32();
+    private final SensorIndex sensors = new SensorIndex();
+    private volatile AlarmStatus alarmStatus = AlarmStatus.NO_ALARM;
+    private volatile ArmingStatus armingStatus = ArmingStatus.DISARMED;
+    private final GroupCommit commit;
+    //guarded by this, records not yet appended to the log are collected in the buffer
+    private ByteBuffer buffer = ByteBuffer.allocate(256);
+    private int bufferedRecords;
+    private FileChannel log;
+    private int logRecords;
+
+    public WriteAheadLogSecurityRepositoryImpl() {
+        this(Paths.get(System.getProperty("user.home"), ".catpoint"));
+    }
+
+    public WriteAheadLogSecurityRepositoryImpl(Path directory) {
+        this(directory, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    /**
+     * Opens (or creates) the log in the given directory and restores the stored state.
+     *
+     * @param directory           Directory holding the snapshot and log files
+     * @param compactionThreshold Number of log records after which a new snapshot is taken
+     */
+    public WriteAheadLogSecurityRepositoryImpl(Path directory, int compactionThreshold) {
+        this(directory, compactionThreshold, Durability.SYNC,
+                Duration.ofMillis(DEFAULT_FLUSH_INTERVAL_MILLIS), DEFAULT_MAX_PENDING_CHANGES);
+    }
+
+    /**
+     * Opens (or creates) the log in the given directory and restores the stored state.
+     *
+     * @param directory           Directory holding the snapshot and log files
+     * @param compactionThreshold Number of log records after which a new snapshot is taken
+     * @param durability          When records are appended to the log. With FSYNC the log is also
+     *                            forced to the storage device.
+     * @param flushInterval       How long records may stay buffered with ASYNC durability
+     * @param maxPendingChanges   Number of buffered records that triggers a write with ASYNC durability
+     */
+    public WriteAheadLogSecurityRepositoryImpl(Path directory, int compactionThreshold, Durability durability,
+                                               Duration flushInterval, int maxPendingChanges) {
+        if (compactionThreshold <= 0) {
+            throw new IllegalArgumentException("compactionThreshold must be positive");
+        }
+        this.directory = directory;
+        this.compactionThreshold = compactionThreshold;
+        try {
+            Files.createDirectories(directory);
+            Map<UUID, Sensor> restored = new LinkedHashMap<>();
+            Path snapshot = directory.resolve(SNAPSHOT_FILE);
+            if (Files.exists(snapshot)) {
+                try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+                    replay(channel, restored);
+                }
+            }
+            logRecords = 0;
+            log = FileChannel.open(directory.resolve(LOG_FILE),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long validLength = replay(log, restored);
+            if (validLength < log.size()) {
+                //drop the partially written record left behind by a crash
+                log.truncate(validLength);
+            }
+            log.position(validLength);
+            restored.values().forEach(sensors::put);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Unable to open write-ahead log in " + directory, ioe);
+        }
+        commit = new GroupCommit("write-ahead-log-writer", durability, flushInterval, maxPendingChanges, this::writeRecords);
+    }
+
+    /**
+     * Applies every intact record in the channel to the in-memory state.
+     *
+     * @return The position just after the last intact record
+     */
+    private long replay(FileChannel channel, Map<UUID, Sensor> restored) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_BYTES);
+        long position = 0;
+        while (true) {
+            header.clear();
+            if (readFully(channel, header, position) < FRAME_HEADER_BYTES) {
+                return position;
+            }
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length <= 0 || length > MAX_PAYLOAD_BYTES) {
+                return position;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            if (readFully(channel, payload, position + FRAME_HEADER_BYTES) < length) {
+                return position;
+            }
+            crc.reset();
+            crc.update(payload.array(), 0, length);
+            if ((int) crc.getValue() != checksum) {
+                return position;
+            }
+            payload.flip();
+            apply(payload, restored);
+            position += FRAME_HEADER_BYTES + length;
+            logRecords++;
+        }
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer target, long position) throws IOException {
+        int total = 0;
+        while (target.hasRemaining()) {
+            int read = channel.read(target, position + total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private void apply(ByteBuffer payload, Map<UUID, Sensor> restored) {
+        byte type = payload.get();
+        switch (type) {
+            case SENSOR_PUT -> {
+                Sensor sensor = readSensor(payload);
+                restored.put(sensor.getSensorId(), sensor);
+            }
+            case SENSOR_REMOVE -> restored.remove(new UUID(payload.getLong(), payload.getLong()));
+            case ALARM_STATUS -> alarmStatus = AlarmStatus.values()[payload.get()];
+            case ARMING_STATUS -> armingStatus = ArmingStatus.values()[payload.get()];
+            case SENSOR_BATCH -> {
+                for (int count = payload.getInt(); count > 0; count--) {
+                    Sensor sensor = readSensor(payload);
+                    restored.put(sensor.getSensorId(), sensor);
+                }
+            }
+            case DEACTIVATE_ALL -> restored.values().forEach(sensor -> sensor.setActive(false));
+            default -> throw new IllegalStateException("Unknown write-ahead log record type " + type);
+        }
+    }
+
+    private static Sensor readSensor(ByteBuffer payload) {
+        UUID sensorId = new UUID(payload.getLong(), payload.getLong());
+        SensorType sensorType = SensorType.values()[payload.get()];
+        boolean active = payload.get() != 0;
+        byte[] name = new byte[payload.getInt()];
+        payload.get(name);
+
+        Sensor sensor = new Sensor(new String(name, StandardCharsets.UTF_8), sensorType);
+        sensor.setSensorId(sensorId);
+        sensor.setActive(active);
+        return sensor;
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (buffer.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+    }
+
+    /**
+     * Reserves room for the frame header of the next record and returns where the record starts.
+     */
+    private int beginRecord(int payloadBytes) {
+        ensureCapacity(FRAME_HEADER_BYTES + payloadBytes);
+        int start = buffer.position();
+        buffer.position(start + FRAME_HEADER_BYTES);
+        return start;
+    }
+
+    /**
+     * Fills in the frame header of the record that started at the given offset. A record too large
+     * to be replayed is dropped from the buffer again.
+     */
+    private void endRecord(int start) {
+        int length = buffer.position() - start - FRAME_HEADER_BYTES;
+        if (length > MAX_PAYLOAD_BYTES) {
+            buffer.position(start);
+            throw new IllegalArgumentException("Write-ahead log record of " + length + " bytes is too large");
+        }
+        crc.reset();
+        crc.update(buffer.array(), start + FRAME_HEADER_BYTES, length);
+        buffer.putInt(start, length);
+        buffer.putInt(start + Integer.BYTES, (int) crc.getValue());
+    }
+
+    private void putSensorRecord(Sensor sensor) {
+        int start = beginRecord(1);
+        buffer.put(SENSOR_PUT);
+        putSensor(sensor);
+        endRecord(start);
+    }
+
+    /**
+     * Writes all sensors into one record, so the batch is replayed either completely or not at all.
+     */
+    private void putBatchRecord(Collection<Sensor> sensors) {
+        int start = beginRecord(1 + Integer.BYTES);
+        buffer.put(SENSOR_BATCH);
+        buffer.putInt(sensors.size());
+        sensors.forEach(this::putSensor);
+        endRecord(start);
+    }
+
+    private void putSensor(Sensor sensor) {
+        byte[] name = sensor.getName() == null ? new byte[0] : sensor.getName().getBytes(StandardCharsets.UTF_8);
+        ensureCapacity(2 * Long.BYTES + 2 + Integer.BYTES + name.length);
+        buffer.putLong(sensor.getSensorId().getMostSignificantBits());
+        buffer.putLong(sensor.getSensorId().getLeastSignificantBits());
+        buffer.put((byte) sensor.getSensorType().ordinal());
+        buffer.put((byte) (sensor.getActive() ? 1 : 0));
+        buffer.putInt(name.length);
+        buffer.put(name);
+    }
+
+    private void putRemoveRecord(UUID sensorId) {
+        int start = beginRecord(1 + 2 * Long.BYTES);
+        buffer.put(SENSOR_REMOVE);
+        buffer.putLong(sensorId.getMostSignificantBits());
+        buffer.putLong(sensorId.getLeastSignificantBits());
+        endRecord(start);
+    }
+
+    private void putDeactivateAllRecord() {
+        int start = beginRecord(1);
+        buffer.put(DEACTIVATE_ALL);
+        endRecord(start);
+    }
+
+    private void putStatusRecord(byte type, int ordinal) {
+        int start = beginRecord(2);
+        buffer.put(type);
+        buffer.put((byte) ordinal);
+        endRecord(start);
+    }
+
+    /**
+     * Appends the buffered records to the log as one write.
+     */
+    private synchronized void writeRecords(boolean force) {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                log.write(buffer);
+            }
+            if (force) {
+                log.force(false);
+            }
+        } catch (IOException ioe) {
+            //keep the records that were not written for the next attempt
+            buffer.compact();
+            throw new UncheckedIOException("Unable to append to write-ahead log", ioe);
+        }
+        buffer.clear();
+        logRecords += bufferedRecords;
+        bufferedRecords = 0;
+        if (logRecords >= compactionThreshold) {
+            compact();
+        }
+    }
+
+    /**
+     * Writes the complete current state to a fresh snapshot and empties the log. Records still
+     * buffered are covered by the snapshot and only dropped once it is in place; if taking it
+     * fails, they stay buffered for the next write.
+     */
+    public synchronized void compact() {
+        ByteBuffer pending = buffer;
+        ByteBuffer snapshot = ByteBuffer.allocate(256);
+        //the record helpers write to the buffer field, point it at the snapshot meanwhile
+        buffer = snapshot;
+        try {
+            for (Sensor sensor : sensors.sorted()) {
+                putSensorRecord(sensor);
+            }
+            putStatusRecord(ALARM_STATUS, alarmStatus.ordinal());
+            putStatusRecord(ARMING_STATUS, armingStatus.ordinal());
+            snapshot = buffer;
+        } finally {
+            buffer = pending;
+        }
+        snapshot.flip();
+
+        Path temp = directory.resolve(SNAPSHOT_TEMP_FILE);
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (snapshot.hasRemaining()) {
+                    channel.write(snapshot);
+                }
+                channel.force(true);
+            }
+            Files.move(temp, directory.resolve(SNAPSHOT_FILE),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Unable to compact write-ahead log", ioe);
+        }
+        buffer.clear();
+        bufferedRecords = 0;
+        try {
+            //records replayed twice after a crash right here are harmless, every record is idempotent
+            log.truncate(0);
+            log.position(0);
+            logRecords = 0;
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Unable to compact write-ahead log", ioe);
+        }
+    }
+
+    @Override
+    public void addSensor(Sensor sensor) {
+        synchronized (this) {
+            putSensorRecord(sensor);
+            bufferedRecords++;
+            sensors.put(sensor);
+        }
+        commit.changed();
+    }
+
+    @Override
+    public void removeSensor(Sensor sensor) {
+        synchronized (this) {
+            putRemoveRecord(sensor.getSensorId());
+            bufferedRecords++;
+            sensors.remove(sensor.getSensorId());
+        }
+        commit.changed();
+    }
+
+    @Override
+    public void updateSensor(Sensor sensor) {
+        synchronized (this) {
+            putSensorRecord(sensor);
+            bufferedRecords++;
+            sensors.put(sensor);
+        }
+        commit.changed();
+    }
+
+    @Override
+    public void updateSensors(Collection<Sensor> changedSensors) {
+        synchronized (this) {
+            //the record is written first, so a batch too large for the log changes nothing
+            putBatchRecord(changedSensors);
+            bufferedRecords++;
+            changedSensors.forEach(sensors::put);
+        }
+        commit.changed();
+    }
+
+    /**
+     * Deactivates every sensor with a single one-byte record, however many sensors there are.
+     */
+    @Override
+    public void deactivateAll() {
+        synchronized (this) {
+            putDeactivateAllRecord();
+            bufferedRecords++;
+            sensors.deactivateAll();
+        }
+        commit.changed();
+    }
+
+    @Override
+    public Set<Sensor> getSensors() {
+        return sensors.asSet();
+    }
+
+    @Override
+    public Optional<Sensor> findById(UUID sensorId) {
+        return Optional.ofNullable(sensors.get(sensorId));
+    }
+
+    @Override
+    public Set<Sensor> getSensors(SensorType sensorType) {
+        return sensors.ofType(sensorType);
+    }
+
+    @Override
+    public Set<Sensor> getActiveSensors() {
+        return sensors.active();
+    }
+
+    @Override
+    public int getActiveSensorCount() {
+        return sensors.activeCount();
+    }
+
+    @Override
+    public int getActiveSensorCount(SensorType sensorType) {
+        return sensors.activeCount(sensorType);
+    }
+
+    @Override
+    public AlarmStatus getAlarmStatus() {
+        return alarmStatus;
+    }
+
+    @Override
+    public void setAlarmStatus(AlarmStatus alarmStatus) {
+        synchronized (this) {
+            putStatusRecord(ALARM_STATUS, alarmStatus.ordinal());
+            bufferedRecords++;
+            this.alarmStatus = alarmStatus;
+        }
+        commit.changed();
+    }
+
+    @Override
+    public ArmingStatus getArmingStatus() {
+        return armingStatus;
+    }
+
+    @Override
+    public void setArmingStatus(ArmingStatus armingStatus) {
+        synchronized (this) {
+            putStatusRecord(ARMING_STATUS, armingStatus.ordinal());
+            bufferedRecords++;
+            this.armingStatus = armingStatus;
+        }
+        commit.changed();
+    }
+
+    /**
+     * Appends all buffered records to the log and forces it to the storage device.
+     */
+    public void flush() {
+        commit.flush();
+    }
+
+    /**
+     * Writes all buffered records, stops the background writer and closes the log.
+     */
+    @Override
+    public void close() {
+        commit.close();
+        synchronized (this) {
+            try {
+                log.force(true);
+                log.close();
+            } catch (IOException ioe) {
+                throw new UncheckedIOException("Unable to close write-ahead log", ioe);
+            }
+        }
+    }
+}
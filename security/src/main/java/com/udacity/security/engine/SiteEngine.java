@@ -0,0 +1,366 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.security.engine;
+
+import com.udacity.image.service.CameraImageService;
+import com.udacity.image.service.ImageService;
+import com.udacity.metrics.MetricsRegistry;
+import com.udacity.security.data.SecurityRepository;
+import com.udacity.security.data.WriteAheadLogSecurityRepositoryImpl;
+import com.udacity.security.service.SecurityEventLoop;
+import com.udacity.security.service.SecurityService;
+
+import java.awt.image.BufferedImage;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.regex.Pattern;
+
+/**
+ * Hosts the security systems of many sites in one JVM.
+ * <p>
+ * Sites are spread over a fixed number of shards by site id. Each shard is a
+ * {@link SecurityEventLoop} with its own command queue and thread, and every site is a
+ * {@link SecurityService} in event-loop mode on its shard: all commands for a site run on the
+ * same thread, one after another, and no locks are taken. Sites on different shards run in
+ * parallel. All sites share one {@link ImageService} and one executor for image analysis.
+ * <p>
+ * A site is activated, its repository opened and its service created, by the first command sent
+ * to it. Sites that received no command for the idle timeout are evicted again: their repository
+ * is closed and nothing of them stays in memory. Sites with status listeners, or with a camera
+ * that currently shows a cat, are never idle, as that state only lives in memory.
+ */
+public class SiteEngine implements AutoCloseable {
+
+    public static final Duration DEFAULT_IDLE_TIMEOUT = Duration.ofMinutes(10);
+
+    private static final Pattern SITE_ID = Pattern.compile("[A-Za-z0-9_-]+");
+    private static final long MIN_SWEEP_INTERVAL_MILLIS = 100;
+
+    /**
+     * Opens the repository of a site. Called on the site's shard thread.
+     */
+    @FunctionalInterface
+    public interface RepositoryFactory {
+        SecurityRepository open(String siteId);
+    }
+
+    private final Shard[] shards;
+    private final RepositoryFactory repositories;
+    private final ImageService imageService;
+    private final Executor imageExecutor;
+    private final long idleTimeoutNanos;
+    private final LongSupplier nanoClock;
+    private final ScheduledExecutorService sweeper;
+    private final AtomicInteger activeSites = new AtomicInteger();
+    private final LongAdder activations = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * @param shardCount    Number of shards, each with its own thread
+     * @param repositories  Opens the repository of a site when it is activated
+     * @param imageService  Service looking for cats, shared by all sites
+     * @param imageExecutor Executor running image analysis for all sites
+     * @param idleTimeout   Time without commands after which a site is evicted
+     */
+    public SiteEngine(int shardCount, RepositoryFactory repositories, ImageService imageService,
+                      Executor imageExecutor, Duration idleTimeout) {
+        this(shardCount, repositories, imageService, imageExecutor, idleTimeout, System::nanoTime);
+    }
+
+    /**
+     * @param nanoClock Source of the times sites were last used and compared to the idle timeout,
+     *                  like {@link System#nanoTime()}
+     */
+    SiteEngine(int shardCount, RepositoryFactory repositories, ImageService imageService,
+               Executor imageExecutor, Duration idleTimeout, LongSupplier nanoClock) {
+        if (shardCount <= 0 || idleTimeout.isNegative() || idleTimeout.isZero()) {
+            throw new IllegalArgumentException("shardCount and idleTimeout must be positive");
+        }
+        this.repositories = repositories;
+        this.imageService = imageService;
+        this.imageExecutor = imageExecutor;
+        this.idleTimeoutNanos = idleTimeout.toNanos();
+        this.nanoClock = nanoClock;
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard();
+        }
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "site-eviction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long sweepMillis = Math.max(MIN_SWEEP_INTERVAL_MILLIS, idleTimeout.toMillis() / 2);
+        sweeper.scheduleWithFixedDelay(this::evictIdleSites, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns a factory keeping every site in a write-ahead log below the given directory, in a
+     * subdirectory named after the site. Site ids may only contain letters, digits, '_' and '-'.
+     */
+    public static RepositoryFactory writeAheadLogRepositories(Path directory) {
+        return siteId -> new WriteAheadLogSecurityRepositoryImpl(directory.resolve(siteId));
+    }
+
+    /**
+     * Returns true if the site id only contains letters, digits, '_' and '-'.
+     */
+    public static boolean isValidSiteId(String siteId) {
+        return SITE_ID.matcher(siteId).matches();
+    }
+
+    private Shard shard(String siteId) {
+        if (!isValidSiteId(siteId)) {
+            throw new IllegalArgumentException("Invalid site id " + siteId);
+        }
+        //spread the bits, string hashes of similar ids differ mostly in the low bits
+        int hash = siteId.hashCode() * 0x9E3779B9;
+        return shards[Math.floorMod(hash ^ (hash >>> 16), shards.length)];
+    }
+
+    /**
+     * Runs a command against a site's service on the site's shard, activating the site first if
+     * needed. Exceptions thrown by the command are reported to the shard thread's uncaught
+     * exception handler.
+     */
+    public void execute(String siteId, Consumer<SecurityService> command) {
+        Shard shard = shard(siteId);
+        shard.loop.execute(() -> command.accept(shard.activate(siteId).service));
+    }
+
+    /**
+     * Runs a command against a site's service on the site's shard, activating the site first if
+     * needed, and returns its result.
+     */
+    public <T> CompletableFuture<T> call(String siteId, Function<SecurityService, T> command) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Shard shard = shard(siteId);
+        shard.loop.execute(() -> {
+            try {
+                result.complete(command.apply(shard.activate(siteId).service));
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Looks for a cat in an image on the shared image executor, then hands the verdict to the
+     * site's service for the given camera.
+     *
+     * @return Future completed with the verdict once the site applied it
+     */
+    public CompletableFuture<Boolean> processImage(String siteId, String cameraId, BufferedImage image,
+                                                   float confidenceThreshold) {
+        shard(siteId);
+        try {
+            //site ids cannot contain a slash, so camera ids stay apart across sites
+            return CameraImageService.analyzeAsync(imageService, siteId + "/" + cameraId, image, confidenceThreshold, imageExecutor)
+                    .thenCompose(cat -> call(siteId, service -> {
+                        service.catDetected(cameraId, cat);
+                        return cat;
+                    }));
+        } catch (RejectedExecutionException ree) {
+            return CompletableFuture.failedFuture(ree);
+        }
+    }
+
+    /**
+     * Evicts the sites that have been idle for longer than the idle timeout, on every shard.
+     *
+     * @return Future completed with the number of evicted sites
+     */
+    public CompletableFuture<Integer> evictIdleSites() {
+        long now = nanoClock.getAsLong();
+        CompletableFuture<Integer> evicted = CompletableFuture.completedFuture(0);
+        for (Shard shard : shards) {
+            CompletableFuture<Integer> count = new CompletableFuture<>();
+            try {
+                shard.loop.execute(() -> count.complete(shard.evictIdle(now)));
+            } catch (RejectedExecutionException ree) {
+                count.complete(0);
+            }
+            evicted = evicted.thenCombine(count, Integer::sum);
+        }
+        return evicted;
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public int getActiveSiteCount() {
+        return activeSites.get();
+    }
+
+    public long getActivationCount() {
+        return activations.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns the number of commands waiting on all shards.
+     */
+    public int getQueuedCount() {
+        int queued = 0;
+        for (Shard shard : shards) {
+            queued += shard.loop.getQueuedCount();
+        }
+        return queued;
+    }
+
+    /**
+     * Publishes the engine's counts in the registry.
+     */
+    public void registerMetrics(MetricsRegistry registry) {
+        if (!registry.isEnabled()) {
+            return;
+        }
+        registry.gauge("engine.sites.active", this::getActiveSiteCount);
+        registry.gauge("engine.sites.activations", this::getActivationCount);
+        registry.gauge("engine.sites.evictions", this::getEvictionCount);
+        registry.gauge("engine.queued", this::getQueuedCount);
+    }
+
+    /**
+     * Stops evicting, closes every active site's repository and stops the shards. Commands
+     * already queued still run. Closing again has no effect.
+     */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        sweeper.shutdownNow();
+        for (Shard shard : shards) {
+            shard.loop.execute(shard::evictAll);
+        }
+        for (Shard shard : shards) {
+            shard.loop.close();
+        }
+    }
+
+    private static void closeRepository(SecurityRepository repository) {
+        if (repository instanceof AutoCloseable closeable) {
+            try {
+                closeable.close();
+            } catch (Exception e) {
+                throw new IllegalStateException("Unable to close site repository", e);
+            }
+        }
+    }
+
+    /**
+     * The sites of one shard. Only touched by the shard's thread.
+     */
+    private final class Shard {
+        private final SecurityEventLoop loop = new SecurityEventLoop();
+        private final Map<String, Site> sites = new HashMap<>();
+
+        Site activate(String siteId) {
+            Site site = sites.get(siteId);
+            if (site == null) {
+                SecurityRepository repository = repositories.open(siteId);
+                site = new Site(repository, new SecurityService(repository, imageService, imageExecutor, loop));
+                sites.put(siteId, site);
+                activeSites.incrementAndGet();
+                activations.increment();
+            }
+            site.lastUsedNanos = nanoClock.getAsLong();
+            return site;
+        }
+
+        int evictIdle(long now) {
+            int evicted = 0;
+            for (Iterator<Site> it = sites.values().iterator(); it.hasNext(); ) {
+                Site site = it.next();
+                if (now - site.lastUsedNanos >= idleTimeoutNanos && site.isIdle()) {
+                    it.remove();
+                    evict(site);
+                    evicted++;
+                }
+            }
+            return evicted;
+        }
+
+        void evictAll() {
+            sites.values().forEach(this::evict);
+            sites.clear();
+        }
+
+        /**
+         * Forgets the site and closes its repository. A repository failing to close is reported
+         * to the shard thread's uncaught exception handler, so the other sites are still evicted.
+         */
+        private void evict(Site site) {
+            activeSites.decrementAndGet();
+            evictions.increment();
+            try {
+                closeRepository(site.repository);
+            } catch (RuntimeException e) {
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+            }
+        }
+    }
+
+    private static final class Site {
+        final SecurityRepository repository;
+        final SecurityService service;
+        long lastUsedNanos;
+
+        Site(SecurityRepository repository, SecurityService service) {
+            this.repository = repository;
+            this.service = service;
+        }
+
+        /**
+         * Returns false if the site holds state that would be lost by evicting it.
+         */
+        boolean isIdle() {
+            return service.getStatusListenerDispatcher().getListenerCount() == 0 && !service.isCatDetected();
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.security.server;
+
+import com.udacity.security.data.AlarmStatus;
+import com.udacity.security.data.ArmingStatus;
+import com.udacity.security.data.SensorType;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * The framed TCP protocol of the {@link ProtocolServer}. Every frame is
+ * <pre>
+ * length:int32  type:uint8  payload
+ * </pre>
+ * where the length counts the type and the payload, and all numbers are big-endian. Strings are
+ * written as a uint16 byte count followed by UTF-8, ids as two int64s, enums as their ordinal.
+ * <p>
+ * Frames sent by clients:
+ * <pre>
+ * SITE          site id:string              binds the connection to a site, must come first
+ * SUBSCRIBE                                 pushes a STATUS now and whenever the site changes
+ * ADD_SENSOR    id:uuid type:uint8 name:string
+ * REMOVE_SENSOR id:uuid
+ * SENSOR        id:uuid active:uint8        sensor event
+ * ARM           arming status:uint8
+ * IMAGE         camera id:string image      camera frame, in any format ImageIO reads
+ * SYNC          token:int32                 answered once the site applied all frames before it
+ * </pre>
+ * Frames sent by the server:
+ * <pre>
+ * STATUS        alarm:uint8 arming:uint8 cat:uint8 active sensors:int32
+ * SYNCED        token:int32
+ * ERROR         message:string              the connection is closed after it
+ * </pre>
+ * Requests are not acknowledged, a client that needs to know when they were applied sends a
+ * SYNC. The put methods write whole frames and are meant for clients as well as the server.
+ */
+public final class CatpointProtocol {
+
+    public static final byte SITE = 0x01;
+    public static final byte SUBSCRIBE = 0x02;
+    public static final byte ADD_SENSOR = 0x03;
+    public static final byte REMOVE_SENSOR = 0x04;
+    public static final byte SENSOR = 0x05;
+    public static final byte ARM = 0x06;
+    public static final byte IMAGE = 0x07;
+    public static final byte SYNC = 0x08;
+
+    public static final byte STATUS = (byte) 0x81;
+    public static final byte SYNCED = (byte) 0x82;
+    public static final byte ERROR = (byte) 0x83;
+
+    /**
+     * Size of the length field in front of every frame.
+     */
+    public static final int HEADER_LENGTH = Integer.BYTES;
+    /**
+     * Largest frame accepted, type and payload, large enough for a compressed camera image.
+     */
+    public static final int MAX_FRAME_LENGTH = 8 * 1024 * 1024;
+    /**
+     * Size of a whole SENSOR frame, including its length field.
+     */
+    public static final int SENSOR_FRAME_LENGTH = HEADER_LENGTH + 1 + 16 + 1;
+
+    private CatpointProtocol() {
+    }
+
+    public static ByteBuffer putSite(ByteBuffer buffer, String siteId) {
+        int start = begin(buffer, SITE);
+        putString(buffer, siteId);
+        return end(buffer, start);
+    }
+
+    public static ByteBuffer putSubscribe(ByteBuffer buffer) {
+        return end(buffer, begin(buffer, SUBSCRIBE));
+    }
+
+    public static ByteBuffer putAddSensor(ByteBuffer buffer, UUID sensorId, SensorType type, String name) {
+        int start = begin(buffer, ADD_SENSOR);
+        putUuid(buffer, sensorId);
+        buffer.put((byte) type.ordinal());
+        putString(buffer, name);
+        return end(buffer, start);
+    }
+
+    public static ByteBuffer putRemoveSensor(ByteBuffer buffer, UUID sensorId) {
+        int start = begin(buffer, REMOVE_SENSOR);
+        putUuid(buffer, sensorId);
+        return end(buffer, start);
+    }
+
+    public static ByteBuffer putSensor(ByteBuffer buffer, UUID sensorId, boolean active) {
+        int start = begin(buffer, SENSOR);
+        putUuid(buffer, sensorId);
+        buffer.put((byte) (active ? 1 : 0));
+        return end(buffer, start);
+    }
+
+    public static ByteBuffer putArm(ByteBuffer buffer, ArmingStatus armingStatus) {
+        int start = begin(buffer, ARM);
+        buffer.put((byte) armingStatus.ordinal());
+        return end(buffer, start);
+    }
+
+    /**
+     * @param image Encoded image, for example PNG or JPEG
+     */
+    public static ByteBuffer putImage(ByteBuffer buffer, String cameraId, byte[] image) {
+        int start = begin(buffer, IMAGE);
+        putString(buffer, cameraId);
+        buffer.put(image);
+        return end(buffer, start);
+    }
+
+    public static ByteBuffer putSync(ByteBuffer buffer, int token) {
+        int start = begin(buffer, SYNC);
+        buffer.putInt(token);
+        return end(buffer, start);
+    }
+
+    public static ByteBuffer putStatus(ByteBuffer buffer, AlarmStatus alarmStatus, ArmingStatus armingStatus,
+                                       boolean catDetected, int activeSensorCount) {
+        int start = begin(buffer, STATUS);
+        buffer.put((byte) alarmStatus.ordinal());
+        buffer.put((byte) armingStatus.ordinal());
+        buffer.put((byte) (catDetected ? 1 : 0));
+        buffer.putInt(activeSensorCount);
+        return end(buffer, start);
+    }
+
+    public static ByteBuffer putSynced(ByteBuffer buffer, int token) {
+        int start = begin(buffer, SYNCED);
+        buffer.putInt(token);
+        return end(buffer, start);
+    }
+
+    public static ByteBuffer putError(ByteBuffer buffer, String message) {
+        int start = begin(buffer, ERROR);
+        putString(buffer, message);
+        return end(buffer, start);
+    }
+
+    /**
+     * Returns the length of the frame starting at the buffer's position, type and payload, or -1
+     * if its length field has not arrived yet. Does not move the position.
+     *
+     * @throws ProtocolException If the length is out of range
+     */
+    public static int frameLength(ByteBuffer buffer) throws ProtocolException {
+        if (buffer.remaining() < HEADER_LENGTH) {
+            return -1;
+        }
+        int length = buffer.getInt(buffer.position());
+        if (length < 1 || length > MAX_FRAME_LENGTH) {
+            throw new ProtocolException("Invalid frame length " + length);
+        }
+        return length;
+    }
+
+    public static UUID getUuid(ByteBuffer buffer) {
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+    public static String getString(ByteBuffer buffer) throws ProtocolException {
+        int length = Short.toUnsignedInt(buffer.getShort());
+        if (length > buffer.remaining()) {
+            throw new ProtocolException("String longer than its frame");
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads an enum ordinal.
+     */
+    public static <E extends Enum<E>> E getEnum(ByteBuffer buffer, E[] values) throws ProtocolException {
+        int ordinal = Byte.toUnsignedInt(buffer.get());
+        if (ordinal >= values.length) {
+            throw new ProtocolException("Invalid value " + ordinal);
+        }
+        return values[ordinal];
+    }
+
+    private static int begin(ByteBuffer buffer, byte type) {
+        int start = buffer.position();
+        buffer.putInt(0);
+        buffer.put(type);
+        return start;
+    }
+
+    private static ByteBuffer end(ByteBuffer buffer, int start) {
+        buffer.putInt(start, buffer.position() - start - HEADER_LENGTH);
+        return buffer;
+    }
+
+    private static void putUuid(ByteBuffer buffer, UUID id) {
+        buffer.putLong(id.getMostSignificantBits());
+        buffer.putLong(id.getLeastSignificantBits());
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("String longer than 65535 bytes");
+        }
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * A frame that does not follow the protocol. The connection it arrived on is closed.
+     */
+    public static class ProtocolException extends Exception {
+        public ProtocolException(String message) {
+            super(message);
+        }
+    }
+}
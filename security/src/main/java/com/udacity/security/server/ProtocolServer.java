@@ -0,0 +1,569 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.security.server;
+
+import com.udacity.metrics.MetricsRegistry;
+import com.udacity.security.application.StatusListener;
+import com.udacity.security.data.AlarmStatus;
+import com.udacity.security.data.ArmingStatus;
+import com.udacity.security.data.Sensor;
+import com.udacity.security.data.SensorType;
+import com.udacity.security.engine.SiteEngine;
+import com.udacity.security.server.CatpointProtocol.ProtocolException;
+import com.udacity.security.service.SecurityService;
+import com.udacity.security.service.SensorEvent;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Serves the {@link CatpointProtocol} over TCP, driving the sites of a {@link SiteEngine}.
+ * <p>
+ * All connections are handled by one thread on a {@link Selector}. It decodes frames and hands
+ * them to the site's shard without waiting for them to be applied, so it never blocks on the
+ * system state. Sensor events that arrive in the same read are applied as one batch. When a
+ * shard's queue is full the selector thread waits for it, which stops reading from all
+ * connections until the shards caught up and lets TCP slow the clients down. Images are decoded
+ * and analyzed on the image executor; images it has no room for are dropped, as a camera sends
+ * the next one soon anyway.
+ * <p>
+ * Subscribed connections are status listeners of their site, which also keeps the site from being
+ * evicted. A status that was not sent yet is replaced by the newer one, so a slow subscriber only
+ * receives the latest.
+ * <p>
+ * A connection that fails, even through a bug in handling it, is closed on its own; the selector
+ * thread keeps serving the others. The protocol has no authentication, anyone who can connect can
+ * disarm any site, so the server should only listen on a loopback address or a trusted network.
+ */
+public class ProtocolServer implements AutoCloseable {
+
+    public static final int DEFAULT_PORT = 7070;
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int STATUS_FRAME_LENGTH = CatpointProtocol.HEADER_LENGTH + 1 + 3 + Integer.BYTES;
+
+    private final SiteEngine engine;
+    private final Executor imageExecutor;
+    private final float confidenceThreshold;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Thread thread;
+    private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+    //only touched by the selector thread
+    private final Set<Connection> connections = new HashSet<>();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder frames = new LongAdder();
+    private final LongAdder sensorEvents = new LongAdder();
+    private final LongAdder images = new LongAdder();
+    private final LongAdder imagesDropped = new LongAdder();
+    private final LongAdder protocolErrors = new LongAdder();
+    private volatile int connectionCount;
+    private volatile boolean running = true;
+
+    /**
+     * Starts listening on the given address.
+     *
+     * @param engine              Engine hosting the sites
+     * @param imageExecutor       Executor decoding images; the engine analyzes them on its own one
+     * @param confidenceThreshold Minimum confidence, in percent, to count an image as a cat
+     * @param address             Address to listen on, port 0 picks a free port
+     */
+    public ProtocolServer(SiteEngine engine, Executor imageExecutor, float confidenceThreshold,
+                          InetSocketAddress address) throws IOException {
+        this.engine = engine;
+        this.imageExecutor = imageExecutor;
+        this.confidenceThreshold = confidenceThreshold;
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(address);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+        thread = new Thread(this::run, "protocol-server");
+        thread.start();
+    }
+
+    /**
+     * Returns the port the server listens on.
+     */
+    public int getPort() {
+        try {
+            return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    public int getConnectionCount() {
+        return connectionCount;
+    }
+
+    public long getAcceptedCount() {
+        return accepted.sum();
+    }
+
+    public long getFrameCount() {
+        return frames.sum();
+    }
+
+    public long getSensorEventCount() {
+        return sensorEvents.sum();
+    }
+
+    public long getImageCount() {
+        return images.sum();
+    }
+
+    /**
+     * Returns the number of images dropped because the image executor was busy or could not
+     * decode them.
+     */
+    public long getImagesDroppedCount() {
+        return imagesDropped.sum();
+    }
+
+    /**
+     * Returns the number of connections closed because they broke the protocol.
+     */
+    public long getProtocolErrorCount() {
+        return protocolErrors.sum();
+    }
+
+    /**
+     * Publishes the server's counts in the registry.
+     */
+    public void registerMetrics(MetricsRegistry registry) {
+        if (!registry.isEnabled()) {
+            return;
+        }
+        registry.gauge("server.connections", this::getConnectionCount);
+        registry.gauge("server.frames", this::getFrameCount);
+        registry.gauge("server.sensor_events", this::getSensorEventCount);
+        registry.gauge("server.images", this::getImageCount);
+        registry.gauge("server.images_dropped", this::getImagesDroppedCount);
+        registry.gauge("server.protocol_errors", this::getProtocolErrorCount);
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select();
+                for (Connection connection; (connection = pendingWrites.poll()) != null; ) {
+                    connection.writeScheduled.set(false);
+                    serve(connection, null);
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    serve((Connection) key.attachment(), key);
+                }
+            }
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        } finally {
+            new ArrayList<>(connections).forEach(Connection::close);
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException ignored) {
+                //nothing left to release
+            }
+        }
+    }
+
+    /**
+     * Reads from and writes to a connection as far as the key says it is ready, or only writes
+     * without a key. A connection failing with an unexpected exception is closed and the failure
+     * reported to the thread's uncaught exception handler.
+     */
+    private void serve(Connection connection, SelectionKey key) {
+        try {
+            if (key == null) {
+                connection.write();
+                return;
+            }
+            if (key.isReadable()) {
+                connection.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.write();
+            }
+        } catch (RuntimeException e) {
+            connection.close();
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        }
+    }
+
+    /**
+     * Accepts a waiting connection. A connection that fails while being set up is dropped.
+     */
+    private void accept() {
+        SocketChannel channel = null;
+        try {
+            channel = serverChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.add(connection);
+            connectionCount = connections.size();
+            accepted.increment();
+        } catch (IOException e) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    //the client is gone either way
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops accepting connections, closes the open ones and waits for the selector thread. The
+     * engine is left running.
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        if (Thread.currentThread() != thread) {
+            try {
+                thread.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static BufferedImage decode(byte[] image) {
+        try {
+            return ImageIO.read(new ByteArrayInputStream(image));
+        } catch (IOException | RuntimeException e) {
+            //decoders report corrupt images with all kinds of runtime exceptions
+            return null;
+        }
+    }
+
+    /**
+     * One client. Reading and writing happen on the selector thread; replies and status updates
+     * are queued from any thread.
+     */
+    private final class Connection implements StatusListener {
+        private final SocketChannel channel;
+        private final Queue<ByteBuffer> replies = new ConcurrentLinkedQueue<>();
+        private final AtomicReference<ByteBuffer> status = new AtomicReference<>();
+        private final AtomicBoolean writeScheduled = new AtomicBoolean();
+        private SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private ByteBuffer writing;
+        private String siteId;
+        private boolean subscribed;
+        private List<SensorEvent> batch = new ArrayList<>();
+        //only touched on the site's shard thread
+        private SecurityService service;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() {
+            try {
+                if (channel.read(in) < 0) {
+                    close();
+                    return;
+                }
+                in.flip();
+                int needed = 0;
+                try {
+                    for (int length; (length = CatpointProtocol.frameLength(in)) >= 0; ) {
+                        if (in.remaining() < CatpointProtocol.HEADER_LENGTH + length) {
+                            needed = CatpointProtocol.HEADER_LENGTH + length;
+                            break;
+                        }
+                        ByteBuffer frame = in.slice(in.position() + CatpointProtocol.HEADER_LENGTH, length);
+                        in.position(in.position() + CatpointProtocol.HEADER_LENGTH + length);
+                        frames.increment();
+                        handle(frame);
+                    }
+                } finally {
+                    flushSensorEvents();
+                    in.compact();
+                }
+                if (needed > in.capacity()) {
+                    //a large image, the buffer shrinks again once it was handled
+                    in = ByteBuffer.allocate(needed).put(in.flip());
+                } else if (in.position() == 0 && in.capacity() > READ_BUFFER_SIZE) {
+                    in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                }
+            } catch (ProtocolException e) {
+                protocolErrors.increment();
+                fail(e.getMessage());
+            } catch (IOException | RejectedExecutionException e) {
+                //gone, or the engine was closed
+                close();
+            }
+        }
+
+        private void handle(ByteBuffer frame) throws ProtocolException {
+            byte type = frame.get();
+            if (siteId == null && type != CatpointProtocol.SITE) {
+                throw new ProtocolException("The first frame must name the site");
+            }
+            try {
+                if (type == CatpointProtocol.SENSOR) {
+                    batch.add(new SensorEvent(CatpointProtocol.getUuid(frame), frame.get() != 0));
+                    return;
+                }
+                //everything else is applied after the sensor events before it
+                flushSensorEvents();
+                switch (type) {
+                    case CatpointProtocol.SITE -> site(CatpointProtocol.getString(frame));
+                    case CatpointProtocol.SUBSCRIBE -> subscribe();
+                    case CatpointProtocol.ADD_SENSOR -> {
+                        UUID sensorId = CatpointProtocol.getUuid(frame);
+                        SensorType sensorType = CatpointProtocol.getEnum(frame, SensorType.values());
+                        Sensor sensor = new Sensor(CatpointProtocol.getString(frame), sensorType);
+                        sensor.setSensorId(sensorId);
+                        engine.execute(siteId, service -> service.addSensor(sensor));
+                    }
+                    case CatpointProtocol.REMOVE_SENSOR -> {
+                        UUID sensorId = CatpointProtocol.getUuid(frame);
+                        engine.execute(siteId, service -> service.removeById(sensorId));
+                    }
+                    case CatpointProtocol.ARM -> {
+                        ArmingStatus armingStatus = CatpointProtocol.getEnum(frame, ArmingStatus.values());
+                        engine.execute(siteId, service -> service.setArmingStatus(armingStatus));
+                    }
+                    case CatpointProtocol.IMAGE -> {
+                        String cameraId = CatpointProtocol.getString(frame);
+                        byte[] image = new byte[frame.remaining()];
+                        frame.get(image);
+                        image(cameraId, image);
+                    }
+                    case CatpointProtocol.SYNC -> {
+                        int token = frame.getInt();
+                        engine.call(siteId, service -> token)
+                                .thenAccept(t -> reply(CatpointProtocol.putSynced(ByteBuffer.allocate(16), t).flip()));
+                    }
+                    default -> throw new ProtocolException("Unknown frame type " + type);
+                }
+            } catch (BufferUnderflowException e) {
+                throw new ProtocolException("Frame of type " + type + " is too short");
+            }
+        }
+
+        private void site(String id) throws ProtocolException {
+            if (siteId != null) {
+                throw new ProtocolException("The connection is already bound to site " + siteId);
+            }
+            if (!SiteEngine.isValidSiteId(id)) {
+                throw new ProtocolException("Invalid site id " + id);
+            }
+            siteId = id;
+        }
+
+        private void subscribe() {
+            if (subscribed) {
+                return;
+            }
+            subscribed = true;
+            engine.execute(siteId, service -> {
+                this.service = service;
+                service.addStatusListener(this);
+                pushStatus();
+            });
+        }
+
+        private void image(String cameraId, byte[] image) {
+            images.increment();
+            CompletableFuture<Boolean> verdict;
+            try {
+                verdict = CompletableFuture.supplyAsync(() -> decode(image), imageExecutor)
+                        .thenCompose(decoded -> decoded == null
+                                ? CompletableFuture.failedFuture(new IllegalArgumentException("Unreadable image"))
+                                : engine.processImage(siteId, cameraId, decoded, confidenceThreshold));
+            } catch (RejectedExecutionException ree) {
+                verdict = CompletableFuture.failedFuture(ree);
+            }
+            verdict.exceptionally(e -> {
+                imagesDropped.increment();
+                return false;
+            });
+        }
+
+        private void flushSensorEvents() {
+            if (batch.isEmpty()) {
+                return;
+            }
+            List<SensorEvent> events = batch;
+            batch = new ArrayList<>();
+            sensorEvents.add(events.size());
+            engine.execute(siteId, service -> service.changeSensorActivationStatus(events));
+        }
+
+        /**
+         * Queues the site's current status, replacing one that was not sent yet. Called on the
+         * site's shard thread.
+         */
+        private void pushStatus() {
+            ByteBuffer frame = ByteBuffer.allocate(STATUS_FRAME_LENGTH);
+            CatpointProtocol.putStatus(frame, service.getAlarmStatus(), service.getArmingStatus(),
+                    service.isCatDetected(), service.getActiveSensorCount());
+            status.set(frame.flip());
+            scheduleWrite();
+        }
+
+        @Override
+        public void notify(AlarmStatus alarmStatus) {
+            pushStatus();
+        }
+
+        @Override
+        public void catDetected(boolean catDetected) {
+            pushStatus();
+        }
+
+        @Override
+        public void sensorStatusChanged() {
+            pushStatus();
+        }
+
+        private void reply(ByteBuffer frame) {
+            replies.add(frame);
+            scheduleWrite();
+        }
+
+        private void scheduleWrite() {
+            if (writeScheduled.compareAndSet(false, true)) {
+                pendingWrites.add(this);
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Writes queued replies, then the latest status, as far as the socket takes them.
+         */
+        void write() {
+            if (!channel.isOpen()) {
+                return;
+            }
+            try {
+                while (true) {
+                    if (writing == null) {
+                        writing = replies.poll();
+                        if (writing == null) {
+                            writing = status.getAndSet(null);
+                        }
+                        if (writing == null) {
+                            key.interestOps(SelectionKey.OP_READ);
+                            return;
+                        }
+                    }
+                    channel.write(writing);
+                    if (writing.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    writing = null;
+                }
+            } catch (IOException ioe) {
+                close();
+            }
+        }
+
+        /**
+         * Sends an error, as far as the socket takes it right away, and closes the connection.
+         */
+        private void fail(String message) {
+            try {
+                channel.write(CatpointProtocol.putError(ByteBuffer.allocate(message.length() * 3 + 16), message).flip());
+            } catch (IOException ignored) {
+                //closed below anyway
+            }
+            close();
+        }
+
+        void close() {
+            if (!channel.isOpen()) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                //the connection is gone either way
+            }
+            connections.remove(this);
+            connectionCount = connections.size();
+            if (subscribed) {
+                try {
+                    engine.execute(siteId, service -> service.removeStatusListener(this));
+                } catch (RejectedExecutionException ignored) {
+                    //the engine was closed, and the site with it
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,440 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.security.service;
+
+import com.udacity.image.service.ImageServiceExecutors;
+import com.udacity.metrics.LatencyHistogram;
+import com.udacity.metrics.MetricsRegistry;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Feeds frames from several cameras to a {@link SecurityService}, which keeps a cat verdict per
+ * camera.
+ * <p>
+ * Every camera has its own bounded queue, so a camera sending frames faster than they can be
+ * analyzed only delays itself. What happens to a frame arriving at a full queue depends on the
+ * camera's {@link OverflowPolicy}. A shared pool of worker threads analyzes the frames: a camera
+ * with queued frames waits in line for a worker, hands over one frame, and goes to the back of
+ * the line if it has more, so busy cameras take turns instead of starving quiet ones. The frames
+ * of one camera are analyzed one at a time and in order, so its verdicts never overtake each other.
+ * <p>
+ * Each camera keeps statistics: frames received, analyzed, dropped and failed, the rate at which
+ * frames arrive and are analyzed, and the lag between a frame arriving and its verdict.
+ */
+public class FrameIngestion implements AutoCloseable {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 4;
+
+    private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * What a camera does with a frame arriving while its queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Drops the oldest queued frame to make room.
+         */
+        DROP_OLDEST,
+        /**
+         * Only ever keeps the newest frame; a frame still waiting is dropped when a new one arrives.
+         */
+        LATEST_ONLY
+    }
+
+    private final SecurityService securityService;
+    private final ExecutorService workers;
+    private final ConcurrentMap<String, Camera> cameras = new ConcurrentHashMap<>();
+    private volatile MetricsRegistry metrics = MetricsRegistry.DISABLED;
+    private volatile boolean closed;
+
+    /**
+     * @param securityService Service analyzing the frames and keeping the verdicts
+     * @param workerThreads   Number of frames analyzed at the same time, across all cameras
+     */
+    public FrameIngestion(SecurityService securityService, int workerThreads) {
+        if (workerThreads <= 0) {
+            throw new IllegalArgumentException("workerThreads must be positive");
+        }
+        this.securityService = securityService;
+        //every camera has at most one task waiting, so the pool's queue is bounded by the cameras
+        this.workers = Executors.newFixedThreadPool(workerThreads, ImageServiceExecutors.daemonThreads("frame-worker"));
+    }
+
+    /**
+     * Registers a camera with a queue of {@value #DEFAULT_QUEUE_CAPACITY} frames.
+     */
+    public Camera register(String cameraId, OverflowPolicy policy) {
+        return register(cameraId, policy, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Registers a camera.
+     *
+     * @param cameraId      Id the camera's verdicts are kept under
+     * @param policy        What to do with frames arriving at a full queue
+     * @param queueCapacity Number of frames that may wait, ignored for {@link OverflowPolicy#LATEST_ONLY}
+     * @return The camera, to submit frames to
+     * @throws IllegalArgumentException If a camera with that id is already registered
+     */
+    public Camera register(String cameraId, OverflowPolicy policy, int queueCapacity) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("queueCapacity must be positive");
+        }
+        if (closed) {
+            throw new IllegalStateException("Frame ingestion closed");
+        }
+        Camera camera = new Camera(cameraId, policy, policy == OverflowPolicy.LATEST_ONLY ? 1 : queueCapacity);
+        if (cameras.putIfAbsent(cameraId, camera) != null) {
+            throw new IllegalArgumentException("Camera " + cameraId + " is already registered");
+        }
+        camera.registerMetrics(metrics);
+        return camera;
+    }
+
+    /**
+     * Takes a camera out of service. Its queued frames are dropped, a frame of it being analyzed
+     * is waited for, and then its verdict is forgotten, so a late verdict cannot bring it back.
+     */
+    public void unregister(String cameraId) {
+        Camera camera = cameras.remove(cameraId);
+        if (camera != null) {
+            camera.stop();
+            camera.awaitIdle();
+            securityService.removeCamera(cameraId);
+        }
+    }
+
+    public Optional<Camera> getCamera(String cameraId) {
+        return Optional.ofNullable(cameras.get(cameraId));
+    }
+
+    /**
+     * Returns a read-only view of the registered cameras.
+     */
+    public Collection<Camera> getCameras() {
+        return Collections.unmodifiableCollection(cameras.values());
+    }
+
+    /**
+     * Publishes every camera's counts and records their lag in the registry, including cameras
+     * registered later.
+     */
+    public void registerMetrics(MetricsRegistry registry) {
+        if (!registry.isEnabled()) {
+            return;
+        }
+        metrics = registry;
+        cameras.values().forEach(camera -> camera.registerMetrics(registry));
+    }
+
+    /**
+     * Stops accepting frames and waits for the frames being analyzed. Queued frames are dropped.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        cameras.values().forEach(Camera::stop);
+        workers.shutdown();
+        try {
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * One camera's queue and statistics.
+     */
+    public final class Camera {
+        private final String id;
+        private final OverflowPolicy policy;
+        private final int capacity;
+        //guarded by this
+        private final ArrayDeque<Frame> queue;
+        private boolean scheduled;
+        private boolean analyzing;
+        private boolean stopped;
+        private final RateMeter receivedRate = new RateMeter();
+        private final RateMeter analyzedRate = new RateMeter();
+        private final LongAdder received = new LongAdder();
+        private final LongAdder analyzed = new LongAdder();
+        private final LongAdder dropped = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private final LongAdder lagSum = new LongAdder();
+        private volatile long lastLagNanos;
+        private volatile long maxLagNanos;
+        private volatile LatencyHistogram lagHistogram;
+
+        private Camera(String id, OverflowPolicy policy, int capacity) {
+            this.id = id;
+            this.policy = policy;
+            this.capacity = capacity;
+            this.queue = new ArrayDeque<>(capacity);
+        }
+
+        /**
+         * Queues a frame for analysis, dropping a waiting frame if the queue is full.
+         *
+         * @return False if the camera was unregistered or the ingestion closed, and the frame was refused
+         */
+        public boolean submit(BufferedImage frame) {
+            long now = System.nanoTime();
+            boolean schedule;
+            synchronized (this) {
+                if (stopped) {
+                    return false;
+                }
+                if (queue.size() == capacity) {
+                    queue.pollFirst();
+                    dropped.increment();
+                }
+                queue.addLast(new Frame(frame, now));
+                schedule = !scheduled;
+                scheduled = true;
+            }
+            received.increment();
+            receivedRate.mark(now);
+            if (schedule) {
+                schedule();
+            }
+            return true;
+        }
+
+        private void schedule() {
+            try {
+                workers.execute(this::analyzeNext);
+            } catch (RejectedExecutionException e) {
+                //closed in the meantime
+                synchronized (this) {
+                    dropped.add(queue.size());
+                    queue.clear();
+                    scheduled = false;
+                }
+            }
+        }
+
+        /**
+         * Analyzes the oldest queued frame, then goes to the back of the workers' queue if more
+         * frames are waiting.
+         */
+        private void analyzeNext() {
+            Frame frame;
+            synchronized (this) {
+                frame = queue.pollFirst();
+                if (frame == null) {
+                    scheduled = false;
+                    return;
+                }
+                analyzing = true;
+            }
+            try {
+                securityService.processImage(id, frame.image());
+                analyzed(frame.receivedNanos());
+            } catch (RuntimeException e) {
+                failed.increment();
+            }
+            synchronized (this) {
+                analyzing = false;
+                notifyAll();
+                if (queue.isEmpty()) {
+                    scheduled = false;
+                    return;
+                }
+            }
+            schedule();
+        }
+
+        private void analyzed(long receivedNanos) {
+            long now = System.nanoTime();
+            long lag = now - receivedNanos;
+            analyzed.increment();
+            analyzedRate.mark(now);
+            lastLagNanos = lag;
+            lagSum.add(lag);
+            if (lag > maxLagNanos) {
+                //only updated by the one worker analyzing this camera's frames
+                maxLagNanos = lag;
+            }
+            LatencyHistogram histogram = lagHistogram;
+            if (histogram != null) {
+                histogram.recordNanos(lag);
+            }
+        }
+
+        private void stop() {
+            synchronized (this) {
+                stopped = true;
+                dropped.add(queue.size());
+                queue.clear();
+            }
+        }
+
+        /**
+         * Waits until no frame of this camera is being analyzed. Once stopped, none starts again.
+         */
+        private synchronized void awaitIdle() {
+            boolean interrupted = false;
+            while (analyzing) {
+                try {
+                    wait();
+                } catch (InterruptedException ie) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void registerMetrics(MetricsRegistry registry) {
+            if (!registry.isEnabled()) {
+                return;
+            }
+            String prefix = "camera." + id + ".";
+            lagHistogram = registry.histogram(prefix + "lag");
+            registry.gauge(prefix + "received", this::getReceivedCount);
+            registry.gauge(prefix + "analyzed", this::getAnalyzedCount);
+            registry.gauge(prefix + "dropped", this::getDroppedCount);
+            registry.gauge(prefix + "failed", this::getFailedCount);
+            registry.gauge(prefix + "queued", this::getQueuedCount);
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public OverflowPolicy getPolicy() {
+            return policy;
+        }
+
+        public synchronized int getQueuedCount() {
+            return queue.size();
+        }
+
+        public long getReceivedCount() {
+            return received.sum();
+        }
+
+        public long getAnalyzedCount() {
+            return analyzed.sum();
+        }
+
+        /**
+         * Returns the number of frames dropped from a full queue, or because the camera was stopped.
+         */
+        public long getDroppedCount() {
+            return dropped.sum();
+        }
+
+        /**
+         * Returns the number of frames whose analysis failed, for example because the image
+         * service was overloaded.
+         */
+        public long getFailedCount() {
+            return failed.sum();
+        }
+
+        /**
+         * Returns the rate at which frames arrived over roughly the last second.
+         */
+        public double getReceivedFrameRate() {
+            return receivedRate.perSecond(System.nanoTime());
+        }
+
+        /**
+         * Returns the rate at which frames were analyzed over roughly the last second.
+         */
+        public double getAnalyzedFrameRate() {
+            return analyzedRate.perSecond(System.nanoTime());
+        }
+
+        /**
+         * Returns the time between the last analyzed frame arriving and its verdict.
+         */
+        public long getLastLagNanos() {
+            return lastLagNanos;
+        }
+
+        public long getMaxLagNanos() {
+            return maxLagNanos;
+        }
+
+        public long getMeanLagNanos() {
+            long count = analyzed.sum();
+            return count == 0 ? 0 : lagSum.sum() / count;
+        }
+
+        /**
+         * Returns true if this camera's last verdict was a cat.
+         */
+        public boolean isCatDetected() {
+            return securityService.isCatDetected(id);
+        }
+    }
+
+    private record Frame(BufferedImage image, long receivedNanos) {
+    }
+
+    /**
+     * Counts events in windows of about a second. The rate is the count of the last completed
+     * window divided by its length, which also covers any idle time before the next event.
+     */
+    private static final class RateMeter {
+        private long windowStart = System.nanoTime();
+        private long windowCount;
+        private double rate;
+
+        synchronized void mark(long now) {
+            roll(now);
+            windowCount++;
+        }
+
+        synchronized double perSecond(long now) {
+            roll(now);
+            return rate;
+        }
+
+        private void roll(long now) {
+            long elapsed = now - windowStart;
+            if (elapsed >= RATE_WINDOW_NANOS) {
+                rate = windowCount * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+                windowStart = now;
+                windowCount = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.security.service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Executor that runs commands one after another on a single thread, in the order they were
+ * submitted. Commands are handed over through a {@link MpscRingBuffer}, so submitting never takes
+ * a lock. Used by {@link SecurityService} in event-loop mode, where the loop thread is the only
+ * one changing the system state.
+ * <p>
+ * When idle the loop spins briefly, then yields, then parks until the next command arrives. When
+ * the buffer is full, submitting threads wait for free space rather than drop a command.
+ */
+public class SecurityEventLoop implements Executor, AutoCloseable {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private static final int DRAIN_LIMIT = 256;
+    private static final int SPINS = 100;
+    private static final int YIELDS = 10;
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final MpscRingBuffer<Runnable> commands;
+    private final Thread thread;
+    private volatile boolean parked;
+    private volatile boolean running = true;
+
+    public SecurityEventLoop() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Maximum number of queued commands
+     */
+    public SecurityEventLoop(int capacity) {
+        commands = new MpscRingBuffer<>(capacity);
+        thread = new Thread(this::run, "security-event-loop");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a command. Waits while the buffer is full.
+     *
+     * @throws RejectedExecutionException If the loop was closed
+     */
+    @Override
+    public void execute(Runnable command) {
+        if (!running) {
+            throw new RejectedExecutionException("Event loop closed");
+        }
+        while (!commands.offer(command)) {
+            if (inEventLoop()) {
+                //the loop would wait for itself, run the command right away instead
+                command.run();
+                return;
+            }
+            if (!running) {
+                throw new RejectedExecutionException("Event loop closed");
+            }
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+        if (parked) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Queues a command and returns a future completed once it ran. Submitting an empty command
+     * waits for everything queued before it.
+     */
+    public CompletableFuture<Void> submit(Runnable command) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        execute(() -> {
+            try {
+                command.run();
+                done.complete(null);
+            } catch (RuntimeException e) {
+                done.completeExceptionally(e);
+            }
+        });
+        return done;
+    }
+
+    /**
+     * Returns true if called from the loop thread.
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Returns the number of commands waiting to run.
+     */
+    public int getQueuedCount() {
+        return commands.size();
+    }
+
+    private void run() {
+        int idle = 0;
+        while (running || !commands.isEmpty()) {
+            if (commands.drain(this::runCommand, DRAIN_LIMIT) > 0) {
+                idle = 0;
+            } else if (idle < SPINS) {
+                idle++;
+                Thread.onSpinWait();
+            } else if (idle < SPINS + YIELDS) {
+                idle++;
+                Thread.yield();
+            } else {
+                parked = true;
+                //check again after announcing, a producer that missed the flag has already queued
+                if (commands.isEmpty() && running) {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+                parked = false;
+            }
+        }
+    }
+
+    private void runCommand(Runnable command) {
+        try {
+            command.run();
+        } catch (RuntimeException e) {
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        }
+    }
+
+    /**
+     * Stops accepting commands, lets the loop run the ones already queued and waits for it.
+     * Commands submitted while the loop is closing may not run.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(thread);
+        if (!inEventLoop()) {
+            try {
+                thread.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
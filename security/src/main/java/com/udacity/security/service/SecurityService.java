@@ -25,17 +25,41 @@
 package com.udacity.security.service;
 
 
+import com.google.common.util.concurrent.Striped;
+import com.udacity.image.service.CameraImageService;
 import com.udacity.image.service.ImageService;
+import com.udacity.image.service.ImageServiceExecutors;
+import com.udacity.metrics.Counter;
+import com.udacity.metrics.LatencyHistogram;
+import com.udacity.metrics.MetricsRegistry;
+import com.udacity.security.audit.AuditEvent;
+import com.udacity.security.audit.AuditLog;
 import com.udacity.security.application.StatusListener;
 import com.udacity.security.data.AlarmStatus;
 import com.udacity.security.data.ArmingStatus;
 import com.udacity.security.data.SecurityRepository;
 import com.udacity.security.data.Sensor;
+import com.udacity.security.data.SensorType;
 
 import java.awt.image.BufferedImage;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Service that receives information about changes to the security system. Responsible for
@@ -43,88 +67,287 @@ import java.util.stream.Collectors;
  * <p>
  * This is the class that should contain most of the business logic for our system, and it is the
  * class you will be writing unit tests for.
+ * <p>
+ * The service may be called from many threads at once, for example one per sensor feed and one
+ * per camera. Changes to a sensor are serialized by a lock striped by sensor id, so different
+ * sensors are updated in parallel. Alarm and arming transitions are decided by one writer at a
+ * time under a single state lock. Locks are always taken in that order, sensor locks first.
+ * The repository has to be thread-safe as well.
+ * <p>
+ * Cat verdicts are kept per camera. The system counts as seeing a cat while at least one camera
+ * does, and a camera that stops seeing a cat only clears the alarm if no other camera still sees
+ * one. Images processed without a camera id belong to {@link #DEFAULT_CAMERA}; several cameras
+ * can be fed through a {@link FrameIngestion}.
+ * <p>
+ * Every input and every alarm transition can be recorded in an {@link AuditLog}, see
+ * {@link #setAuditLog(AuditLog)}.
+ * <p>
+ * Alternatively the service can run in event-loop mode, see
+ * {@link #SecurityService(SecurityRepository, ImageService, Executor, SecurityEventLoop)}.
  */
 public class SecurityService {
 
+    public static final String DEFAULT_CAMERA = "default";
+
+    private static final float CAT_CONFIDENCE_THRESHOLD = 50.0f;
+    private static final int SENSOR_LOCK_STRIPES = 64;
+
     private final ImageService imageService;
     private final SecurityRepository securityRepository;
-    private final Set<StatusListener> statusListeners = new HashSet<>();
+    private final StatusListenerDispatcher statusListeners = new StatusListenerDispatcher();
+    //null in event-loop mode, which takes no locks
+    private final Striped<Lock> sensorLocks;
+    private final Lock stateLock;
+    private final SecurityEventLoop eventLoop;
+    private final Executor imageExecutor;
+    private final Executor eventExecutor;
+    private final AtomicReference<CompletableFuture<Boolean>> latestImage = new AtomicReference<>();
 
-    private boolean catDetected = false;
+    //changed under the state lock, read without it
+    private final Set<String> camerasDetectingCat = ConcurrentHashMap.newKeySet();
+    //null unless metrics are enabled
+    private volatile Instruments instruments;
+    //null unless an audit log was set
+    private volatile AuditLog auditLog;
 
+    /**
+     * Creates a service that analyzes images on the {@link ImageServiceExecutors#shared() shared}
+     * image executor and applies their results on the analyzing thread.
+     */
     public SecurityService(SecurityRepository securityRepository, ImageService imageService) {
+        this(securityRepository, imageService, ImageServiceExecutors.shared(), Runnable::run);
+    }
+
+    /**
+     * @param securityRepository Repository holding the system state
+     * @param imageService       Service used to look for cats in camera images
+     * @param imageExecutor      Executor that runs asynchronous image analysis
+     * @param eventExecutor      Executor that applies the results of asynchronous image analysis
+     *                           to the system state, for example the Swing event dispatch thread
+     */
+    public SecurityService(SecurityRepository securityRepository, ImageService imageService,
+                           Executor imageExecutor, Executor eventExecutor) {
+        this(securityRepository, imageService, imageExecutor, eventExecutor, null);
+    }
+
+    /**
+     * Creates a service in event-loop mode. Every change, whether a sensor toggle, an image
+     * verdict, an arming change or adding and removing sensors, is queued as a command and
+     * applied in order by the loop's single thread. As no other thread changes the system state,
+     * no locks are taken. Methods that change state return before the change was applied, and
+     * status listeners are called on the loop thread.
+     *
+     * @param securityRepository Repository holding the system state
+     * @param imageService       Service used to look for cats in camera images
+     * @param imageExecutor      Executor that runs asynchronous image analysis
+     * @param eventLoop          Loop that applies all changes
+     */
+    public SecurityService(SecurityRepository securityRepository, ImageService imageService,
+                           Executor imageExecutor, SecurityEventLoop eventLoop) {
+        this(securityRepository, imageService, imageExecutor, eventLoop, eventLoop);
+    }
+
+    private SecurityService(SecurityRepository securityRepository, ImageService imageService,
+                            Executor imageExecutor, Executor eventExecutor, SecurityEventLoop eventLoop) {
         this.securityRepository = securityRepository;
         this.imageService = imageService;
+        this.imageExecutor = imageExecutor;
+        this.eventExecutor = eventExecutor;
+        this.eventLoop = eventLoop;
+        this.stateLock = eventLoop == null ? new ReentrantLock() : NoLock.INSTANCE;
+        this.sensorLocks = eventLoop == null ? Striped.lock(SENSOR_LOCK_STRIPES) : null;
     }
 
     /**
-     * Internal method that handles alarm status changes based on whether
-     * the camera currently shows a cat.
+     * In event-loop mode, queues the command unless already on the loop thread.
      *
-     * @param cat True if a cat is detected, otherwise false.
+     * @return True if the command was queued and the caller must not apply it itself
      */
-    private void catDetected(Boolean cat) {
-        catDetected = cat;
-        if (cat && getArmingStatus() == ArmingStatus.ARMED_HOME) {
-            setAlarmStatus(AlarmStatus.ALARM);
-        } else if (!cat && allSensorsInactive()) {
-            setAlarmStatus(AlarmStatus.NO_ALARM);
+    private boolean deferredToEventLoop(Runnable command) {
+        if (eventLoop == null || eventLoop.inEventLoop()) {
+            return false;
         }
+        eventLoop.execute(command);
+        return true;
+    }
+
+    private Lock sensorLock(UUID sensorId) {
+        return eventLoop == null ? sensorLocks.get(sensorId) : NoLock.INSTANCE;
+    }
+
+    /**
+     * Handles alarm status changes based on whether a camera currently shows a cat. Called with
+     * the verdicts of this service's own image analysis, or with verdicts from a detection pool
+     * shared by several services.
+     *
+     * @param cameraId The camera the verdict is for
+     * @param cat      True if a cat is detected, otherwise false.
+     */
+    public void catDetected(String cameraId, boolean cat) {
+        if (deferredToEventLoop(() -> catDetected(cameraId, cat))) {
+            return;
+        }
+        audit(AuditEvent.Type.IMAGE, cameraId, cat ? "cat" : "no_cat");
+        boolean anyCat;
+        stateLock.lock();
+        try {
+            if (cat) {
+                camerasDetectingCat.add(cameraId);
+            } else {
+                camerasDetectingCat.remove(cameraId);
+            }
+            anyCat = !camerasDetectingCat.isEmpty();
+            if (cat && getArmingStatus() == ArmingStatus.ARMED_HOME) {
+                setAlarmStatus(AlarmStatus.ALARM);
+            } else if (!anyCat && allSensorsInactive()) {
+                setAlarmStatus(AlarmStatus.NO_ALARM);
+            }
+        } finally {
+            stateLock.unlock();
+        }
+
+        statusListeners.catDetected(anyCat);
+    }
+
+    /**
+     * Returns true if at least one camera currently shows a cat.
+     */
+    public boolean isCatDetected() {
+        return !camerasDetectingCat.isEmpty();
+    }
+
+    /**
+     * Returns true if the given camera currently shows a cat.
+     */
+    public boolean isCatDetected(String cameraId) {
+        return camerasDetectingCat.contains(cameraId);
+    }
+
+    /**
+     * Returns a read-only view of the ids of the cameras currently showing a cat.
+     */
+    public Set<String> getCamerasDetectingCat() {
+        return Collections.unmodifiableSet(camerasDetectingCat);
+    }
 
-        statusListeners.forEach(sl -> sl.catDetected(cat));
+    /**
+     * Forgets the verdict of a camera that was taken out of service, as if it stopped seeing a cat.
+     */
+    public void removeCamera(String cameraId) {
+        if (camerasDetectingCat.contains(cameraId)) {
+            catDetected(cameraId, false);
+        }
     }
 
     /**
      * Register the StatusListener for alarm system updates from within the SecurityService.
+     * The listener is called on the thread that changed the status.
      *
      * @param statusListener
      */
     public void addStatusListener(StatusListener statusListener) {
-        statusListeners.add(statusListener);
+        statusListeners.addListener(statusListener);
+    }
+
+    /**
+     * Register the StatusListener to be called on the given executor. Notifications the listener
+     * has not received yet are coalesced, see {@link StatusListenerDispatcher}.
+     *
+     * @param statusListener
+     * @param executor       Executor calling the listener, for example SwingUtilities::invokeLater
+     */
+    public void addStatusListener(StatusListener statusListener, Executor executor) {
+        statusListeners.addListener(statusListener, executor);
     }
 
     public void removeStatusListener(StatusListener statusListener) {
-        statusListeners.remove(statusListener);
+        statusListeners.removeListener(statusListener);
     }
 
     /**
-     * Internal method for updating the alarm status when a sensor has been activated.
+     * Returns the dispatcher notifying the status listeners, for its queue statistics.
      */
-    private void handleInactiveSensorActivated() {
-        ArmingStatus armingStatus = getArmingStatus();
-        AlarmStatus alarmStatus = getAlarmStatus();
-        if (armingStatus == ArmingStatus.ARMED_AWAY || armingStatus == ArmingStatus.ARMED_HOME) {
-            switch (alarmStatus) {
-                case NO_ALARM -> setAlarmStatus(AlarmStatus.PENDING_ALARM);
-                case PENDING_ALARM -> setAlarmStatus(AlarmStatus.ALARM);
-            }
+    public StatusListenerDispatcher getStatusListenerDispatcher() {
+        return statusListeners;
+    }
 
+    /**
+     * Records sensor change latencies and alarm transitions in the registry, and publishes the
+     * listener dispatcher's statistics. Metrics of a disabled registry are not recorded at all.
+     */
+    public void registerMetrics(MetricsRegistry registry) {
+        if (!registry.isEnabled()) {
+            return;
         }
+        statusListeners.registerMetrics(registry);
+        if (eventLoop != null) {
+            registry.gauge("security.event_loop.queued", eventLoop::getQueuedCount);
+        }
+        instruments = new Instruments(registry);
+    }
 
+    /**
+     * Records every sensor event, image verdict and arming change the service receives, and
+     * every alarm transition it makes, in the given log. Recording only queues the entry, the
+     * log writes it in the background.
+     *
+     * @param auditLog The log, or null to stop recording
+     */
+    public void setAuditLog(AuditLog auditLog) {
+        this.auditLog = auditLog;
     }
 
+    private void audit(AuditEvent.Type type, String subject, String value) {
+        AuditLog log = auditLog;
+        if (log != null) {
+            log.record(type, subject, value);
+        }
+    }
 
-    private void handleActiveSensorActivated() {
-        AlarmStatus alarmStatus = getAlarmStatus();
-        if (alarmStatus == AlarmStatus.PENDING_ALARM) {
-            setAlarmStatus(AlarmStatus.ALARM);
+    private void auditSensor(UUID sensorId, boolean active) {
+        AuditLog log = auditLog;
+        if (log != null) {
+            log.record(AuditEvent.Type.SENSOR, sensorId.toString(), active ? "active" : "inactive");
         }
     }
 
-    private void resetAllSensors() {
-        Set<Sensor> sensors = getSensors().stream().peek(s -> s.setActive(false)).collect(Collectors.toSet());
-        sensors.forEach(s -> securityRepository.updateSensor(s));
+    /**
+     * Internal method that works out the alarm status after a single sensor changed.
+     *
+     * @param alarmStatus  The alarm status before the change
+     * @param armingStatus The current arming status
+     * @param wasActive    Whether the sensor was active before the change
+     * @param active       Whether the sensor is active after the change
+     * @param allInactive  Whether all sensors are inactive after the change
+     * @return The alarm status after the change
+     */
+    private AlarmStatus nextAlarmStatus(AlarmStatus alarmStatus, ArmingStatus armingStatus,
+                                        boolean wasActive, boolean active, boolean allInactive) {
+        if (!wasActive && active) {
+            if (armingStatus == ArmingStatus.ARMED_AWAY || armingStatus == ArmingStatus.ARMED_HOME) {
+                if (alarmStatus == AlarmStatus.NO_ALARM) {
+                    return AlarmStatus.PENDING_ALARM;
+                }
+                if (alarmStatus == AlarmStatus.PENDING_ALARM) {
+                    return AlarmStatus.ALARM;
+                }
+            }
+        } else if (wasActive && active) {
+            if (alarmStatus == AlarmStatus.PENDING_ALARM) {
+                return AlarmStatus.ALARM;
+            }
+        } else if (allInactive && alarmStatus == AlarmStatus.PENDING_ALARM) {
+            return AlarmStatus.NO_ALARM;
+        }
+        return alarmStatus;
     }
 
-    private boolean allSensorsInactive() {
-        return getSensors().stream().noneMatch(Sensor::getActive);
+    private void resetAllSensors() {
+        securityRepository.deactivateAll();
     }
 
-    private void handleAllSensorsDeactivated() {
-        AlarmStatus alarmStatus = getAlarmStatus();
-        if (alarmStatus == AlarmStatus.PENDING_ALARM) {
-            setAlarmStatus(AlarmStatus.NO_ALARM);
-        }
+    private boolean allSensorsInactive() {
+        return securityRepository.getActiveSensorCount() == 0;
     }
 
     /**
@@ -134,30 +357,113 @@ public class SecurityService {
      * @param active
      */
     public void changeSensorActivationStatus(Sensor sensor, Boolean active) {
-        // deactivate the sensor if it is active
-        if (sensor.getActive() && !active) {
-            sensor.setActive(false);
-        }
-        // activate the sensor if it is inactive
-        else if (!sensor.getActive() && active) {
-            sensor.setActive(true);
-            handleInactiveSensorActivated();
+        if (deferredToEventLoop(() -> changeSensorActivationStatus(sensor, active))) {
+            return;
         }
-        // deactivate the sensor if it is inactive
-        else if (!sensor.getActive() && !active) {
+        auditSensor(sensor.getSensorId(), active);
+        Instruments metrics = instruments;
+        long start = metrics == null ? 0 : System.nanoTime();
+        Lock sensorLock = sensorLock(sensor.getSensorId());
+        sensorLock.lock();
+        try {
+            boolean wasActive = sensor.getActive();
+            sensor.setActive(active);
+            securityRepository.updateSensor(sensor);
+
+            stateLock.lock();
+            try {
+                AlarmStatus alarmStatus = getAlarmStatus();
+                AlarmStatus next = nextAlarmStatus(alarmStatus, getArmingStatus(), wasActive, active, allSensorsInactive());
+                if (next != alarmStatus) {
+                    setAlarmStatus(next);
+                }
+            } finally {
+                stateLock.unlock();
+            }
+        } finally {
+            sensorLock.unlock();
         }
-        // activate the sensor if it is active
-        else {
-            handleActiveSensorActivated();
+        if (metrics != null) {
+            metrics.sensorChange.recordSince(start);
         }
-        sensor.setActive(active);
-        securityRepository.updateSensor(sensor);
+    }
 
-        if (allSensorsInactive()) {
-            handleAllSensorsDeactivated();
+    /**
+     * Change the activation status of the sensor with the given id, for callers that only know
+     * the id, such as events arriving over the network. Ids of unknown sensors are ignored.
+     *
+     * @param sensorId
+     * @param active
+     */
+    public void setActive(UUID sensorId, boolean active) {
+        if (deferredToEventLoop(() -> setActive(sensorId, active))) {
+            return;
         }
+        securityRepository.findById(sensorId).ifPresent(sensor -> changeSensorActivationStatus(sensor, active));
     }
 
+    /**
+     * Apply a burst of sensor events in order. The sensor changes are stored in a single
+     * repository write and listeners are notified once, after the whole batch was applied.
+     * Events for unknown sensors are ignored.
+     *
+     * @param events Sensor events in the order they occurred
+     */
+    public void changeSensorActivationStatus(List<SensorEvent> events) {
+        if (deferredToEventLoop(() -> changeSensorActivationStatus(events))) {
+            return;
+        }
+        if (auditLog != null) {
+            events.forEach(e -> auditSensor(e.sensorId(), e.active()));
+        }
+        Instruments metrics = instruments;
+        long start = metrics == null ? 0 : System.nanoTime();
+        List<UUID> sensorIds = new ArrayList<>(events.size());
+        events.forEach(e -> sensorIds.add(e.sensorId()));
+        Iterable<Lock> locks = eventLoop == null ? sensorLocks.bulkGet(sensorIds) : List.of();
+        locks.forEach(Lock::lock);
+        try {
+            stateLock.lock();
+            try {
+                ArmingStatus armingStatus = getArmingStatus();
+                AlarmStatus initialStatus = getAlarmStatus();
+                AlarmStatus alarmStatus = initialStatus;
+                int activeSensors = securityRepository.getActiveSensorCount();
+                Map<UUID, Sensor> changed = new LinkedHashMap<>();
+                for (SensorEvent event : events) {
+                    Sensor sensor = changed.get(event.sensorId());
+                    if (sensor == null) {
+                        sensor = securityRepository.findById(event.sensorId()).orElse(null);
+                        if (sensor == null) {
+                            continue;
+                        }
+                    }
+                    boolean wasActive = sensor.getActive();
+                    if (wasActive != event.active()) {
+                        activeSensors += event.active() ? 1 : -1;
+                        sensor.setActive(event.active());
+                        changed.put(sensor.getSensorId(), sensor);
+                    }
+                    alarmStatus = nextAlarmStatus(alarmStatus, armingStatus, wasActive, event.active(), activeSensors == 0);
+                }
+
+                if (!changed.isEmpty()) {
+                    securityRepository.updateSensors(changed.values());
+                }
+                if (alarmStatus != initialStatus) {
+                    setAlarmStatus(alarmStatus);
+                }
+            } finally {
+                stateLock.unlock();
+            }
+        } finally {
+            locks.forEach(Lock::unlock);
+        }
+        if (metrics != null) {
+            metrics.sensorBatch.recordSince(start);
+        }
+        statusListeners.sensorStatusChanged();
+    }
 
     /**
      * Send an image to the SecurityService for processing. The securityService will use its provided
@@ -166,7 +472,50 @@ public class SecurityService {
      * @param currentCameraImage
      */
     public void processImage(BufferedImage currentCameraImage) {
-        catDetected(imageService.imageContainsCat(currentCameraImage, 50.0f));
+        processImage(DEFAULT_CAMERA, currentCameraImage);
+    }
+
+    /**
+     * Analyzes an image from the given camera on the calling thread and updates that camera's
+     * verdict and the alarm status accordingly.
+     *
+     * @param cameraId           The camera that took the image
+     * @param currentCameraImage
+     * @return True if the image shows a cat
+     */
+    public boolean processImage(String cameraId, BufferedImage currentCameraImage) {
+        boolean cat = CameraImageService.analyze(imageService, cameraId, currentCameraImage, CAT_CONFIDENCE_THRESHOLD);
+        catDetected(cameraId, cat);
+        return cat;
+    }
+
+    /**
+     * Asynchronous variant of {@link #processImage(BufferedImage)} that never blocks the caller on
+     * image analysis. Submitting a new image cancels the analysis of the previous one if it is still
+     * pending, and only the verdict for the most recently submitted image updates the alarm status.
+     * The verdict is applied on the event executor this service was created with.
+     *
+     * @param currentCameraImage
+     * @return Future completed with the verdict for this image, or cancelled if it was superseded
+     */
+    public CompletableFuture<Boolean> processImageAsync(BufferedImage currentCameraImage) {
+        CompletableFuture<Boolean> analysis;
+        try {
+            analysis = CameraImageService.analyzeAsync(imageService, DEFAULT_CAMERA, currentCameraImage,
+                    CAT_CONFIDENCE_THRESHOLD, imageExecutor);
+        } catch (RejectedExecutionException ree) {
+            return CompletableFuture.failedFuture(ree);
+        }
+        CompletableFuture<Boolean> previous = latestImage.getAndSet(analysis);
+        if (previous != null) {
+            previous.cancel(false);
+        }
+        return analysis.thenApplyAsync(cat -> {
+            if (latestImage.compareAndSet(analysis, null)) {
+                catDetected(DEFAULT_CAMERA, cat);
+            }
+            return cat;
+        }, eventExecutor);
     }
 
     public AlarmStatus getAlarmStatus() {
@@ -179,20 +528,87 @@ public class SecurityService {
      * @param status
      */
     public void setAlarmStatus(AlarmStatus status) {
-        securityRepository.setAlarmStatus(status);
-        statusListeners.forEach(sl -> sl.notify(status));
+        if (deferredToEventLoop(() -> setAlarmStatus(status))) {
+            return;
+        }
+        stateLock.lock();
+        try {
+            if (securityRepository.getAlarmStatus() != status) {
+                Instruments metrics = instruments;
+                if (metrics != null) {
+                    metrics.alarmTransitions.get(status).increment();
+                }
+                audit(AuditEvent.Type.ALARM, "", status.name());
+            }
+            securityRepository.setAlarmStatus(status);
+            statusListeners.notify(status);
+        } finally {
+            stateLock.unlock();
+        }
     }
 
     public Set<Sensor> getSensors() {
         return securityRepository.getSensors();
     }
 
+    public Optional<Sensor> findById(UUID sensorId) {
+        return securityRepository.findById(sensorId);
+    }
+
+    public Set<Sensor> getSensors(SensorType sensorType) {
+        return securityRepository.getSensors(sensorType);
+    }
+
+    public Set<Sensor> getActiveSensors() {
+        return securityRepository.getActiveSensors();
+    }
+
+    public int getActiveSensorCount() {
+        return securityRepository.getActiveSensorCount();
+    }
+
     public void addSensor(Sensor sensor) {
-        securityRepository.addSensor(sensor);
+        if (deferredToEventLoop(() -> addSensor(sensor))) {
+            return;
+        }
+        Lock sensorLock = sensorLock(sensor.getSensorId());
+        sensorLock.lock();
+        try {
+            securityRepository.addSensor(sensor);
+        } finally {
+            sensorLock.unlock();
+        }
     }
 
     public void removeSensor(Sensor sensor) {
-        securityRepository.removeSensor(sensor);
+        if (deferredToEventLoop(() -> removeSensor(sensor))) {
+            return;
+        }
+        Lock sensorLock = sensorLock(sensor.getSensorId());
+        sensorLock.lock();
+        try {
+            securityRepository.removeSensor(sensor);
+        } finally {
+            sensorLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the sensor with the given id, if there is one.
+     *
+     * @param sensorId
+     */
+    public void removeById(UUID sensorId) {
+        if (deferredToEventLoop(() -> removeById(sensorId))) {
+            return;
+        }
+        Lock sensorLock = sensorLock(sensorId);
+        sensorLock.lock();
+        try {
+            securityRepository.removeById(sensorId);
+        } finally {
+            sensorLock.unlock();
+        }
     }
 
     public ArmingStatus getArmingStatus() {
@@ -206,16 +622,89 @@ public class SecurityService {
      * @param armingStatus
      */
     public void setArmingStatus(ArmingStatus armingStatus) {
-        if (catDetected && armingStatus == ArmingStatus.ARMED_HOME) {
-            setAlarmStatus(AlarmStatus.ALARM);
+        if (deferredToEventLoop(() -> setArmingStatus(armingStatus))) {
+            return;
+        }
+        audit(AuditEvent.Type.ARMING, "", armingStatus.name());
+        boolean arming = armingStatus == ArmingStatus.ARMED_HOME || armingStatus == ArmingStatus.ARMED_AWAY;
+        //arming resets every sensor, so it waits for all sensor changes in progress
+        List<Lock> locks = new ArrayList<>();
+        if (arming && eventLoop == null) {
+            for (int i = 0; i < sensorLocks.size(); i++) {
+                locks.add(sensorLocks.getAt(i));
+            }
+        }
+        locks.forEach(Lock::lock);
+        try {
+            stateLock.lock();
+            try {
+                if (isCatDetected() && armingStatus == ArmingStatus.ARMED_HOME) {
+                    setAlarmStatus(AlarmStatus.ALARM);
+                }
+                if (armingStatus == ArmingStatus.DISARMED) {
+                    setAlarmStatus(AlarmStatus.NO_ALARM);
+                }
+                if (arming) {
+                    resetAllSensors();
+                }
+                securityRepository.setArmingStatus(armingStatus);
+            } finally {
+                stateLock.unlock();
+            }
+        } finally {
+            locks.forEach(Lock::unlock);
+        }
+        statusListeners.sensorStatusChanged();
+    }
+
+    /**
+     * The service's instruments, created together so the hot paths read a single field.
+     */
+    private static final class Instruments {
+        final LatencyHistogram sensorChange;
+        final LatencyHistogram sensorBatch;
+        final Map<AlarmStatus, Counter> alarmTransitions = new EnumMap<>(AlarmStatus.class);
+
+        Instruments(MetricsRegistry registry) {
+            sensorChange = registry.histogram("security.sensor_change");
+            sensorBatch = registry.histogram("security.sensor_batch");
+            for (AlarmStatus status : AlarmStatus.values()) {
+                alarmTransitions.put(status, registry.counter("security.alarm_transitions." + status.name()));
+            }
         }
-        if (armingStatus == ArmingStatus.DISARMED) {
-            setAlarmStatus(AlarmStatus.NO_ALARM);
+    }
+
+    /**
+     * Stands in for the locks in event-loop mode, where only the loop thread changes state.
+     */
+    private static final class NoLock implements Lock {
+        static final NoLock INSTANCE = new NoLock();
+
+        @Override
+        public void lock() {
         }
-        if (armingStatus == ArmingStatus.ARMED_HOME || armingStatus == ArmingStatus.ARMED_AWAY) {
-            resetAllSensors();
+
+        @Override
+        public void lockInterruptibly() {
+        }
+
+        @Override
+        public boolean tryLock() {
+            return true;
+        }
+
+        @Override
+        public boolean tryLock(long time, TimeUnit unit) {
+            return true;
+        }
+
+        @Override
+        public void unlock() {
+        }
+
+        @Override
+        public Condition newCondition() {
+            throw new UnsupportedOperationException();
         }
-        securityRepository.setArmingStatus(armingStatus);
-        statusListeners.forEach(StatusListener::sensorStatusChanged);
     }
 }
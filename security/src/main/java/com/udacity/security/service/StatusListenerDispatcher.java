@@ -0,0 +1,218 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.security.service;
+
+import com.udacity.metrics.LatencyHistogram;
+import com.udacity.metrics.MetricsRegistry;
+import com.udacity.security.application.StatusListener;
+import com.udacity.security.data.AlarmStatus;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Delivers status notifications to listeners, each on its own executor, so a slow listener
+ * never holds up the thread that changed the system state or the other listeners.
+ * <p>
+ * Every listener has a small queue holding at most one pending notification of each kind. When
+ * a listener falls behind, it only receives the latest alarm status and cat verdict, and any
+ * number of sensor changes collapse into a single {@link StatusListener#sensorStatusChanged()}.
+ * All of them describe state the listener reads anyway, so nothing is lost by skipping the
+ * intermediate ones.
+ */
+public class StatusListenerDispatcher implements StatusListener {
+
+    private final List<ListenerQueue> queues = new CopyOnWriteArrayList<>();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private volatile LatencyHistogram dispatchLatency;
+
+    /**
+     * Registers a listener that is called on the notifying thread.
+     */
+    public void addListener(StatusListener listener) {
+        addListener(listener, Runnable::run);
+    }
+
+    /**
+     * Registers a listener that is called on the given executor, for example
+     * {@code SwingUtilities::invokeLater} for Swing components. Adding a listener again has no
+     * effect.
+     */
+    public synchronized void addListener(StatusListener listener, Executor executor) {
+        if (find(listener) == null) {
+            queues.add(new ListenerQueue(listener, executor));
+        }
+    }
+
+    public synchronized void removeListener(StatusListener listener) {
+        ListenerQueue queue = find(listener);
+        if (queue != null) {
+            queues.remove(queue);
+        }
+    }
+
+    private ListenerQueue find(StatusListener listener) {
+        for (ListenerQueue queue : queues) {
+            if (queue.listener == listener) {
+                return queue;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void notify(AlarmStatus status) {
+        for (ListenerQueue queue : queues) {
+            if (queue.alarmStatus.getAndSet(status) != null) {
+                coalesced.increment();
+            }
+            queue.schedule();
+        }
+    }
+
+    @Override
+    public void catDetected(boolean catDetected) {
+        for (ListenerQueue queue : queues) {
+            if (queue.catDetected.getAndSet(catDetected) != null) {
+                coalesced.increment();
+            }
+            queue.schedule();
+        }
+    }
+
+    @Override
+    public void sensorStatusChanged() {
+        for (ListenerQueue queue : queues) {
+            if (queue.sensorsChanged.getAndSet(true)) {
+                coalesced.increment();
+            }
+            queue.schedule();
+        }
+    }
+
+    public int getListenerCount() {
+        return queues.size();
+    }
+
+    /**
+     * Returns the number of notifications waiting for the given listener, at most three.
+     */
+    public int getQueueDepth(StatusListener listener) {
+        ListenerQueue queue = find(listener);
+        return queue == null ? 0 : queue.depth();
+    }
+
+    /**
+     * Returns the number of notifications waiting for all listeners.
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (ListenerQueue queue : queues) {
+            depth += queue.depth();
+        }
+        return depth;
+    }
+
+    public long getDeliveredCount() {
+        return delivered.sum();
+    }
+
+    /**
+     * Returns the number of notifications replaced by a newer one before they were delivered.
+     */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    /**
+     * Records how long listeners take to handle their notifications, in the histogram
+     * {@code listener.dispatch}, and publishes the dispatcher's counts in the registry.
+     */
+    public void registerMetrics(MetricsRegistry registry) {
+        if (!registry.isEnabled()) {
+            return;
+        }
+        dispatchLatency = registry.histogram("listener.dispatch");
+        registry.gauge("listener.queue_depth", this::getQueueDepth);
+        registry.gauge("listener.delivered", this::getDeliveredCount);
+        registry.gauge("listener.coalesced", this::getCoalescedCount);
+    }
+
+    private class ListenerQueue implements Runnable {
+        private final StatusListener listener;
+        private final Executor executor;
+        private final AtomicReference<AlarmStatus> alarmStatus = new AtomicReference<>();
+        private final AtomicReference<Boolean> catDetected = new AtomicReference<>();
+        private final AtomicBoolean sensorsChanged = new AtomicBoolean();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        ListenerQueue(StatusListener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+
+        void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+
+        int depth() {
+            return (alarmStatus.get() == null ? 0 : 1)
+                    + (catDetected.get() == null ? 0 : 1)
+                    + (sensorsChanged.get() ? 1 : 0);
+        }
+
+        @Override
+        public void run() {
+            //notifications arriving from here on schedule another run
+            scheduled.set(false);
+            LatencyHistogram latency = dispatchLatency;
+            long start = latency == null ? 0 : System.nanoTime();
+            AlarmStatus status = alarmStatus.getAndSet(null);
+            if (status != null) {
+                delivered.increment();
+                listener.notify(status);
+            }
+            Boolean cat = catDetected.getAndSet(null);
+            if (cat != null) {
+                delivered.increment();
+                listener.catDetected(cat);
+            }
+            if (sensorsChanged.getAndSet(false)) {
+                delivered.increment();
+                listener.sensorStatusChanged();
+            }
+            if (latency != null) {
+                latency.recordSince(start);
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 module com.udacity.security {
     requires com.udacity.image;
+    requires com.udacity.metrics;
     requires miglayout;
     requires java.desktop;
     requires java.prefs;
@@ -0,0 +1,202 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.security.audit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AuditLogTest {
+    private static final Instant START = Instant.parse("2021-06-01T00:00:00Z");
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void rangeQueriesSpanCompressedSegmentsAndSurviveReopening() throws IOException {
+        SteppingClock clock = new SteppingClock(START, Duration.ofMillis(1));
+        try (AuditLog log = new AuditLog(directory, 16 * 1024, 64, clock)) {
+            for (int i = 0; i < 5_000; i++) {
+                log.record(AuditEvent.Type.SENSOR, "sensor-" + i, i % 2 == 0 ? "active" : "inactive");
+            }
+            log.flush();
+            log.awaitCompression();
+            assertTrue(countFiles(".log.gz") > 2);
+
+            List<AuditEvent> events = log.query(START.plusMillis(1_000), START.plusMillis(2_000));
+            assertEquals(1_000, events.size());
+            assertEquals("sensor-1000", events.get(0).subject());
+            assertEquals(START.plusMillis(1_999), events.get(999).timestamp());
+        }
+
+        //a record torn by a crash is cut off
+        try (Stream<Path> files = Files.list(directory)) {
+            Path active = files.filter(f -> f.toString().endsWith(".log")).findFirst().orElseThrow();
+            Files.write(active, new byte[]{0, 0, 0, 42, 1, 2}, StandardOpenOption.APPEND);
+        }
+        try (AuditLog log = new AuditLog(directory, 16 * 1024, 64, clock)) {
+            assertEquals(5_000, log.query(START, START.plusSeconds(60)).size());
+            log.record(AuditEvent.Type.ARMING, "", "ARMED_AWAY");
+            log.flush();
+            List<AuditEvent> events = log.query(START.plusMillis(4_999), START.plusSeconds(60));
+            assertEquals(List.of("sensor-4999", ""), events.stream().map(AuditEvent::subject).toList());
+        }
+    }
+
+    @Test
+    public void timestampsNeverGoBackwards() throws IOException {
+        SteppingClock clock = new SteppingClock(START, Duration.ofSeconds(-1));
+        try (AuditLog log = new AuditLog(directory, AuditLog.DEFAULT_SEGMENT_BYTES, 64, clock)) {
+            log.record(AuditEvent.Type.ALARM, "", "PENDING_ALARM");
+            log.record(AuditEvent.Type.ALARM, "", "ALARM");
+            log.flush();
+            List<AuditEvent> events = log.query(START, START.plusMillis(1));
+            assertEquals(2, events.size());
+            assertEquals(START, events.get(1).timestamp());
+        }
+    }
+
+    @Test
+    public void aTornTailIsCutOffAndAppendedPast() throws IOException {
+        SteppingClock clock = new SteppingClock(START, Duration.ofMillis(1));
+        try (AuditLog log = new AuditLog(directory, AuditLog.DEFAULT_SEGMENT_BYTES, 64, clock)) {
+            for (int i = 0; i < 10; i++) {
+                log.record(AuditEvent.Type.SENSOR, "sensor-" + i, "active");
+            }
+        }
+        Path segment = onlyFile(".log");
+        long intact = Files.size(segment);
+        //a whole header whose payload never made it, after a record with a wrong checksum
+        byte[] corrupt = {0, 0, 0, 13, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+        byte[] torn = {0, 0, 0, 40, 1, 2, 3, 4, 5};
+        Files.write(segment, corrupt, StandardOpenOption.APPEND);
+        Files.write(segment, torn, StandardOpenOption.APPEND);
+
+        try (AuditLog log = new AuditLog(directory, AuditLog.DEFAULT_SEGMENT_BYTES, 64, clock)) {
+            assertEquals(intact, Files.size(segment));
+            assertEquals(10, log.query(START, START.plusSeconds(60)).size());
+            log.record(AuditEvent.Type.ARMING, "", "ARMED_HOME");
+        }
+        try (AuditLog log = new AuditLog(directory, AuditLog.DEFAULT_SEGMENT_BYTES, 64, clock)) {
+            List<AuditEvent> events = log.query(START, START.plusSeconds(60));
+            assertEquals(11, events.size());
+            assertEquals("sensor-9", events.get(9).subject());
+            assertEquals("ARMED_HOME", events.get(10).value());
+        }
+    }
+
+    @Test
+    public void textTooLongIsRefusedWithoutStoppingTheWriter() throws IOException {
+        SteppingClock clock = new SteppingClock(START, Duration.ofMillis(1));
+        try (AuditLog log = new AuditLog(directory, AuditLog.DEFAULT_SEGMENT_BYTES, 64, clock)) {
+            //under 65536 chars, but not in bytes
+            String tooLong = "\u00e9".repeat(40_000);
+            assertThrows(IllegalArgumentException.class, () -> log.record(AuditEvent.Type.IMAGE, tooLong, "cat"));
+            assertThrows(IllegalArgumentException.class, () -> log.record(AuditEvent.Type.IMAGE, "porch", tooLong));
+            log.record(AuditEvent.Type.IMAGE, "porch", "\u00e9".repeat(30_000));
+            log.flush();
+            List<AuditEvent> events = log.query(START, START.plusSeconds(60));
+            assertEquals(1, events.size());
+            assertEquals(30_000, events.get(0).value().length());
+            assertEquals(0, log.getDroppedCount());
+        }
+    }
+
+    private Path onlyFile(String suffix) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> matching = files.filter(f -> f.toString().endsWith(suffix)).toList();
+            assertEquals(1, matching.size());
+            return matching.get(0);
+        }
+    }
+
+    private long countFiles(String suffix) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(f -> f.toString().endsWith(suffix)).count();
+        }
+    }
+
+    /**
+     * Clock that moves by a fixed step every time it is read.
+     */
+    @Test
+    public void eventsAreDroppedOnceTheWriterFailed() throws IOException {
+        SteppingClock clock = new SteppingClock(START, Duration.ofMillis(1));
+        //every event starts a new segment, and the second one cannot be created
+        try (AuditLog log = new AuditLog(directory, 1, 64, clock)) {
+            Files.createDirectory(directory.resolve(String.format("audit-%010d-%020d.log", 1,
+                    AuditEvent.toMicros(START.plusMillis(1)))));
+            log.record(AuditEvent.Type.SENSOR, "door", "active");
+            log.record(AuditEvent.Type.SENSOR, "window", "active");
+            assertThrows(IllegalStateException.class, log::flush);
+
+            log.record(AuditEvent.Type.SENSOR, "door", "inactive");
+            assertEquals(2, log.getRecordedCount());
+            assertEquals(2, log.getDroppedCount());
+            assertEquals(0, log.getQueuedCount());
+            assertEquals(List.of("door"), log.query(START, START.plusSeconds(60)).stream().map(AuditEvent::subject).toList());
+        }
+    }
+
+    private static final class SteppingClock extends Clock {
+        private final Duration step;
+        private Instant next;
+
+        SteppingClock(Instant start, Duration step) {
+            this.next = start;
+            this.step = step;
+        }
+
+        @Override
+        public synchronized Instant instant() {
+            Instant now = next;
+            next = next.plus(step);
+            return now;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
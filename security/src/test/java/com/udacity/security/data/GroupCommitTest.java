@@ -0,0 +1,114 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.security.data;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class GroupCommitTest {
+
+    private static final Duration NEVER = Duration.ofHours(1);
+
+    private final List<Boolean> writes = new CopyOnWriteArrayList<>();
+    private final CountDownLatch firstWrite = new CountDownLatch(1);
+
+    private GroupCommit groupCommit(Durability durability, Duration flushInterval, int maxPendingChanges) {
+        return new GroupCommit("test-writer", durability, flushInterval, maxPendingChanges, force -> {
+            writes.add(force);
+            firstWrite.countDown();
+        });
+    }
+
+    @Test
+    void syncWritesBeforeReturningWithoutForcing() {
+        try (GroupCommit commit = groupCommit(Durability.SYNC, NEVER, 1)) {
+            commit.changed();
+            assertEquals(List.of(false), writes);
+            commit.changed();
+            assertEquals(List.of(false, false), writes);
+        }
+    }
+
+    @Test
+    void fsyncForcesEveryChange() {
+        try (GroupCommit commit = groupCommit(Durability.FSYNC, NEVER, 1)) {
+            commit.changed();
+            commit.changed();
+            assertEquals(List.of(true, true), writes);
+            //nothing left to write
+            commit.flush();
+            assertEquals(2, commit.getCommitCount());
+        }
+    }
+
+    @Test
+    void asyncReturnsRightAwayAndFlushForces() {
+        try (GroupCommit commit = groupCommit(Durability.ASYNC, NEVER, 100)) {
+            commit.changed();
+            commit.changed();
+            assertTrue(writes.isEmpty());
+            commit.flush();
+            assertEquals(List.of(true), writes);
+        }
+    }
+
+    @Test
+    void asyncBackgroundWritesDoNotForce() throws InterruptedException {
+        try (GroupCommit commit = groupCommit(Durability.ASYNC, NEVER, 3)) {
+            commit.changed();
+            commit.changed();
+            assertTrue(writes.isEmpty());
+            commit.changed();
+            assertTrue(firstWrite.await(5, TimeUnit.SECONDS));
+            assertEquals(List.of(false), writes);
+        }
+    }
+
+    @Test
+    void asyncIntervalWritesDoNotForce() throws InterruptedException {
+        try (GroupCommit commit = groupCommit(Durability.ASYNC, Duration.ofMillis(10), 100)) {
+            commit.changed();
+            assertTrue(firstWrite.await(5, TimeUnit.SECONDS));
+            assertFalse(writes.get(0));
+        }
+    }
+
+    @Test
+    void asyncChangesAfterCloseAreWrittenByTheCaller() {
+        GroupCommit commit = groupCommit(Durability.ASYNC, NEVER, 1);
+        commit.close();
+        writes.clear();
+        commit.changed();
+        commit.changed();
+        assertEquals(List.of(false, false), writes);
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.security.data;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MappedSecurityRepositoryImplTest {
+    @TempDir
+    Path directory;
+
+    private static List<String> names(SecurityRepository repository) {
+        List<String> names = new ArrayList<>();
+        repository.getSensors().forEach(sensor -> names.add(sensor.getName()));
+        return names;
+    }
+
+    @Test
+    public void stateIsRestoredOnReopening() {
+        Sensor door = new Sensor("door", SensorType.DOOR);
+        Sensor window = new Sensor("window", SensorType.WINDOW);
+        try (MappedSecurityRepositoryImpl repository = new MappedSecurityRepositoryImpl(directory)) {
+            repository.addSensor(door);
+            repository.addSensor(window);
+            window.setActive(true);
+            repository.updateSensor(window);
+            repository.setArmingStatus(ArmingStatus.ARMED_HOME);
+            repository.setAlarmStatus(AlarmStatus.PENDING_ALARM);
+        }
+
+        try (MappedSecurityRepositoryImpl repository = new MappedSecurityRepositoryImpl(directory)) {
+            assertEquals(List.of("door", "window"), names(repository));
+            Sensor restored = repository.findById(window.getSensorId()).orElseThrow();
+            assertEquals(SensorType.WINDOW, restored.getSensorType());
+            assertTrue(restored.getActive());
+            assertFalse(repository.findById(door.getSensorId()).orElseThrow().getActive());
+            assertEquals(1, repository.getActiveSensorCount());
+            assertEquals(1, repository.getActiveSensorCount(SensorType.WINDOW));
+            assertEquals(ArmingStatus.ARMED_HOME, repository.getArmingStatus());
+            assertEquals(AlarmStatus.PENDING_ALARM, repository.getAlarmStatus());
+        }
+    }
+
+    @Test
+    public void removalMovesTheLastRecordButKeepsDisplayOrder() {
+        try (MappedSecurityRepositoryImpl repository = new MappedSecurityRepositoryImpl(directory)) {
+            Sensor charlie = new Sensor("charlie", SensorType.MOTION);
+            Sensor alpha = new Sensor("alpha", SensorType.DOOR);
+            Sensor delta = new Sensor("delta", SensorType.WINDOW);
+            Sensor bravo = new Sensor("bravo", SensorType.MOTION);
+            for (Sensor sensor : List.of(charlie, alpha, delta, bravo)) {
+                repository.addSensor(sensor);
+            }
+            assertEquals(List.of("alpha", "bravo", "charlie", "delta"), names(repository));
+
+            //bravo, stored last, moves into charlie's slot
+            repository.removeSensor(charlie);
+            assertEquals(List.of("alpha", "bravo", "delta"), names(repository));
+            assertEquals("bravo", repository.findById(bravo.getSensorId()).orElseThrow().getName());
+            assertTrue(repository.findById(charlie.getSensorId()).isEmpty());
+
+            alpha.setName("echo");
+            repository.updateSensor(alpha);
+            assertEquals(List.of("bravo", "delta", "echo"), names(repository));
+        }
+
+        try (MappedSecurityRepositoryImpl repository = new MappedSecurityRepositoryImpl(directory)) {
+            assertEquals(List.of("bravo", "delta", "echo"), names(repository));
+        }
+    }
+
+    @Test
+    public void iteratorSkipsSensorsRemovedWhileIterating() {
+        try (MappedSecurityRepositoryImpl repository = new MappedSecurityRepositoryImpl(directory)) {
+            Sensor alpha = new Sensor("alpha", SensorType.DOOR);
+            Sensor bravo = new Sensor("bravo", SensorType.DOOR);
+            Sensor charlie = new Sensor("charlie", SensorType.DOOR);
+            for (Sensor sensor : List.of(alpha, bravo, charlie)) {
+                repository.addSensor(sensor);
+            }
+            List<String> seen = new ArrayList<>();
+            for (Sensor sensor : repository.getSensors()) {
+                seen.add(sensor.getName());
+                if (sensor.equals(alpha)) {
+                    repository.removeSensor(bravo);
+                }
+            }
+            assertEquals(List.of("alpha", "charlie"), seen);
+        }
+    }
+
+    @Test
+    public void namesAreInternedAcrossReopening() throws IOException {
+        Path nameFile = directory.resolve("sensor-names.dat");
+        try (MappedSecurityRepositoryImpl repository = new MappedSecurityRepositoryImpl(directory)) {
+            repository.addSensor(new Sensor("hall", SensorType.MOTION));
+            repository.addSensor(new Sensor("hall", SensorType.DOOR));
+        }
+        long size = Files.size(nameFile);
+
+        try (MappedSecurityRepositoryImpl repository = new MappedSecurityRepositoryImpl(directory)) {
+            //the name table is only read once a sensor is added, and the name is found in it
+            repository.addSensor(new Sensor("hall", SensorType.WINDOW));
+            assertEquals(size, Files.size(nameFile));
+            repository.addSensor(new Sensor("porch", SensorType.WINDOW));
+            assertTrue(Files.size(nameFile) > size);
+            assertEquals(List.of("hall", "hall", "hall", "porch"), names(repository));
+        }
+    }
+
+    @Test
+    public void storeGrowsBeyondItsInitialCapacity() {
+        try (MappedSecurityRepositoryImpl repository = new MappedSecurityRepositoryImpl(directory)) {
+            for (int i = 0; i < 200; i++) {
+                Sensor sensor = new Sensor(String.format("sensor%03d", i), SensorType.MOTION);
+                sensor.setActive(i % 2 == 0);
+                repository.addSensor(sensor);
+            }
+        }
+
+        try (MappedSecurityRepositoryImpl repository = new MappedSecurityRepositoryImpl(directory)) {
+            assertEquals(200, repository.getSensors().size());
+            assertEquals(100, repository.getActiveSensorCount());
+            assertEquals("sensor199", names(repository).get(199));
+        }
+    }
+
+    @Test
+    public void deactivateAllStartsANewGenerationThatSurvivesReopening() {
+        Sensor door = new Sensor("door", SensorType.DOOR);
+        Sensor window = new Sensor("window", SensorType.WINDOW);
+        try (MappedSecurityRepositoryImpl repository = new MappedSecurityRepositoryImpl(directory)) {
+            door.setActive(true);
+            repository.addSensor(door);
+            repository.deactivateAll();
+            assertEquals(0, repository.getActiveSensorCount());
+            assertFalse(repository.findById(door.getSensorId()).orElseThrow().getActive());
+
+            window.setActive(true);
+            repository.addSensor(window);
+        }
+
+        try (MappedSecurityRepositoryImpl repository = new MappedSecurityRepositoryImpl(directory)) {
+            assertFalse(repository.findById(door.getSensorId()).orElseThrow().getActive());
+            assertTrue(repository.findById(window.getSensorId()).orElseThrow().getActive());
+            assertEquals(1, repository.getActiveSensorCount());
+            assertTrue(repository.setActive(door.getSensorId(), true).orElseThrow().getActive());
+            assertEquals(1, repository.getActiveSensorCount(SensorType.DOOR));
+        }
+    }
+
+    @Test
+    public void sensorsStayInactiveWhenTheStoredGenerationWrapsAround() {
+        Sensor door = new Sensor("door", SensorType.DOOR);
+        door.setActive(true);
+        try (MappedSecurityRepositoryImpl repository = new MappedSecurityRepositoryImpl(directory)) {
+            repository.addSensor(door);
+            //records keep 16 bits of the generation, so this brings the door's generation round again
+            for (int i = 0; i < 1 << 16; i++) {
+                repository.deactivateAll();
+            }
+            assertFalse(repository.findById(door.getSensorId()).orElseThrow().getActive());
+            assertEquals(0, repository.getActiveSensorCount());
+        }
+
+        try (MappedSecurityRepositoryImpl repository = new MappedSecurityRepositoryImpl(directory)) {
+            assertFalse(repository.findById(door.getSensorId()).orElseThrow().getActive());
+            assertEquals(0, repository.getActiveSensorCount());
+            assertTrue(repository.setActive(door.getSensorId(), true).orElseThrow().getActive());
+            assertEquals(1, repository.getActiveSensorCount());
+        }
+    }
+
+    @Test
+    public void corruptHeaderIsRejected() throws IOException {
+        try (MappedSecurityRepositoryImpl repository = new MappedSecurityRepositoryImpl(directory)) {
+            repository.addSensor(new Sensor("door", SensorType.DOOR));
+        }
+        try (FileChannel channel = FileChannel.open(directory.resolve("sensors.dat"), StandardOpenOption.WRITE)) {
+            //record count far beyond the records in the file
+            channel.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, 1_000_000), 8);
+        }
+        assertThrows(IllegalStateException.class, () -> new MappedSecurityRepositoryImpl(directory));
+
+        try (FileChannel channel = FileChannel.open(directory.resolve("sensors.dat"), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, 0xBAD), 0);
+        }
+        assertThrows(IllegalStateException.class, () -> new MappedSecurityRepositoryImpl(directory));
+    }
+
+    @Test
+    public void truncatedHeaderIsRejected() throws IOException {
+        Files.write(directory.resolve("sensors.dat"), new byte[]{0x43, 0x41, 0x54, 0x53, 0, 0});
+        assertThrows(IllegalStateException.class, () -> new MappedSecurityRepositoryImpl(directory));
+    }
+}
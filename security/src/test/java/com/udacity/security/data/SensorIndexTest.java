@@ -0,0 +1,95 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.security.data;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SensorIndexTest {
+
+    @Test
+    public void randomAddsAndRemovesMatchAHashMap() {
+        SensorIndex index = new SensorIndex();
+        Map<UUID, Sensor> expected = new HashMap<>();
+        List<Sensor> sensors = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 500; i++) {
+            sensors.add(new Sensor("sensor " + i, SensorType.values()[i % 3]));
+        }
+        for (int step = 0; step < 20_000; step++) {
+            Sensor sensor = sensors.get(random.nextInt(sensors.size()));
+            if (random.nextBoolean()) {
+                sensor.setActive(random.nextBoolean());
+                assertSame(expected.put(sensor.getSensorId(), sensor), index.put(sensor));
+            } else {
+                assertSame(expected.remove(sensor.getSensorId()), index.remove(sensor.getSensorId()));
+            }
+        }
+        assertEquals(expected.size(), index.size());
+        sensors.forEach(sensor -> assertSame(expected.get(sensor.getSensorId()), index.get(sensor.getSensorId())));
+        assertEquals(new ArrayList<>(new TreeSet<>(expected.values())), new ArrayList<>(index.asSet()));
+        for (SensorType type : SensorType.values()) {
+            assertEquals(expected.values().stream().filter(s -> s.getSensorType() == type).collect(Collectors.toSet()),
+                    new HashSet<>(index.ofType(type)));
+        }
+        assertEquals(expected.values().stream().filter(Sensor::getActive).collect(Collectors.toSet()),
+                new HashSet<>(index.active()));
+        assertEquals(expected.values().stream().filter(Sensor::getActive).count(), index.active().size());
+        assertEquals(index.active().size(), index.activeCount());
+        for (SensorType type : SensorType.values()) {
+            assertEquals(expected.values().stream().filter(s -> s.getActive() && s.getSensorType() == type).count(),
+                    index.activeCount(type));
+        }
+        index.deactivateAll();
+        assertEquals(0, index.activeCount());
+        assertEquals(0, index.activeCount(SensorType.DOOR));
+    }
+
+    @Test
+    public void renamingASensorUpdatesTheDisplayOrder() {
+        SensorIndex index = new SensorIndex();
+        Sensor a = new Sensor("a", SensorType.DOOR);
+        Sensor b = new Sensor("b", SensorType.DOOR);
+        index.put(b);
+        index.put(a);
+        assertEquals(List.of(a, b), new ArrayList<>(index.asSet()));
+
+        a.setName("c");
+        index.put(a);
+        assertEquals(List.of(b, a), new ArrayList<>(index.asSet()));
+        assertThrows(UnsupportedOperationException.class, () -> index.asSet().iterator().remove());
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.security.data;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WriteAheadLogSecurityRepositoryImplTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    public void stateIsRestoredByReplayingTheLog() {
+        Sensor door = new Sensor("door", SensorType.DOOR);
+        Sensor window = new Sensor("window", SensorType.WINDOW);
+        try (WriteAheadLogSecurityRepositoryImpl repository = new WriteAheadLogSecurityRepositoryImpl(directory)) {
+            repository.addSensor(door);
+            repository.addSensor(window);
+            door.setActive(true);
+            repository.updateSensor(door);
+            repository.removeSensor(window);
+            repository.setArmingStatus(ArmingStatus.ARMED_AWAY);
+            repository.setAlarmStatus(AlarmStatus.PENDING_ALARM);
+        }
+
+        try (WriteAheadLogSecurityRepositoryImpl repository = new WriteAheadLogSecurityRepositoryImpl(directory)) {
+            assertEquals(1, repository.getSensors().size());
+            Sensor restored = repository.getSensors().iterator().next();
+            assertEquals(door, restored);
+            assertEquals("door", restored.getName());
+            assertTrue(restored.getActive());
+            assertEquals(ArmingStatus.ARMED_AWAY, repository.getArmingStatus());
+            assertEquals(AlarmStatus.PENDING_ALARM, repository.getAlarmStatus());
+        }
+    }
+
+    @Test
+    public void batchUpdateIsReplayed() {
+        Sensor door = new Sensor("door", SensorType.DOOR);
+        Sensor window = new Sensor("window", SensorType.WINDOW);
+        try (WriteAheadLogSecurityRepositoryImpl repository = new WriteAheadLogSecurityRepositoryImpl(directory)) {
+            repository.addSensor(door);
+            repository.addSensor(window);
+            door.setActive(true);
+            window.setActive(true);
+            repository.updateSensors(List.of(door, window));
+            assertEquals(2, repository.getActiveSensorCount());
+        }
+
+        try (WriteAheadLogSecurityRepositoryImpl repository = new WriteAheadLogSecurityRepositoryImpl(directory)) {
+            assertTrue(repository.getSensors().stream().allMatch(Sensor::getActive));
+            assertEquals(2, repository.getActiveSensorCount());
+            assertEquals(1, repository.getActiveSensorCount(SensorType.WINDOW));
+        }
+    }
+
+    @Test
+    public void deactivateAllIsOneRecordAndIsReplayed() throws IOException {
+        Path log = directory.resolve("security.wal");
+        try (WriteAheadLogSecurityRepositoryImpl repository = new WriteAheadLogSecurityRepositoryImpl(directory)) {
+            for (int i = 0; i < 10; i++) {
+                Sensor sensor = new Sensor("sensor" + i, SensorType.MOTION);
+                sensor.setActive(true);
+                repository.addSensor(sensor);
+            }
+            long size = Files.size(log);
+            repository.deactivateAll();
+            assertEquals(size + 9, Files.size(log));
+            assertEquals(0, repository.getActiveSensorCount());
+            assertTrue(repository.getActiveSensors().isEmpty());
+        }
+
+        try (WriteAheadLogSecurityRepositoryImpl repository = new WriteAheadLogSecurityRepositoryImpl(directory)) {
+            assertEquals(10, repository.getSensors().size());
+            assertTrue(repository.getSensors().stream().noneMatch(Sensor::getActive));
+            assertEquals(0, repository.getActiveSensorCount(SensorType.MOTION));
+        }
+    }
+
+    @Test
+    public void tornTailIsDiscarded() throws IOException {
+        try (WriteAheadLogSecurityRepositoryImpl repository = new WriteAheadLogSecurityRepositoryImpl(directory)) {
+            repository.addSensor(new Sensor("door", SensorType.DOOR));
+        }
+        Files.write(directory.resolve("security.wal"), new byte[]{0, 0, 0, 42, 1, 2}, StandardOpenOption.APPEND);
+
+        try (WriteAheadLogSecurityRepositoryImpl repository = new WriteAheadLogSecurityRepositoryImpl(directory)) {
+            assertEquals(1, repository.getSensors().size());
+            repository.addSensor(new Sensor("window", SensorType.WINDOW));
+        }
+        try (WriteAheadLogSecurityRepositoryImpl repository = new WriteAheadLogSecurityRepositoryImpl(directory)) {
+            assertEquals(2, repository.getSensors().size());
+        }
+    }
+
+    @Test
+    public void oversizedBatchChangesNothingAndLeavesTheLogReplayable() {
+        Sensor door = new Sensor("door", SensorType.DOOR);
+        Sensor huge = new Sensor("x".repeat(17 << 20), SensorType.WINDOW);
+        try (WriteAheadLogSecurityRepositoryImpl repository = new WriteAheadLogSecurityRepositoryImpl(directory,
+                WriteAheadLogSecurityRepositoryImpl.DEFAULT_COMPACTION_THRESHOLD, Durability.ASYNC, Duration.ofHours(1), 100)) {
+            repository.addSensor(door);
+            huge.setActive(true);
+            assertThrows(IllegalArgumentException.class, () -> repository.updateSensors(List.of(huge)));
+            assertEquals(1, repository.getSensors().size());
+            assertEquals(0, repository.getActiveSensorCount());
+
+            door.setActive(true);
+            repository.updateSensor(door);
+        }
+
+        try (WriteAheadLogSecurityRepositoryImpl repository = new WriteAheadLogSecurityRepositoryImpl(directory)) {
+            assertEquals(1, repository.getSensors().size());
+            assertTrue(repository.getSensors().iterator().next().getActive());
+        }
+    }
+
+    @Test
+    public void compactionKeepsStateAndEmptiesTheLog() throws IOException {
+        Sensor motion = new Sensor("motion", SensorType.MOTION);
+        try (WriteAheadLogSecurityRepositoryImpl repository = new WriteAheadLogSecurityRepositoryImpl(directory, 4)) {
+            repository.addSensor(motion);
+            for (int i = 0; i < 3; i++) {
+                motion.setActive(!motion.getActive());
+                repository.updateSensor(motion);
+            }
+            assertEquals(0, Files.size(directory.resolve("security.wal")));
+            repository.setArmingStatus(ArmingStatus.ARMED_HOME);
+        }
+
+        try (WriteAheadLogSecurityRepositoryImpl repository = new WriteAheadLogSecurityRepositoryImpl(directory)) {
+            assertEquals(1, repository.getSensors().size());
+            assertTrue(repository.getSensors().iterator().next().getActive());
+            assertEquals(ArmingStatus.ARMED_HOME, repository.getArmingStatus());
+        }
+    }
+
+    @Test
+    public void asyncChangesAreAppendedTogetherOnFlush() throws IOException {
+        Sensor door = new Sensor("door", SensorType.DOOR);
+        try (WriteAheadLogSecurityRepositoryImpl repository = new WriteAheadLogSecurityRepositoryImpl(directory,
+                WriteAheadLogSecurityRepositoryImpl.DEFAULT_COMPACTION_THRESHOLD, Durability.ASYNC, Duration.ofHours(1), 100)) {
+            repository.addSensor(door);
+            door.setActive(true);
+            repository.updateSensor(door);
+            repository.setArmingStatus(ArmingStatus.ARMED_HOME);
+            assertEquals(0, Files.size(directory.resolve("security.wal")));
+
+            repository.flush();
+            assertTrue(Files.size(directory.resolve("security.wal")) > 0);
+            repository.setAlarmStatus(AlarmStatus.PENDING_ALARM);
+        }
+
+        try (WriteAheadLogSecurityRepositoryImpl repository = new WriteAheadLogSecurityRepositoryImpl(directory)) {
+            assertTrue(repository.getSensors().iterator().next().getActive());
+            assertEquals(ArmingStatus.ARMED_HOME, repository.getArmingStatus());
+            assertEquals(AlarmStatus.PENDING_ALARM, repository.getAlarmStatus());
+        }
+    }
+
+    @Test
+    public void failedCompactionKeepsTheBufferedChanges() throws IOException {
+        Sensor door = new Sensor("door", SensorType.DOOR);
+        Sensor window = new Sensor("window", SensorType.WINDOW);
+        try (WriteAheadLogSecurityRepositoryImpl repository = new WriteAheadLogSecurityRepositoryImpl(directory,
+                WriteAheadLogSecurityRepositoryImpl.DEFAULT_COMPACTION_THRESHOLD, Durability.ASYNC, Duration.ofHours(1), 100)) {
+            repository.addSensor(door);
+            repository.setArmingStatus(ArmingStatus.ARMED_HOME);
+            //a directory where the snapshot is written makes taking it fail
+            Path blocker = Files.createDirectory(directory.resolve("security.snapshot.tmp"));
+            Files.createFile(blocker.resolve("file"));
+            assertThrows(UncheckedIOException.class, repository::compact);
+            assertFalse(Files.exists(directory.resolve("security.snapshot")));
+            Files.delete(blocker.resolve("file"));
+            Files.delete(blocker);
+
+            repository.addSensor(window);
+        }
+
+        try (WriteAheadLogSecurityRepositoryImpl repository = new WriteAheadLogSecurityRepositoryImpl(directory)) {
+            assertEquals(2, repository.getSensors().size());
+            assertEquals(ArmingStatus.ARMED_HOME, repository.getArmingStatus());
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.security.engine;
+
+import com.udacity.security.data.ArmingStatus;
+import com.udacity.security.data.SecurityRepository;
+import com.udacity.security.data.Sensor;
+import com.udacity.security.data.SensorType;
+import com.udacity.security.service.SecurityService;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.image.BufferedImage;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+public class SiteEngineTest {
+    private static final Duration IDLE_TIMEOUT = Duration.ofMinutes(1);
+
+    @TempDir
+    Path directory;
+
+    //only moves when a test says so, the sweeper never finds an idle site on its own
+    private final AtomicLong clock = new AtomicLong();
+
+    private void idle() {
+        clock.addAndGet(IDLE_TIMEOUT.toNanos());
+    }
+
+    @Test
+    public void idleSitesAreEvictedAndRestoredFromTheirRepository() {
+        try (SiteEngine engine = new SiteEngine(4, SiteEngine.writeAheadLogRepositories(directory),
+                (image, threshold) -> false, Runnable::run, IDLE_TIMEOUT, clock::get)) {
+            for (int i = 0; i < 20; i++) {
+                engine.execute("site-" + i, service -> {
+                    service.addSensor(new Sensor("door", SensorType.DOOR));
+                    service.setArmingStatus(ArmingStatus.ARMED_AWAY);
+                });
+            }
+            for (int i = 0; i < 20; i++) {
+                engine.call("site-" + i, SecurityService::getArmingStatus).join();
+            }
+            assertEquals(0, engine.evictIdleSites().join());
+            idle();
+            assertEquals(20, engine.evictIdleSites().join());
+            assertEquals(0, engine.getActiveSiteCount());
+            assertEquals(engine.getActivationCount(), engine.getEvictionCount());
+
+            assertEquals(ArmingStatus.ARMED_AWAY, engine.call("site-3", SecurityService::getArmingStatus).join());
+            assertEquals(1, engine.call("site-3", service -> service.getSensors().size()).join());
+            assertThrows(IllegalArgumentException.class, () -> engine.execute("../site", service -> {
+            }));
+        }
+    }
+
+    @Test
+    public void sitesWithACatInViewAreKept() {
+        BufferedImage cat = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+        try (SiteEngine engine = new SiteEngine(2, SiteEngine.writeAheadLogRepositories(directory),
+                (image, threshold) -> image == cat, Runnable::run, IDLE_TIMEOUT, clock::get)) {
+            assertTrue(engine.processImage("garden", "porch", cat, 50f).join());
+            assertFalse(engine.processImage("house", "porch", new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB), 50f).join());
+            idle();
+            assertEquals(1, engine.evictIdleSites().join());
+            assertEquals(1, engine.getActiveSiteCount());
+            assertTrue(engine.call("garden", service -> service.isCatDetected("porch")).join());
+        }
+    }
+
+    @Test
+    public void aRepositoryFailingToCloseDoesNotStopTheOthers() throws Exception {
+        List<AutoCloseable> opened = new CopyOnWriteArrayList<>();
+        SiteEngine.RepositoryFactory repositories = siteId -> {
+            SecurityRepository repository = mock(SecurityRepository.class, withSettings().extraInterfaces(AutoCloseable.class));
+            try {
+                doThrow(new IllegalStateException("disk gone")).when((AutoCloseable) repository).close();
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+            opened.add((AutoCloseable) repository);
+            return repository;
+        };
+        SiteEngine engine = new SiteEngine(1, repositories, (image, threshold) -> false, Runnable::run,
+                IDLE_TIMEOUT, clock::get);
+        try {
+            for (String siteId : List.of("a", "b", "c")) {
+                engine.call(siteId, SecurityService::getArmingStatus).join();
+            }
+            idle();
+            assertEquals(3, engine.evictIdleSites().get(5, TimeUnit.SECONDS));
+            for (AutoCloseable repository : opened) {
+                verify(repository).close();
+            }
+
+            opened.clear();
+            for (String siteId : List.of("d", "e")) {
+                engine.call(siteId, SecurityService::getArmingStatus).join();
+            }
+        } finally {
+            engine.close();
+        }
+        assertEquals(2, opened.size());
+        for (AutoCloseable repository : opened) {
+            verify(repository).close();
+        }
+        assertEquals(0, engine.getActiveSiteCount());
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.security.server;
+
+import com.udacity.security.data.AlarmStatus;
+import com.udacity.security.data.ArmingStatus;
+import com.udacity.security.data.SensorType;
+import com.udacity.security.engine.SiteEngine;
+import com.udacity.security.service.SecurityService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ProtocolServerTest {
+    @TempDir
+    Path directory;
+
+    private SiteEngine engine;
+    private ProtocolServer server;
+
+    @BeforeEach
+    void init() throws IOException {
+        engine = new SiteEngine(2, SiteEngine.writeAheadLogRepositories(directory),
+                (image, threshold) -> false, Runnable::run, SiteEngine.DEFAULT_IDLE_TIMEOUT);
+        server = new ProtocolServer(engine, Runnable::run, 50f, new InetSocketAddress("localhost", 0));
+    }
+
+    @AfterEach
+    void close() {
+        server.close();
+        engine.close();
+    }
+
+    @Test
+    public void sensorEventsAreAppliedAndPushedToSubscribers() throws IOException {
+        UUID door = UUID.randomUUID();
+        ByteBuffer out = ByteBuffer.allocate(1024);
+        CatpointProtocol.putSite(out, "home");
+        CatpointProtocol.putSubscribe(out);
+        CatpointProtocol.putAddSensor(out, door, SensorType.DOOR, "Front door");
+        CatpointProtocol.putArm(out, ArmingStatus.ARMED_AWAY);
+        CatpointProtocol.putSensor(out, door, true);
+        CatpointProtocol.putSync(out, 7);
+
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            socket.setSoTimeout((int) Duration.ofSeconds(5).toMillis());
+            socket.getOutputStream().write(out.array(), 0, out.position());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            boolean synced = false;
+            AlarmStatus alarmStatus = null;
+            //a status may be sent before or after the reply to the sync
+            while (!synced || alarmStatus != AlarmStatus.PENDING_ALARM) {
+                byte[] frame = new byte[in.readInt()];
+                in.readFully(frame);
+                ByteBuffer payload = ByteBuffer.wrap(frame, 1, frame.length - 1);
+                if (frame[0] == CatpointProtocol.SYNCED) {
+                    assertEquals(7, payload.getInt());
+                    synced = true;
+                } else {
+                    assertEquals(CatpointProtocol.STATUS, frame[0]);
+                    alarmStatus = CatpointProtocol.getEnum(payload, AlarmStatus.values());
+                }
+            }
+        } catch (CatpointProtocol.ProtocolException e) {
+            fail(e);
+        }
+        assertEquals(1, server.getSensorEventCount());
+        assertEquals(ArmingStatus.ARMED_AWAY, engine.call("home", SecurityService::getArmingStatus).join());
+        assertTrue(engine.call("home", service -> service.findById(door).orElseThrow().getActive()).join());
+    }
+
+    @Test
+    public void framesBeforeTheSiteCloseTheConnection() throws IOException {
+        ByteBuffer out = CatpointProtocol.putSubscribe(ByteBuffer.allocate(16));
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            socket.setSoTimeout((int) Duration.ofSeconds(5).toMillis());
+            socket.getOutputStream().write(out.array(), 0, out.position());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] error = new byte[in.readInt()];
+            in.readFully(error);
+            assertEquals(CatpointProtocol.ERROR, error[0]);
+            assertThrows(EOFException.class, in::readInt);
+        }
+        assertEquals(1, server.getProtocolErrorCount());
+    }
+
+    @Test
+    public void aFailingConnectionDoesNotStopTheOthers() throws IOException, CatpointProtocol.ProtocolException {
+        try (ProtocolServer broken = new ProtocolServer(engine, command -> {
+            throw new IllegalStateException("broken executor");
+        }, 50f, new InetSocketAddress("localhost", 0))) {
+            ByteBuffer image = ByteBuffer.allocate(64);
+            CatpointProtocol.putSite(image, "home");
+            CatpointProtocol.putImage(image, "porch", new byte[8]);
+            try (Socket socket = new Socket("localhost", broken.getPort())) {
+                socket.setSoTimeout((int) Duration.ofSeconds(5).toMillis());
+                socket.getOutputStream().write(image.array(), 0, image.position());
+                assertEquals(-1, socket.getInputStream().read());
+            }
+
+            ByteBuffer sync = ByteBuffer.allocate(64);
+            CatpointProtocol.putSite(sync, "home");
+            CatpointProtocol.putSync(sync, 3);
+            try (Socket socket = new Socket("localhost", broken.getPort())) {
+                socket.setSoTimeout((int) Duration.ofSeconds(5).toMillis());
+                socket.getOutputStream().write(sync.array(), 0, sync.position());
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                byte[] frame = new byte[in.readInt()];
+                in.readFully(frame);
+                assertEquals(CatpointProtocol.SYNCED, frame[0]);
+                assertEquals(3, ByteBuffer.wrap(frame, 1, frame.length - 1).getInt());
+            }
+            assertEquals(2, broken.getAcceptedCount());
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Xi Chen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.udacity.security.service;
+
+import com.udacity.image.service.ImageService;
+import com.udacity.security.data.SecurityRepository;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+public class FrameIngestionTest {
+
+    @Test
+    public void camerasTakeTurnsAndFullQueuesDropFramesByPolicy() throws InterruptedException {
+        Map<String, BufferedImage> frames = new HashMap<>();
+        for (String name : List.of("a0", "a1", "a2", "a3", "b0", "b1", "b2")) {
+            frames.put(name, new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB));
+        }
+        List<BufferedImage> analyzed = new CopyOnWriteArrayList<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch gate = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(4);
+        ImageService imageService = (image, threshold) -> {
+            started.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            analyzed.add(image);
+            done.countDown();
+            return image == frames.get("b2");
+        };
+        SecurityService securityService = new SecurityService(mock(SecurityRepository.class), imageService);
+
+        try (FrameIngestion ingestion = new FrameIngestion(securityService, 1)) {
+            FrameIngestion.Camera a = ingestion.register("a", FrameIngestion.OverflowPolicy.DROP_OLDEST, 2);
+            FrameIngestion.Camera b = ingestion.register("b", FrameIngestion.OverflowPolicy.LATEST_ONLY);
+            a.submit(frames.get("a0"));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            for (String name : List.of("a1", "a2", "a3")) {
+                a.submit(frames.get(name));
+            }
+            for (String name : List.of("b0", "b1", "b2")) {
+                b.submit(frames.get(name));
+            }
+            gate.countDown();
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+
+            //b does not wait behind everything a queued
+            assertEquals(List.of(frames.get("a0"), frames.get("b2"), frames.get("a2"), frames.get("a3")), analyzed);
+            assertEquals(1, a.getDroppedCount());
+            assertEquals(2, b.getDroppedCount());
+            assertEquals(4, a.getReceivedCount());
+
+            assertTrue(b.isCatDetected());
+            assertFalse(a.isCatDetected());
+            ingestion.unregister("b");
+            assertFalse(securityService.isCatDetected());
+            assertFalse(b.submit(frames.get("b0")));
+        }
+    }
+
+    @Test
+    public void verdictOfAFrameInFlightDoesNotOutliveUnregister() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch gate = new CountDownLatch(1);
+        ImageService imageService = (image, threshold) -> {
+            started.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        };
+        SecurityService securityService = new SecurityService(mock(SecurityRepository.class), imageService);
+
+        try (FrameIngestion ingestion = new FrameIngestion(securityService, 1)) {
+            FrameIngestion.Camera camera = ingestion.register("a", FrameIngestion.OverflowPolicy.LATEST_ONLY);
+            camera.submit(new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            Thread unregister = new Thread(() -> ingestion.unregister("a"));
+            unregister.start();
+            //let unregister get as far as it can while the cat verdict is still on its way
+            while (unregister.getState() != Thread.State.WAITING && unregister.getState() != Thread.State.TERMINATED) {
+                Thread.onSpinWait();
+            }
+            gate.countDown();
+            unregister.join(5_000);
+
+            assertFalse(unregister.isAlive());
+            assertFalse(securityService.isCatDetected("a"));
+            assertFalse(securityService.isCatDetected());
+        }
+    }
+}
@@ -25,10 +25,15 @@
 package com.udacity.security.service;
 
 import com.udacity.image.service.ImageService;
+import com.udacity.metrics.MetricsRegistry;
+import com.udacity.security.application.StatusListener;
+import com.udacity.security.audit.AuditEvent;
+import com.udacity.security.audit.AuditLog;
 import com.udacity.security.data.*;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.EnumSource;
 import org.junit.jupiter.params.provider.ValueSource;
@@ -36,10 +41,24 @@ import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import java.awt.image.BufferedImage;
-import java.util.HashSet;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
@@ -90,6 +109,16 @@ public class SecurityServiceTest {
         verify(securityRepository).setAlarmStatus(AlarmStatus.NO_ALARM);
     }
 
+    @Test
+    public void pendingAlarmKeptWhenSensorDeactivatedAndOtherSensorsActive() {
+        lenient().when(securityRepository.getAlarmStatus()).thenReturn(AlarmStatus.PENDING_ALARM);
+        when(securityRepository.getActiveSensorCount()).thenReturn(1);
+        Sensor sensor = new Sensor("sensor", SensorType.DOOR);
+        sensor.setActive(true);
+        securityService.changeSensorActivationStatus(sensor, false);
+        verify(securityRepository, never()).setAlarmStatus(any(AlarmStatus.class));
+        verify(securityRepository, never()).getSensors();
+    }
 
     // 4. If alarm is active, change in sensor state should not affect the alarm state.
     @ParameterizedTest
@@ -144,6 +173,25 @@ public class SecurityServiceTest {
         verify(securityRepository).setAlarmStatus(AlarmStatus.NO_ALARM);
     }
 
+    @Test
+    public void alarmOnlyClearsOnceNoCameraShowsACat() {
+        BufferedImage cat = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+        BufferedImage empty = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+        when(securityRepository.getArmingStatus()).thenReturn(ArmingStatus.ARMED_HOME);
+        when(imageService.imageContainsCat(eq(cat), anyFloat())).thenReturn(true);
+        when(imageService.imageContainsCat(eq(empty), anyFloat())).thenReturn(false);
+
+        securityService.processImage("garden", cat);
+        securityService.processImage("porch", cat);
+        securityService.processImage("garden", empty);
+        assertEquals(Set.of("porch"), securityService.getCamerasDetectingCat());
+        verify(securityRepository, never()).setAlarmStatus(AlarmStatus.NO_ALARM);
+
+        securityService.processImage("porch", empty);
+        assertFalse(securityService.isCatDetected());
+        verify(securityRepository).setAlarmStatus(AlarmStatus.NO_ALARM);
+    }
+
     // 9. If the system is disarmed, set the status to no alarm.
     @Test
     public void noAlarmWhenSystemDisarmed() {
@@ -155,16 +203,9 @@ public class SecurityServiceTest {
     @ParameterizedTest
     @EnumSource(value = ArmingStatus.class, names = {"ARMED_HOME", "ARMED_AWAY"})
     public void resetSensorsWhenSystemArmed(ArmingStatus armingStatus) {
-        Set<Sensor> sensors = new HashSet<>();
-        Sensor sensor1 = new Sensor("sensor1", SensorType.DOOR);
-        sensor1.setActive(true);
-        Sensor sensor2 = new Sensor("sensor1", SensorType.DOOR);
-        sensor2.setActive(false);
-        sensors.add(sensor1);
-        sensors.add(sensor2);
-        when(securityRepository.getSensors()).thenReturn(sensors);
         securityService.setArmingStatus(armingStatus);
-        securityService.getSensors().forEach(sensor -> assertFalse(sensor.getActive()));
+        verify(securityRepository).deactivateAll();
+        verify(securityRepository, never()).updateSensor(any(Sensor.class));
     }
 
 
@@ -180,4 +221,225 @@ public class SecurityServiceTest {
         securityService.setArmingStatus(ArmingStatus.ARMED_HOME);
         verify(securityRepository).setAlarmStatus(AlarmStatus.ALARM);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void batchOfSensorEventsIsAppliedInOrderAndStoredOnce() {
+        Sensor door = new Sensor("door", SensorType.DOOR);
+        Sensor window = new Sensor("window", SensorType.WINDOW);
+        when(securityRepository.findById(any(UUID.class))).thenReturn(Optional.empty());
+        when(securityRepository.findById(door.getSensorId())).thenReturn(Optional.of(door));
+        when(securityRepository.findById(window.getSensorId())).thenReturn(Optional.of(window));
+        when(securityRepository.getArmingStatus()).thenReturn(ArmingStatus.ARMED_AWAY);
+        when(securityRepository.getAlarmStatus()).thenReturn(AlarmStatus.NO_ALARM);
+        StatusListener statusListener = mock(StatusListener.class);
+        securityService.addStatusListener(statusListener);
+
+        securityService.changeSensorActivationStatus(List.of(
+                new SensorEvent(door.getSensorId(), true),
+                new SensorEvent(UUID.randomUUID(), true),
+                new SensorEvent(window.getSensorId(), true)));
+
+        assertTrue(door.getActive());
+        assertTrue(window.getActive());
+        verify(securityRepository).updateSensors(argThat(sensors -> sensors.size() == 2));
+        verify(securityRepository, never()).updateSensor(any(Sensor.class));
+        verify(securityRepository).setAlarmStatus(AlarmStatus.ALARM);
+        verify(securityRepository, never()).setAlarmStatus(AlarmStatus.PENDING_ALARM);
+        verify(statusListener).notify(AlarmStatus.ALARM);
+        verify(statusListener).sensorStatusChanged();
+    }
+
+    @Test
+    public void sensorToggledByIdChangesAlarmStatusAndUnknownIdsAreIgnored() {
+        Sensor door = new Sensor("door", SensorType.DOOR);
+        UUID unknown = UUID.randomUUID();
+        when(securityRepository.findById(door.getSensorId())).thenReturn(Optional.of(door));
+        when(securityRepository.findById(unknown)).thenReturn(Optional.empty());
+        when(securityRepository.getArmingStatus()).thenReturn(ArmingStatus.ARMED_AWAY);
+        when(securityRepository.getAlarmStatus()).thenReturn(AlarmStatus.NO_ALARM);
+
+        securityService.setActive(door.getSensorId(), true);
+        securityService.setActive(unknown, true);
+
+        assertTrue(door.getActive());
+        verify(securityRepository).updateSensor(door);
+        verify(securityRepository).setAlarmStatus(AlarmStatus.PENDING_ALARM);
+        verify(securityRepository, never()).getSensors();
+    }
+
+    @Test
+    public void batchEndingWithAllSensorsInactiveReturnsToNoAlarm() {
+        Sensor door = new Sensor("door", SensorType.DOOR);
+        door.setActive(true);
+        when(securityRepository.findById(door.getSensorId())).thenReturn(Optional.of(door));
+        when(securityRepository.getActiveSensorCount()).thenReturn(1);
+        when(securityRepository.getAlarmStatus()).thenReturn(AlarmStatus.PENDING_ALARM);
+
+        securityService.changeSensorActivationStatus(List.of(new SensorEvent(door.getSensorId(), false)));
+
+        assertFalse(door.getActive());
+        verify(securityRepository).setAlarmStatus(AlarmStatus.NO_ALARM);
+    }
+
+    @Test
+    public void asyncImageVerdictUpdatesAlarmStatus() {
+        securityService = new SecurityService(securityRepository, imageService, Runnable::run, Runnable::run);
+        when(securityRepository.getArmingStatus()).thenReturn(ArmingStatus.ARMED_HOME);
+        when(imageService.imageContainsCatAsync(any(BufferedImage.class), anyFloat(), any(Executor.class)))
+                .thenReturn(CompletableFuture.completedFuture(true));
+        bufferedImage = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+
+        assertTrue(securityService.processImageAsync(bufferedImage).join());
+        verify(securityRepository).setAlarmStatus(AlarmStatus.ALARM);
+    }
+
+    @Test
+    public void supersededAsyncImageIsCancelledAndIgnored() {
+        securityService = new SecurityService(securityRepository, imageService, Runnable::run, Runnable::run);
+        CompletableFuture<Boolean> first = new CompletableFuture<>();
+        CompletableFuture<Boolean> second = new CompletableFuture<>();
+        when(imageService.imageContainsCatAsync(any(BufferedImage.class), anyFloat(), any(Executor.class)))
+                .thenReturn(first, second);
+        bufferedImage = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+
+        CompletableFuture<Boolean> firstResult = securityService.processImageAsync(bufferedImage);
+        securityService.processImageAsync(bufferedImage);
+        second.complete(false);
+
+        assertTrue(first.isCancelled());
+        assertTrue(firstResult.isCompletedExceptionally());
+        verify(securityRepository, times(1)).setAlarmStatus(AlarmStatus.NO_ALARM);
+    }
+
+    @Test
+    public void concurrentSensorChangesKeepRepositoryConsistent(@TempDir Path directory) throws Exception {
+        try (WriteAheadLogSecurityRepositoryImpl repository = new WriteAheadLogSecurityRepositoryImpl(directory)) {
+            securityService = new SecurityService(repository, imageService, Runnable::run, Runnable::run);
+            securityService.setArmingStatus(ArmingStatus.ARMED_AWAY);
+            List<Callable<Void>> feeds = new ArrayList<>();
+            for (int feed = 0; feed < 8; feed++) {
+                List<Sensor> sensors = new ArrayList<>();
+                for (int i = 0; i < 25; i++) {
+                    Sensor sensor = new Sensor("feed " + feed + " sensor " + i, SensorType.values()[i % 3]);
+                    securityService.addSensor(sensor);
+                    sensors.add(sensor);
+                }
+                feeds.add(() -> {
+                    for (int round = 0; round < 40; round++) {
+                        for (Sensor sensor : sensors) {
+                            securityService.changeSensorActivationStatus(sensor, round % 2 == 0);
+                        }
+                    }
+                    return null;
+                });
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            try {
+                for (Future<Void> result : executor.invokeAll(feeds)) {
+                    result.get();
+                }
+            } finally {
+                executor.shutdown();
+            }
+
+            //every feed ends on an odd round, which deactivates its sensors
+            assertEquals(200, repository.getSensors().size());
+            assertEquals(0, repository.getActiveSensorCount());
+            assertEquals(AlarmStatus.ALARM, repository.getAlarmStatus());
+        }
+    }
+
+    @Test
+    public void eventLoopAppliesCommandsInOrderOnLoopThread(@TempDir Path directory) {
+        try (WriteAheadLogSecurityRepositoryImpl repository = new WriteAheadLogSecurityRepositoryImpl(directory);
+             SecurityEventLoop eventLoop = new SecurityEventLoop(16)) {
+            securityService = new SecurityService(repository, imageService, Runnable::run, eventLoop);
+            List<String> listenerThreads = new ArrayList<>();
+            securityService.addStatusListener(new StatusListener() {
+                @Override
+                public void notify(AlarmStatus status) {
+                    listenerThreads.add(Thread.currentThread().getName());
+                }
+
+                @Override
+                public void catDetected(boolean catDetected) {
+                }
+
+                @Override
+                public void sensorStatusChanged() {
+                }
+            });
+            Sensor door = new Sensor("door", SensorType.DOOR);
+            Sensor window = new Sensor("window", SensorType.WINDOW);
+            securityService.addSensor(door);
+            securityService.addSensor(window);
+            securityService.setArmingStatus(ArmingStatus.ARMED_AWAY);
+            securityService.changeSensorActivationStatus(door, true);
+            securityService.changeSensorActivationStatus(window, true);
+            eventLoop.submit(() -> {
+            }).join();
+
+            assertEquals(AlarmStatus.ALARM, repository.getAlarmStatus());
+            assertEquals(2, repository.getActiveSensorCount());
+            assertEquals(List.of("security-event-loop", "security-event-loop"), listenerThreads);
+        }
+    }
+
+    @Test
+    public void slowListenerOnlyReceivesLatestNotifications() {
+        List<Runnable> pending = new ArrayList<>();
+        StatusListener statusListener = mock(StatusListener.class);
+        securityService.addStatusListener(statusListener, pending::add);
+
+        securityService.setAlarmStatus(AlarmStatus.PENDING_ALARM);
+        securityService.setAlarmStatus(AlarmStatus.ALARM);
+        securityService.setArmingStatus(ArmingStatus.DISARMED);
+        securityService.setArmingStatus(ArmingStatus.DISARMED);
+
+        StatusListenerDispatcher dispatcher = securityService.getStatusListenerDispatcher();
+        assertEquals(1, pending.size());
+        assertEquals(2, dispatcher.getQueueDepth(statusListener));
+        pending.forEach(Runnable::run);
+
+        verify(statusListener).notify(AlarmStatus.NO_ALARM);
+        verify(statusListener, never()).notify(AlarmStatus.ALARM);
+        verify(statusListener, times(1)).sensorStatusChanged();
+        assertEquals(0, dispatcher.getQueueDepth());
+        assertEquals(4, dispatcher.getCoalescedCount());
+    }
+
+    @Test
+    public void auditLogRecordsInputsAndAlarmTransitions(@TempDir Path directory) throws IOException {
+        Sensor sensor = new Sensor("sensor", SensorType.DOOR);
+        when(securityRepository.getArmingStatus()).thenReturn(ArmingStatus.ARMED_AWAY);
+        when(securityRepository.getAlarmStatus()).thenReturn(AlarmStatus.NO_ALARM);
+        try (AuditLog auditLog = new AuditLog(directory)) {
+            securityService.setAuditLog(auditLog);
+            securityService.setArmingStatus(ArmingStatus.ARMED_AWAY);
+            securityService.changeSensorActivationStatus(sensor, true);
+            auditLog.flush();
+
+            List<AuditEvent> events = auditLog.query(Instant.EPOCH, Instant.now().plusSeconds(1));
+            assertEquals(List.of("ARMING ARMED_AWAY", "SENSOR active", "ALARM PENDING_ALARM"),
+                    events.stream().map(e -> e.type() + " " + e.value()).toList());
+            assertEquals(sensor.getSensorId().toString(), events.get(1).subject());
+        }
+    }
+
+    @Test
+    public void metricsRecordSensorChangesAndAlarmTransitions() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        securityService.registerMetrics(metrics);
+        Sensor sensor = new Sensor("sensor", SensorType.DOOR);
+        when(securityRepository.getArmingStatus()).thenReturn(ArmingStatus.ARMED_HOME);
+        when(securityRepository.getAlarmStatus()).thenReturn(AlarmStatus.NO_ALARM);
+
+        securityService.changeSensorActivationStatus(sensor, true);
+        securityService.setAlarmStatus(AlarmStatus.NO_ALARM);
+
+        assertEquals(1, metrics.histogram("security.sensor_change").getCount());
+        assertEquals(1, metrics.counter("security.alarm_transitions.PENDING_ALARM").getCount());
+        assertEquals(0, metrics.counter("security.alarm_transitions.NO_ALARM").getCount());
+    }
+}